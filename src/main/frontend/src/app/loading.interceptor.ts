@@ -23,7 +23,7 @@ import { finalize } from 'rxjs/operators';
 import { LoadingService } from './loading.service';
 
 const IGNORED_URLS = [
-  environment.apiUrl + "/code-mapper/autocomplete-code",
+  environment.apiUrl + "/code-mapper/autocomplete-code-stream",
 ]
 
 @Injectable()
@@ -72,7 +72,7 @@ export function csvFilter(mappingInfo: MappingInfo): CsvFilter | null {
 })
 export class ApiService {
   private baseUrl: string = `${environment.apiUrl}/code-mapper`;
-  private autocompleteUrl: string = `${environment.apiUrl}/code-mapper/autocomplete-code`;
+  private autocompleteUrl: string = `${environment.apiUrl}/code-mapper/autocomplete-code-stream`;
   private searchUtsUrl: string = `${environment.apiUrl}/code-mapper/search-uts`;
   private conceptsUrl: string = `${environment.apiUrl}/code-mapper/umls-concepts`;
   private vocabulariesUrl: string = `${environment.apiUrl}/code-mapper/coding-systems`;
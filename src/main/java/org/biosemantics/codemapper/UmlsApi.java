@@ -18,20 +18,25 @@
 
 package org.biosemantics.codemapper;
 
+import com.mchange.v2.c3p0.DataSources;
 import com.opencsv.CSVReader;
 import com.opencsv.CSVReaderBuilder;
 import com.opencsv.exceptions.CsvValidationException;
 import com.opencsv.processor.RowProcessor;
 import java.io.IOException;
 import java.io.Reader;
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -42,6 +47,10 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import javax.sql.DataSource;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -77,12 +86,25 @@ public class UmlsApi implements AutoCloseable {
 
   private static Logger logger = LogManager.getLogger(UmlsApi.class);
 
+  public static final int COMPLETIONS_LIMIT = 100;
+  private static final int CODE_COMPLETIONS_LIMIT = 20;
+  private static final int DEFAULT_BATCH_SIZE = 5000;
+  private static final int DEFAULT_BATCH_CONCURRENCY = 4;
+
   public static class Config {
     DataSource dataSource;
     List<String> codingSystemsWithDefinition;
     List<String> availableCodingSystems;
     Set<String> ignoreTermTypes;
     ServerInfo serverInfo;
+    private volatile UmlsConceptStore conceptStore;
+    private volatile UmlsCompletionIndex completionIndex;
+    private volatile boolean codeCompletionTable = false;
+    private volatile UmlsCodeCompletionIndex codeCompletionIndex;
+    private UmlsConceptCache conceptCache;
+    private boolean singleConceptQuery = true;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private ExecutorService batchExecutor = createBatchExecutor(DEFAULT_BATCH_CONCURRENCY);
 
     public Config(
         DataSource dataSource,
@@ -101,6 +123,114 @@ public class UmlsApi implements AutoCloseable {
       return serverInfo;
     }
 
+    /** The concept store if it is loaded for the current UMLS version, null otherwise. */
+    UmlsConceptStore getConceptStore() {
+      UmlsConceptStore store = conceptStore;
+      if (store != null && store.getUmlsVersion().equals(serverInfo.getUmlsVersion())) {
+        return store;
+      }
+      return null;
+    }
+
+    /**
+     * Load the in-memory concept store. {@link UmlsApi#getConcepts} falls back to the database
+     * while this is running.
+     */
+    public void loadConceptStore() throws CodeMapperException {
+      conceptStore =
+          UmlsConceptStore.load(
+              dataSource,
+              serverInfo.getUmlsVersion(),
+              availableCodingSystems,
+              codingSystemsWithDefinition);
+    }
+
+    /** The completion index if it is loaded for the current UMLS version, null otherwise. */
+    public UmlsCompletionIndex getCompletionIndex() {
+      UmlsCompletionIndex index = completionIndex;
+      if (index != null && index.getUmlsVersion().equals(serverInfo.getUmlsVersion())) {
+        return index;
+      }
+      return null;
+    }
+
+    /**
+     * Load the in-memory completion index from the UMLS and the non-UMLS terms. {@link
+     * UmlsApi#getCompletions} falls back to the database while this is running.
+     */
+    public void loadCompletionIndex(DataSource nonUmlsDataSource) throws CodeMapperException {
+      completionIndex =
+          UmlsCompletionIndex.load(
+              dataSource, nonUmlsDataSource, serverInfo.getUmlsVersion(), availableCodingSystems);
+    }
+
+    /** Use the table code_completions for code completions if it exists. */
+    public void detectCodeCompletionTable() throws CodeMapperException {
+      codeCompletionTable = UmlsCodeCompletionIndex.tableExists(dataSource);
+      if (!codeCompletionTable) {
+        logger.warn("No table code_completions, code completions are slow (see UPGRADE-UMLS.md)");
+      }
+    }
+
+    boolean hasCodeCompletionTable() {
+      return codeCompletionTable;
+    }
+
+    /** The code completion index if it is loaded for the current UMLS version, null otherwise. */
+    UmlsCodeCompletionIndex getCodeCompletionIndex() {
+      UmlsCodeCompletionIndex index = codeCompletionIndex;
+      if (index != null && index.getUmlsVersion().equals(serverInfo.getUmlsVersion())) {
+        return index;
+      }
+      return null;
+    }
+
+    /**
+     * Load the in-memory code completion index from the table code_completions. {@link
+     * UmlsApi#getCodeCompletions} falls back to the database while this is running.
+     */
+    public void loadCodeCompletionIndex() throws CodeMapperException {
+      codeCompletionIndex = UmlsCodeCompletionIndex.load(dataSource, serverInfo.getUmlsVersion());
+    }
+
+    /** Cache concepts that are not served by the concept store, null to disable. */
+    public void setConceptCache(UmlsConceptCache conceptCache) {
+      this.conceptCache = conceptCache;
+    }
+
+    public UmlsConceptCache getConceptCache() {
+      return conceptCache;
+    }
+
+    /**
+     * Retrieve source concepts, preferred names, definitions and semantic types of concepts in a
+     * single query instead of four.
+     */
+    public void setSingleConceptQuery(boolean singleConceptQuery) {
+      this.singleConceptQuery = singleConceptQuery;
+    }
+
+    /**
+     * Split queries for more than batchSize CUIs or codes into batches, which run on at most
+     * maxConcurrency pooled connections at a time, shared by all requests.
+     */
+    public void setBatching(int batchSize, int maxConcurrency) {
+      this.batchSize = batchSize;
+      ExecutorService previous = batchExecutor;
+      batchExecutor = createBatchExecutor(maxConcurrency);
+      previous.shutdown();
+    }
+
+    private static ExecutorService createBatchExecutor(int maxConcurrency) {
+      return Executors.newFixedThreadPool(
+          maxConcurrency,
+          runnable -> {
+            Thread thread = new Thread(runnable, "codemapper-umls-batch");
+            thread.setDaemon(true);
+            return thread;
+          });
+    }
+
     @SuppressWarnings("resource")
     public UmlsApi createApi(NonUmlsTargets nonUmlsTargets) throws SQLException {
       return new UmlsApi(this, this.dataSource.getConnection(), nonUmlsTargets);
@@ -169,20 +299,17 @@ public class UmlsApi implements AutoCloseable {
   public Map<String, String> getPreferredNames(Collection<String> cuis) throws CodeMapperException {
 
     if (cuis.isEmpty()) return new TreeMap<>();
-    String queryFmt =
+    String query =
         "SELECT DISTINCT cui, str FROM MRCONSO "
-            + "WHERE cui in (%s) "
+            + "WHERE cui = ANY(?) "
             + "AND lat = 'ENG' "
             + "AND ispref = 'Y' "
             + "AND ts = 'P' "
             + "AND stt = 'PF'";
-    String query = String.format(queryFmt, Utils.sqlPlaceholders(cuis.size()));
 
     try (PreparedStatement statement = connection.prepareStatement(query)) {
 
-      int offset = 1;
-      for (Iterator<String> iter = cuis.iterator(); iter.hasNext(); offset++)
-        statement.setString(offset, iter.next());
+      statement.setArray(1, connection.createArrayOf("VARCHAR", cuis.toArray()));
 
       try (ResultSet result = statement.executeQuery()) {
 
@@ -203,21 +330,56 @@ public class UmlsApi implements AutoCloseable {
     }
   }
 
+  /** Receives completions as soon as they are available. */
+  public interface CompletionSink {
+
+    /** Add a completion, returns false to stop the completion. */
+    boolean add(UmlsConcept completion);
+
+    /** Called with each completion query before it runs, for cancelling it. */
+    default void running(Statement statement) {}
+
+    /** If the completion was cancelled, and errors from cancelled queries can be ignored. */
+    default boolean isCancelled() {
+      return false;
+    }
+  }
+
   public List<UmlsConcept> getCompletions(String q, List<String> codingSystems)
       throws CodeMapperException {
+    List<UmlsConcept> completions = new LinkedList<>();
+    streamCompletions(q, codingSystems, completions::add);
+    return completions;
+  }
+
+  public void streamCompletions(String q, List<String> codingSystems, CompletionSink sink)
+      throws CodeMapperException {
     if (q.length() < 3) throw CodeMapperException.user("Completions query too short");
-    Collection<String> nonUmlsCuis = nonUmlsTargets.getTermCompletionsCuis(q, codingSystems);
+
+    UmlsCompletionIndex index = config.getCompletionIndex();
+    if (index != null) {
+      for (UmlsConcept completion : index.getCompletions(q, codingSystems, COMPLETIONS_LIMIT)) {
+        if (!sink.add(completion)) break;
+      }
+      return;
+    }
+
+    boolean filterCodingSystems = codingSystems != null && !codingSystems.isEmpty();
+    Collection<String> nonUmlsCuis =
+        filterCodingSystems
+            ? nonUmlsTargets.getTermCompletionsCuis(q, codingSystems)
+            : new LinkedList<>();
 
     String query =
         ""
             + "SELECT DISTINCT cui, str "
             + "FROM mrconso "
-            + "WHERE cui IN ? "
+            + "WHERE cui = ANY(?) "
             + "AND ts = 'P' " // from preferred terms in MRCONSO ...
             + "AND stt = 'PF' "
             + "AND ispref = 'Y' "
             + "AND lat = 'ENG' "
-            + "UNION"
+            + "UNION "
             + "SELECT DISTINCT m1.cui, m1.str " // Get the distinct MRCONSO.str
             + "FROM mrconso AS m1 "
             + "INNER JOIN mrconso AS m2 "
@@ -227,101 +389,145 @@ public class UmlsApi implements AutoCloseable {
             + "AND m1.ispref = 'Y' "
             + "AND m1.lat = 'ENG' "
             + "AND m2.str LIKE ? " // that match the query string
-            + (codingSystems != null && !codingSystems.isEmpty()
-                ? String.format(
-                    "AND m2.sab IN (%s) ", // that are in selected coding systems
-                    Utils.sqlPlaceholders(codingSystems.size()))
+            + (filterCodingSystems
+                ? "AND m2.sab = ANY(?) " // that are in selected coding systems
                 : "")
-            + "LIMIT 100"
-            + "";
+            + "LIMIT "
+            + COMPLETIONS_LIMIT;
 
     try (PreparedStatement statement = connection.prepareStatement(query)) {
-      int offset = 1;
-      statement.setArray(offset++, connection.createArrayOf("char(8)", nonUmlsCuis.toArray()));
-      statement.setString(offset++, q);
-      statement.setString(offset++, q + "%");
-      if (codingSystems != null && !codingSystems.isEmpty())
-        for (Iterator<String> iter = codingSystems.iterator(); iter.hasNext(); offset++)
-          statement.setString(offset, iter.next());
-      List<UmlsConcept> completions = new LinkedList<>();
+      statement.setArray(1, connection.createArrayOf("VARCHAR", nonUmlsCuis.toArray()));
+      statement.setString(2, q + "%");
+      if (filterCodingSystems)
+        statement.setArray(3, connection.createArrayOf("VARCHAR", codingSystems.toArray()));
+      sink.running(statement);
       try (ResultSet result = statement.executeQuery()) {
         while (result.next()) {
           String cui = result.getString(1);
           String str = result.getString(2);
           UmlsConcept concept = new UmlsConcept(cui, str);
-          completions.add(concept);
+          if (!sink.add(concept)) break;
         }
       }
-      return completions;
     } catch (SQLException e) {
+      if (sink.isCancelled()) return;
       throw CodeMapperException.server("Cannot execute query for completions", e);
     }
   }
 
   public Collection<UmlsConcept> getCodeCompletions(String str, String codingSystem)
       throws CodeMapperException {
-    if (str == null || str.isEmpty()) return new LinkedList<>();
     Collection<UmlsConcept> res = new LinkedList<>();
-    if (codingSystem == null || nonUmlsTargets.is(codingSystem)) {
-      res.addAll(nonUmlsTargets.getCodeCompletions(str, codingSystem));
-    }
-    if (codingSystem == null || !nonUmlsTargets.is(codingSystem)) {
-      res.addAll(getUmlsCodeCompletions(str, codingSystem));
-    }
+    streamCodeCompletions(str, codingSystem, res::add);
     return res;
   }
 
-  List<UmlsConcept> getUmlsCodeCompletions(String str, String codingSystem)
+  /** Code completions, the non-UMLS completions are passed on before querying the UMLS. */
+  public void streamCodeCompletions(String str, String codingSystem, CompletionSink sink)
       throws CodeMapperException {
-    String query =
-        "SELECT DISTINCT cui, sab, code, str "
-            + "FROM mrconso WHERE "
-            + "(cui = ? or (code LIKE ? AND sab like ?)) "
-            + "AND lat = 'ENG' "
-            + "ORDER BY code "
-            + "LIMIT 20";
+    if (str == null || str.isEmpty()) return;
+    boolean isNonUmls = codingSystem != null && nonUmlsTargets.is(codingSystem);
+    if (codingSystem == null || isNonUmls) {
+      for (UmlsConcept completion : nonUmlsTargets.getCodeCompletions(str, codingSystem)) {
+        if (!sink.add(completion)) return;
+      }
+    }
+    if (codingSystem == null || !isNonUmls) {
+      for (UmlsConcept completion : getUmlsCodeCompletions(str, codingSystem, sink)) {
+        if (!sink.add(completion)) return;
+      }
+    }
+  }
+
+  private List<UmlsConcept> getUmlsCodeCompletions(
+      String str, String codingSystem, CompletionSink sink) throws CodeMapperException {
+    UmlsCodeCompletionIndex index = config.getCodeCompletionIndex();
+    if (index != null) {
+      return codeCompletions(str, index.getCompletions(str, codingSystem, CODE_COMPLETIONS_LIMIT));
+    }
+    String query;
+    if (config.hasCodeCompletionTable()) {
+      // Separate queries for the CUI and the code prefix, so both can use an index
+      query =
+          "SELECT cui, sab, code, str FROM ("
+              + "SELECT cui, sab, code, str FROM code_completions WHERE cui = ? "
+              + "UNION ALL "
+              + "SELECT cui, sab, code, str FROM code_completions WHERE code LIKE ? "
+              + (codingSystem == null ? "" : "AND sab = ? ")
+              + ") c "
+              + "ORDER BY code "
+              + "LIMIT "
+              + CODE_COMPLETIONS_LIMIT;
+    } else {
+      query =
+          "SELECT DISTINCT cui, sab, code, str "
+              + "FROM mrconso WHERE "
+              + "(cui = ? or (code LIKE ? AND sab like ?)) "
+              + "AND lat = 'ENG' "
+              + "ORDER BY code "
+              + "LIMIT "
+              + CODE_COMPLETIONS_LIMIT;
+    }
     try (PreparedStatement statement = connection.prepareStatement(query)) {
       statement.setString(1, str);
-      statement.setString(2, str + "%");
-      statement.setString(3, codingSystem == null ? "%" : codingSystem);
-      Map<String, UmlsConcept> concepts = new TreeMap<>();
+      statement.setString(2, escapeLike(str) + "%");
+      if (!config.hasCodeCompletionTable()) {
+        statement.setString(3, codingSystem == null ? "%" : codingSystem);
+      } else if (codingSystem != null) {
+        statement.setString(3, codingSystem);
+      }
+      sink.running(statement);
+      List<String[]> rows = new ArrayList<>();
       try (ResultSet result = statement.executeQuery()) {
         while (result.next()) {
-          String cui = result.getString(1);
-          String sab = result.getString(2);
-          String code = result.getString(3);
-          String str1 = result.getString(4);
-          String name;
-          if (str.equals(cui)) name = String.format("CUI %s: %s", cui, str1);
-          else name = String.format("%s in %s: %s", code, sab, str1);
-          concepts
-              .computeIfAbsent(cui, k -> new UmlsConcept(cui, name))
-              .getSourceConcepts()
-              .add(new SourceConcept(cui, sab, code));
+          rows.add(
+              new String[] {
+                result.getString(1), result.getString(2), result.getString(3), result.getString(4)
+              });
         }
       }
-      List<UmlsConcept> res = new LinkedList<>(concepts.values());
-      res.sort(Comparator.comparing(c -> c.toString()));
-      return res;
+      return codeCompletions(str, rows);
     } catch (SQLException e) {
+      if (sink.isCancelled()) return new LinkedList<>();
       throw CodeMapperException.server("Cannot execute query for completions", e);
     }
   }
 
+  /** Group completion rows [cui, sab, code, str] by concept. */
+  private static List<UmlsConcept> codeCompletions(String str, List<String[]> rows) {
+    Map<String, UmlsConcept> concepts = new TreeMap<>();
+    for (String[] row : rows) {
+      String cui = row[0];
+      String sab = row[1];
+      String code = row[2];
+      String str1 = row[3];
+      String name;
+      if (str.equals(cui)) name = String.format("CUI %s: %s", cui, str1);
+      else name = String.format("%s in %s: %s", code, sab, str1);
+      concepts
+          .computeIfAbsent(cui, k -> new UmlsConcept(cui, name))
+          .getSourceConcepts()
+          .add(new SourceConcept(cui, sab, code));
+    }
+    List<UmlsConcept> res = new LinkedList<>(concepts.values());
+    res.sort(Comparator.comparing(c -> c.toString()));
+    return res;
+  }
+
+  private static String escapeLike(String str) {
+    return str.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+  }
+
   private Map<String, List<String>> getSemanticTypes(Collection<String> cuis)
       throws CodeMapperException {
     if (cuis.isEmpty()) return new TreeMap<>();
     else {
-      String queryFmt =
-          "SELECT DISTINCT cui, tui " + "FROM MRSTY " + "WHERE cui IN (%s) " + "ORDER BY cui, tui";
-      String query = String.format(queryFmt, Utils.sqlPlaceholders(cuis.size()));
+      String query =
+          "SELECT DISTINCT cui, tui " + "FROM MRSTY " + "WHERE cui = ANY(?) " + "ORDER BY cui, tui";
 
       try (PreparedStatement statement = connection.prepareStatement(query)) {
 
-        int offset = 1;
-
-        for (Iterator<String> iter = cuis.iterator(); iter.hasNext(); offset++)
-          statement.setString(offset, iter.next());
+        statement.setArray(1, connection.createArrayOf("VARCHAR", cuis.toArray()));
 
         Map<String, List<String>> semanticTypes = new TreeMap<>();
         try (ResultSet result = statement.executeQuery()) {
@@ -347,23 +553,77 @@ public class UmlsApi implements AutoCloseable {
       nonUmlsTargets.getCuisForCodes(codingSystem, codes).values().forEach(cuis::addAll);
       return cuis;
     } else {
-      String queryFmt = "SELECT DISTINCT cui FROM mrconso WHERE code IN (%s) and SAB = ?";
-      String query = String.format(queryFmt, Utils.sqlPlaceholders(codes.size()));
-      try (PreparedStatement statement = connection.prepareStatement(query)) {
-        int offset = 1;
-        for (Iterator<String> iter = codes.iterator(); iter.hasNext(); offset++)
-          statement.setString(offset, iter.next());
-        statement.setString(offset++, codingSystem);
-        Collection<String> cuis = new HashSet<>();
-        try (ResultSet result = statement.executeQuery()) {
-          while (result.next()) {
-            String cui = result.getString(1);
-            cuis.add(cui);
-          }
+      Collection<String> cuis = new HashSet<>();
+      for (Collection<String> batchCuis :
+          inBatches(codes, (api, batch) -> api.getUmlsCuisByCodes(batch, codingSystem))) {
+        cuis.addAll(batchCuis);
+      }
+      return cuis;
+    }
+  }
+
+  private Collection<String> getUmlsCuisByCodes(Collection<String> codes, String codingSystem)
+      throws CodeMapperException {
+    String query = "SELECT DISTINCT cui FROM mrconso WHERE code = ANY(?) and SAB = ?";
+    try (PreparedStatement statement = connection.prepareStatement(query)) {
+      statement.setArray(1, connection.createArrayOf("VARCHAR", codes.toArray()));
+      statement.setString(2, codingSystem);
+      Collection<String> cuis = new HashSet<>();
+      try (ResultSet result = statement.executeQuery()) {
+        while (result.next()) {
+          String cui = result.getString(1);
+          cuis.add(cui);
         }
-        return cuis;
-      } catch (SQLException e) {
-        throw CodeMapperException.server("Cannot execute query for CUIs by codes", e);
+      }
+      return cuis;
+    } catch (SQLException e) {
+      throw CodeMapperException.server("Cannot execute query for CUIs by codes", e);
+    }
+  }
+
+  private interface Batch<T> {
+    T run(UmlsApi api, List<String> items) throws CodeMapperException;
+  }
+
+  /**
+   * Run the batch on the items, on this connection if there are few items, or split into batches
+   * that run concurrently on their own connections otherwise.
+   */
+  private <T> List<T> inBatches(Collection<String> items, Batch<T> batch)
+      throws CodeMapperException {
+    List<String> itemsList = new ArrayList<>(items);
+    if (itemsList.size() <= config.batchSize) {
+      return Collections.singletonList(batch.run(this, itemsList));
+    }
+    List<Future<T>> futures = new ArrayList<>();
+    for (int start = 0; start < itemsList.size(); start += config.batchSize) {
+      List<String> batchItems =
+          itemsList.subList(start, Math.min(start + config.batchSize, itemsList.size()));
+      futures.add(
+          config.batchExecutor.submit(
+              () -> {
+                try (UmlsApi api = new UmlsApi(config, config.dataSource.getConnection(), null)) {
+                  return batch.run(api, batchItems);
+                }
+              }));
+    }
+    List<T> results = new ArrayList<>();
+    try {
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw CodeMapperException.server("Interrupted while running batches", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof CodeMapperException) {
+        throw (CodeMapperException) e.getCause();
+      }
+      throw CodeMapperException.server("Cannot run batch", e);
+    } finally {
+      for (Future<T> future : futures) {
+        future.cancel(true);
       }
     }
   }
@@ -380,14 +640,29 @@ public class UmlsApi implements AutoCloseable {
 
     Map<String, List<SourceConcept>> sourceConcepts =
         nonUmlsTargets.getSourceConcepts(cuis, codingSystems);
+    Map<String, List<SourceConcept>> umlsSourceConcepts =
+        getUmlsSourceConcepts(cuis, codingSystems, ignoreTermTypes);
+    for (String cui : umlsSourceConcepts.keySet()) {
+      sourceConcepts
+          .computeIfAbsent(cui, key -> new LinkedList<SourceConcept>())
+          .addAll(umlsSourceConcepts.get(cui));
+    }
+    return sourceConcepts;
+  }
+
+  private Map<String, List<SourceConcept>> getUmlsSourceConcepts(
+      Collection<String> cuis, Collection<String> codingSystems, Collection<String> ignoreTermTypes)
+      throws CodeMapperException {
+
+    Map<String, List<SourceConcept>> sourceConcepts = new TreeMap<>();
 
     String query =
         "SELECT DISTINCT cui, sab, code, str, tty "
             + "FROM MRCONSO "
             + "WHERE cui = ANY(?) "
             + "AND sab = ANY(?) "
-            + "AND suppress != 'Y'"
-            + "AND tty != ANY(?)"
+            + "AND suppress != 'Y' "
+            + "AND tty != ALL(?) "
             + "ORDER BY cui, sab, code, str";
 
     try (PreparedStatement statement = connection.prepareStatement(query)) {
@@ -565,42 +840,31 @@ public class UmlsApi implements AutoCloseable {
       throws CodeMapperException {
     if (cuis.isEmpty() || relations.isEmpty()) return new TreeMap<>();
     else {
-      String queryFmt =
+      String query =
           ""
               + "WITH r1 AS ( "
               + "SELECT cui1, rel, cui2 "
               + "FROM mrrel "
-              + "WHERE cui1 in (%s) "
-              + "AND rel in (%s) "
+              + "WHERE cui1 = ANY(?) "
+              + "AND rel = ANY(?) "
               + "AND cui1 != cui2 "
               + "), r2 AS ( "
               + "SELECT cui2, rel, cui1 "
               + "FROM mrrel "
-              + "WHERE cui2 in (%s) "
-              + "AND rel in (%s) "
+              + "WHERE cui2 = ANY(?) "
+              + "AND rel = ANY(?) "
               + "AND cui1 != cui2 "
               + ") "
               + "SELECT DISTINCT * FROM r1 "
               + "UNION ALL "
               + "SELECT DISTINCT * FROM r2 ";
-      String query =
-          String.format(
-              queryFmt,
-              Utils.sqlPlaceholders(cuis.size()),
-              Utils.sqlPlaceholders(relations.size()),
-              Utils.sqlPlaceholders(cuis.size()),
-              Utils.sqlPlaceholders(invRelations.size()));
 
       try (PreparedStatement statement = connection.prepareStatement(query)) {
-        int offset = 1;
-        for (int ix = 0; ix < cuis.size(); ix++, offset++)
-          statement.setString(offset, cuis.get(ix));
-        for (int ix = 0; ix < relations.size(); ix++, offset++)
-          statement.setString(offset, relations.get(ix));
-        for (int ix = 0; ix < cuis.size(); ix++, offset++)
-          statement.setString(offset, cuis.get(ix));
-        for (int ix = 0; ix < invRelations.size(); ix++, offset++)
-          statement.setString(offset, invRelations.get(ix));
+        Array cuisArray = connection.createArrayOf("VARCHAR", cuis.toArray());
+        statement.setArray(1, cuisArray);
+        statement.setArray(2, connection.createArrayOf("VARCHAR", relations.toArray()));
+        statement.setArray(3, cuisArray);
+        statement.setArray(4, connection.createArrayOf("VARCHAR", invRelations.toArray()));
 
         try (ResultSet sqlResults = statement.executeQuery()) {
 
@@ -650,19 +914,16 @@ public class UmlsApi implements AutoCloseable {
           "SELECT DISTINCT %s "
               + "FROM MRREL "
               + "WHERE rel in ('RN', 'CHD') "
-              + "AND %s IN (%s) "
+              + "AND %s = ANY(?) "
               + "AND cui1 != cui2 "
               + "AND (rela IS NULL OR rela = 'isa')";
       String selection = hyponymsNotHypernyms ? "cui1, cui2" : "cui2, cui1";
       String selector = hyponymsNotHypernyms ? "cui1" : "cui2";
-      String query =
-          String.format(queryFmt, selection, selector, Utils.sqlPlaceholders(cuis.size()));
+      String query = String.format(queryFmt, selection, selector);
 
       try (PreparedStatement statement = connection.prepareStatement(query)) {
 
-        int offset = 1;
-        for (int ix = 0; ix < cuis.size(); ix++, offset++)
-          statement.setString(offset, cuis.get(ix));
+        statement.setArray(1, connection.createArrayOf("VARCHAR", cuis.toArray()));
 
         Map<String, Set<String>> related = new TreeMap<>();
         try (ResultSet result = statement.executeQuery()) {
@@ -700,14 +961,11 @@ public class UmlsApi implements AutoCloseable {
     if (cuis.isEmpty()) return new TreeMap<>();
     else {
 
-      String queryFmt = "SELECT DISTINCT cui, sab, def FROM MRDEF WHERE cui IN (%s)";
-      String query = String.format(queryFmt, Utils.sqlPlaceholders(cuis.size()));
+      String query = "SELECT DISTINCT cui, sab, def FROM MRDEF WHERE cui = ANY(?)";
 
       try (PreparedStatement statement = connection.prepareStatement(query)) {
 
-        int offset = 1;
-        for (Iterator<String> iter = cuis.iterator(); iter.hasNext(); offset++)
-          statement.setString(offset, iter.next());
+        statement.setArray(1, connection.createArrayOf("VARCHAR", cuis.toArray()));
 
         Map<String, Map<String, String>> definitionsByVocabularies = new TreeMap<>();
         try (ResultSet result = statement.executeQuery()) {
@@ -795,34 +1053,220 @@ public class UmlsApi implements AutoCloseable {
 
       cuis = new LinkedList<>(new TreeSet<>(cuis)); // unique CUIs
 
-      Map<String, List<SourceConcept>> sourceConcepts =
-          getSourceConcepts(cuis, codingSystems, ignoreTermTypes);
-      Map<String, String> preferredNames = getPreferredNames(cuis);
-      Map<String, String> definitions = getDefinitions(cuis);
-      Map<String, List<String>> semanticTypes = getSemanticTypes(cuis);
-
-      Map<String, UmlsConcept> concepts = new TreeMap<>();
-      for (String cui : cuis) {
-        List<SourceConcept> sourceConcepts2 = sourceConcepts.get(cui);
-        List<String> semanticTypes2 = semanticTypes.get(cui);
-        String definition = definitions.get(cui);
-        String name = preferredNames.get(cui);
-        if (sourceConcepts2 == null
-            && semanticTypes2 == null
-            && (definition == null || definition.isEmpty())
-            && name == null) continue;
-        UmlsConcept concept = new UmlsConcept();
-        concept.setCui(cui);
-        concept.setDefinition(definition);
-        concept.setPreferredName(name);
-        if (sourceConcepts2 != null) concept.setSourceConcepts(sourceConcepts2);
-        if (semanticTypes2 != null) concept.setSemanticTypes(semanticTypes2);
-        concepts.put(cui, concept);
+      if (ignoreTermTypes == null || ignoreTermTypes.isEmpty()) {
+        ignoreTermTypes = this.getIgnoreTermTypes();
+      }
+
+      Collection<String> finalIgnoreTermTypes = ignoreTermTypes;
+      Map<String, UmlsConcept> concepts;
+      UmlsConceptStore store = config.getConceptStore();
+      if (store != null) {
+        concepts = store.getConcepts(cuis, codingSystems, ignoreTermTypes);
+      } else if (config.conceptCache != null) {
+        concepts =
+            config.conceptCache.getConcepts(
+                getServerInfo().getUmlsVersion(),
+                cuis,
+                codingSystems,
+                ignoreTermTypes,
+                missing -> getUmlsConcepts(missing, codingSystems, finalIgnoreTermTypes));
+      } else {
+        concepts = getUmlsConcepts(cuis, codingSystems, ignoreTermTypes);
+      }
+
+      Map<String, List<SourceConcept>> nonUmlsSourceConcepts =
+          codingSystems.isEmpty() || (store != null && store.containsAll(codingSystems))
+              ? new TreeMap<>()
+              : nonUmlsTargets.getSourceConcepts(cuis, codingSystems);
+
+      // non-UMLS source concepts go first, like in getSourceConcepts
+      for (String cui : nonUmlsSourceConcepts.keySet()) {
+        List<SourceConcept> sourceConcepts = nonUmlsSourceConcepts.get(cui);
+        UmlsConcept concept = concepts.get(cui);
+        if (concept == null) {
+          concept = new UmlsConcept();
+          concept.setCui(cui);
+          concept.setSourceConcepts(sourceConcepts);
+          concepts.put(cui, concept);
+        } else {
+          sourceConcepts.addAll(concept.getSourceConcepts());
+          concept.setSourceConcepts(sourceConcepts);
+        }
       }
       return concepts;
     }
   }
 
+  /** Concepts with the source concepts from the UMLS database only. */
+  private Map<String, UmlsConcept> getUmlsConcepts(
+      Collection<String> cuis, Collection<String> codingSystems, Collection<String> ignoreTermTypes)
+      throws CodeMapperException {
+    Map<String, UmlsConcept> concepts = new TreeMap<>();
+    for (Map<String, UmlsConcept> batchConcepts :
+        inBatches(
+            cuis,
+            (api, batch) -> api.getUmlsConceptsBatch(batch, codingSystems, ignoreTermTypes))) {
+      concepts.putAll(batchConcepts);
+    }
+    return concepts;
+  }
+
+  private Map<String, UmlsConcept> getUmlsConceptsBatch(
+      Collection<String> cuis, Collection<String> codingSystems, Collection<String> ignoreTermTypes)
+      throws CodeMapperException {
+    if (config.singleConceptQuery) {
+      return queryUmlsConcepts(cuis, codingSystems, ignoreTermTypes);
+    } else {
+      return assembleUmlsConcepts(cuis, codingSystems, ignoreTermTypes);
+    }
+  }
+
+  // Column kind in the single concept query
+  private static final int KIND_SOURCE_CONCEPT = 1;
+  private static final int KIND_PREFERRED_NAME = 2;
+  private static final int KIND_DEFINITION = 3;
+  private static final int KIND_SEMANTIC_TYPE = 4;
+
+  /**
+   * Like {@link #assembleUmlsConcepts}, but in a single query with one result set sorted by CUI.
+   * Column kind tells what a row is about, and the rows of a CUI are decoded into one concept.
+   */
+  private Map<String, UmlsConcept> queryUmlsConcepts(
+      Collection<String> cuis, Collection<String> codingSystems, Collection<String> ignoreTermTypes)
+      throws CodeMapperException {
+    String query =
+        "SELECT DISTINCT 1 AS kind, cui, sab, code, str, tty FROM mrconso "
+            + "WHERE cui = ANY(?) "
+            + "AND sab = ANY(?) "
+            + "AND suppress != 'Y' "
+            + "AND tty != ALL(?) "
+            + "UNION ALL "
+            + "SELECT DISTINCT 2, cui, NULL, NULL, str, NULL FROM mrconso "
+            + "WHERE cui = ANY(?) "
+            + "AND lat = 'ENG' "
+            + "AND ispref = 'Y' "
+            + "AND ts = 'P' "
+            + "AND stt = 'PF' "
+            + "UNION ALL "
+            + "SELECT DISTINCT 3, cui, sab, NULL, def, NULL FROM mrdef "
+            + "WHERE cui = ANY(?) "
+            + "UNION ALL "
+            + "SELECT DISTINCT 4, cui, NULL, NULL, tui, NULL FROM mrsty "
+            + "WHERE cui = ANY(?) "
+            + "ORDER BY cui, kind, sab, code, str";
+
+    List<String> definitionPriority = getCodingSystemsWithDefinition();
+    Map<String, UmlsConcept> concepts = new TreeMap<>();
+    try (PreparedStatement statement = connection.prepareStatement(query)) {
+      Array cuisArray = connection.createArrayOf("VARCHAR", cuis.toArray());
+      statement.setArray(1, cuisArray);
+      statement.setArray(2, connection.createArrayOf("VARCHAR", codingSystems.toArray()));
+      statement.setArray(3, connection.createArrayOf("VARCHAR", ignoreTermTypes.toArray()));
+      statement.setArray(4, cuisArray);
+      statement.setArray(5, cuisArray);
+      statement.setArray(6, cuisArray);
+      try (ResultSet result = statement.executeQuery()) {
+        UmlsConcept concept = null;
+        SourceConcept sourceConcept = null;
+        int definitionRank = -1;
+        while (result.next()) {
+          int kind = result.getInt(1);
+          String cui = result.getString(2);
+          String sab = result.getString(3);
+          String code = result.getString(4);
+          String str = result.getString(5);
+          String tty = result.getString(6);
+          if (concept == null || !cui.equals(concept.getCui())) {
+            addQueriedConcept(concepts, concept, definitionRank);
+            concept = new UmlsConcept();
+            concept.setCui(cui);
+            sourceConcept = null;
+            definitionRank = -1;
+          }
+          switch (kind) {
+            case KIND_SOURCE_CONCEPT:
+              if (sourceConcept == null
+                  || !sab.equals(sourceConcept.getCodingSystem())
+                  || !code.equals(sourceConcept.getId())) {
+                sourceConcept = new SourceConcept(cui, sab, code, str);
+                sourceConcept.setTty(tty);
+                concept.getSourceConcepts().add(sourceConcept);
+              }
+              if ("PT".equals(tty)) sourceConcept.setPreferredTerm(str);
+              break;
+            case KIND_PREFERRED_NAME:
+              if (concept.getPreferredName() == null) concept.setPreferredName(str);
+              break;
+            case KIND_DEFINITION:
+              int rank = definitionPriority.indexOf(sab);
+              if (definitionRank == -1) definitionRank = Integer.MAX_VALUE;
+              if (rank != -1 && rank < definitionRank) {
+                concept.setDefinition(str);
+                definitionRank = rank;
+              }
+              break;
+            case KIND_SEMANTIC_TYPE:
+              concept.getSemanticTypes().add(str);
+              break;
+          }
+        }
+        addQueriedConcept(concepts, concept, definitionRank);
+      }
+      return concepts;
+    } catch (SQLException e) {
+      throw CodeMapperException.server("Cannot execute query for concepts", e);
+    }
+  }
+
+  private static void addQueriedConcept(
+      Map<String, UmlsConcept> concepts, UmlsConcept concept, int definitionRank) {
+    if (concept == null) return;
+    // Like getDefinitions: "" without any definition, null without a definition from
+    // the coding systems with definition
+    if (definitionRank == -1) concept.setDefinition("");
+    if (concept.getSourceConcepts().isEmpty()
+        && concept.getSemanticTypes().isEmpty()
+        && (concept.getDefinition() == null || concept.getDefinition().isEmpty())
+        && concept.getPreferredName() == null) return;
+    concepts.put(concept.getCui(), concept);
+  }
+
+  /**
+   * Concepts with the source concepts from the UMLS database only, assembled from four separate
+   * queries.
+   */
+  private Map<String, UmlsConcept> assembleUmlsConcepts(
+      Collection<String> cuis, Collection<String> codingSystems, Collection<String> ignoreTermTypes)
+      throws CodeMapperException {
+    Map<String, List<SourceConcept>> sourceConcepts =
+        codingSystems.isEmpty()
+            ? new TreeMap<>()
+            : getUmlsSourceConcepts(cuis, codingSystems, ignoreTermTypes);
+    Map<String, String> preferredNames = getPreferredNames(cuis);
+    Map<String, String> definitions = getDefinitions(cuis);
+    Map<String, List<String>> semanticTypes = getSemanticTypes(cuis);
+
+    Map<String, UmlsConcept> concepts = new TreeMap<>();
+    for (String cui : cuis) {
+      List<SourceConcept> sourceConcepts2 = sourceConcepts.get(cui);
+      List<String> semanticTypes2 = semanticTypes.get(cui);
+      String definition = definitions.get(cui);
+      String name = preferredNames.get(cui);
+      if (sourceConcepts2 == null
+          && semanticTypes2 == null
+          && (definition == null || definition.isEmpty())
+          && name == null) continue;
+      UmlsConcept concept = new UmlsConcept();
+      concept.setCui(cui);
+      concept.setDefinition(definition);
+      concept.setPreferredName(name);
+      if (sourceConcepts2 != null) concept.setSourceConcepts(sourceConcepts2);
+      if (semanticTypes2 != null) concept.setSemanticTypes(semanticTypes2);
+      concepts.put(cui, concept);
+    }
+    return concepts;
+  }
+
   @XmlRootElement
   public class ImportedMapping {
     Collection<String> warnings;
@@ -1309,4 +1753,46 @@ public class UmlsApi implements AutoCloseable {
       throw CodeMapperException.user("cannot parse CSV file", e);
     }
   }
+
+  /**
+   * Measure the latency of retrieving concepts with the single concept query and with four queries.
+   * Arguments: database URI, user, password, and optionally the number of CUIs.
+   */
+  public static void main(String[] args) throws Exception {
+    DataSource dataSource = DataSources.unpooledDataSource(args[0], args[1], args[2]);
+    int numCuis = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+    int repetitions = 20;
+    List<String> codingSystems = Arrays.asList("ICD10CM", "SNOMEDCT_US", "MDR");
+    Set<String> ignoreTermTypes = new HashSet<>(Arrays.asList("FN", "OAF", "OAP", "OAS"));
+    Config config =
+        new Config(dataSource, codingSystems, Arrays.asList("MSH", "NCI"), ignoreTermTypes, null);
+    try (UmlsApi api = new UmlsApi(config, dataSource.getConnection(), null)) {
+      List<String> cuis = new LinkedList<>();
+      try (PreparedStatement statement =
+          api.connection.prepareStatement(
+              "SELECT DISTINCT cui FROM mrconso WHERE sab = ANY(?) LIMIT ?")) {
+        statement.setArray(1, api.connection.createArrayOf("VARCHAR", codingSystems.toArray()));
+        statement.setInt(2, numCuis);
+        try (ResultSet result = statement.executeQuery()) {
+          while (result.next()) cuis.add(result.getString(1));
+        }
+      }
+      for (boolean single : new boolean[] {false, true, false, true}) {
+        config.setSingleConceptQuery(single);
+        long[] times = new long[repetitions];
+        for (int i = 0; i < repetitions; i++) {
+          long start = System.nanoTime();
+          api.getUmlsConcepts(cuis, codingSystems, ignoreTermTypes);
+          times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        System.out.printf(
+            "%s: %d CUIs, median %.1f ms, max %.1f ms%n",
+            single ? "single query" : "four queries",
+            cuis.size(),
+            times[repetitions / 2] / 1e6,
+            times[repetitions - 1] / 1e6);
+      }
+    }
+  }
 }
@@ -0,0 +1,230 @@
+// This file is part of CodeMapper.
+//
+// Copyright 2022-2024 VAC4EU - Vaccine monitoring Collaboration for Europe.
+// Copyright 2017-2021 Erasmus Medical Center, Department of Medical Informatics.
+//
+// CodeMapper is free software: you can redistribute it and/or modify it under
+// the terms of the GNU Affero General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option) any
+// later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+// details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+package org.biosemantics.codemapper;
+
+import com.mchange.v2.c3p0.DataSources;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.sql.DataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * In-memory index of the table code_completions for completing codes, for a single UMLS version.
+ *
+ * <p>The table code_completions in the UMLS database has one row (sab, code, cui, str) for each
+ * code of a concept, with the preferred English term of the code. It is derived from MRCONSO with
+ * {@link #createTable} (run {@link #main} after importing a new UMLS version). The index keeps the
+ * rows sorted by coding system and code for prefix search by binary search, and an index sorted by
+ * CUI.
+ */
+public class UmlsCodeCompletionIndex {
+
+  private static Logger logger = LogManager.getLogger(UmlsCodeCompletionIndex.class);
+
+  public static final String TABLE = "code_completions";
+
+  private static final int FETCH_SIZE = 10_000;
+
+  private final String umlsVersion;
+
+  // per row, sorted by sab and code
+  private final String[] sabs;
+  private final String[] codes;
+  private final String[] cuis;
+  private final String[] strs;
+
+  // row indices sorted by cui
+  private final int[] byCui;
+
+  // sab -> {first row, last row + 1}
+  private final Map<String, int[]> sabRanges;
+
+  private UmlsCodeCompletionIndex(String umlsVersion, List<String[]> rows) {
+    this.umlsVersion = umlsVersion;
+    rows.sort(Comparator.comparing((String[] row) -> row[0]).thenComparing(row -> row[1]));
+    int size = rows.size();
+    sabs = new String[size];
+    codes = new String[size];
+    cuis = new String[size];
+    strs = new String[size];
+    sabRanges = new HashMap<>();
+    for (int ix = 0; ix < size; ix++) {
+      String[] row = rows.get(ix);
+      sabs[ix] = row[0];
+      codes[ix] = row[1];
+      cuis[ix] = row[2];
+      strs[ix] = row[3];
+      int[] range = sabRanges.computeIfAbsent(sabs[ix], sab -> new int[2]);
+      if (ix == 0 || !sabs[ix].equals(sabs[ix - 1])) range[0] = ix;
+      range[1] = ix + 1;
+    }
+    byCui =
+        Arrays.stream(indices(size))
+            .boxed()
+            .sorted(Comparator.comparing(ix -> cuis[ix]))
+            .mapToInt(Integer::intValue)
+            .toArray();
+  }
+
+  private static int[] indices(int size) {
+    int[] res = new int[size];
+    for (int ix = 0; ix < size; ix++) res[ix] = ix;
+    return res;
+  }
+
+  public String getUmlsVersion() {
+    return umlsVersion;
+  }
+
+  /**
+   * Rows [cui, sab, code, str] of the codes of the CUI and the codes that start with str in the
+   * coding system (all coding systems if null), ordered by code, at most limit.
+   */
+  public List<String[]> getCompletions(String str, String codingSystem, int limit) {
+    List<String[]> rows = new ArrayList<>();
+    for (int ix = lowerBoundCui(str); ix < byCui.length && cuis[byCui[ix]].equals(str); ix++) {
+      rows.add(row(byCui[ix]));
+    }
+    for (Map.Entry<String, int[]> entry : sabRanges.entrySet()) {
+      if (codingSystem != null && !codingSystem.equals(entry.getKey())) continue;
+      int end = entry.getValue()[1];
+      int found = 0;
+      for (int ix = lowerBoundCode(entry.getValue()[0], end, str);
+          ix < end && found < limit && codes[ix].startsWith(str);
+          ix++, found++) {
+        rows.add(row(ix));
+      }
+    }
+    rows.sort(Comparator.comparing((String[] row) -> row[2]));
+    return rows.size() > limit ? rows.subList(0, limit) : rows;
+  }
+
+  private String[] row(int ix) {
+    return new String[] {cuis[ix], sabs[ix], codes[ix], strs[ix]};
+  }
+
+  private int lowerBoundCode(int low, int high, String code) {
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (codes[mid].compareTo(code) < 0) low = mid + 1;
+      else high = mid;
+    }
+    return low;
+  }
+
+  private int lowerBoundCui(String cui) {
+    int low = 0, high = byCui.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (cuis[byCui[mid]].compareTo(cui) < 0) low = mid + 1;
+      else high = mid;
+    }
+    return low;
+  }
+
+  /** If the table code_completions exists in the UMLS database. */
+  public static boolean tableExists(DataSource dataSource) throws CodeMapperException {
+    try (Connection connection = dataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement("SELECT to_regclass(?)")) {
+      statement.setString(1, TABLE);
+      try (ResultSet result = statement.executeQuery()) {
+        return result.next() && result.getString(1) != null;
+      }
+    } catch (SQLException e) {
+      throw CodeMapperException.server("Cannot check for table " + TABLE, e);
+    }
+  }
+
+  public static UmlsCodeCompletionIndex load(DataSource dataSource, String umlsVersion)
+      throws CodeMapperException {
+    long start = System.currentTimeMillis();
+    try (Connection connection = dataSource.getConnection()) {
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false); // needed for streaming with a fetch size
+      String query = "SELECT sab, code, cui, str FROM " + TABLE;
+      List<String[]> rows = new ArrayList<>();
+      Map<String, String> interned = new HashMap<>();
+      try (PreparedStatement statement = connection.prepareStatement(query)) {
+        statement.setFetchSize(FETCH_SIZE);
+        try (ResultSet result = statement.executeQuery()) {
+          while (result.next()) {
+            String sab = interned.computeIfAbsent(result.getString(1), s -> s);
+            rows.add(
+                new String[] {sab, result.getString(2), result.getString(3), result.getString(4)});
+          }
+        }
+      } finally {
+        connection.setAutoCommit(autoCommit);
+      }
+      UmlsCodeCompletionIndex index = new UmlsCodeCompletionIndex(umlsVersion, rows);
+      logger.info(
+          String.format(
+              "Loaded UMLS code completion index %s with %d codes in %ds",
+              umlsVersion, index.codes.length, (System.currentTimeMillis() - start) / 1000));
+      return index;
+    } catch (SQLException e) {
+      throw CodeMapperException.server("Cannot load UMLS code completion index", e);
+    }
+  }
+
+  /**
+   * (Re)create the table code_completions from MRCONSO. The term of a code is its English preferred
+   * term (PT) if it has one, and its first English term otherwise.
+   */
+  public static void createTable(Connection connection) throws SQLException {
+    String[] queries = {
+      "DROP TABLE IF EXISTS " + TABLE,
+      "CREATE TABLE "
+          + TABLE
+          + " AS "
+          + "SELECT DISTINCT ON (sab, code, cui) sab, code, cui, str "
+          + "FROM mrconso "
+          + "WHERE lat = 'ENG' "
+          + "ORDER BY sab, code, cui, (tty = 'PT') DESC, str",
+      "CREATE INDEX " + TABLE + "_ix_sab_code ON " + TABLE + " (sab, code text_pattern_ops)",
+      "CREATE INDEX " + TABLE + "_ix_code ON " + TABLE + " (code text_pattern_ops)",
+      "CREATE INDEX " + TABLE + "_ix_cui ON " + TABLE + " (cui)",
+      "ANALYZE " + TABLE
+    };
+    try (Statement statement = connection.createStatement()) {
+      for (String query : queries) {
+        logger.info(query);
+        statement.execute(query);
+      }
+    }
+  }
+
+  /** Create the table code_completions. Arguments: UMLS database URI, user, password. */
+  public static void main(String[] args) throws Exception {
+    DataSource dataSource = DataSources.unpooledDataSource(args[0], args[1], args[2]);
+    try (Connection connection = dataSource.getConnection()) {
+      createTable(connection);
+    }
+  }
+}
@@ -0,0 +1,434 @@
+// This file is part of CodeMapper.
+//
+// Copyright 2022-2024 VAC4EU - Vaccine monitoring Collaboration for Europe.
+// Copyright 2017-2021 Erasmus Medical Center, Department of Medical Informatics.
+//
+// CodeMapper is free software: you can redistribute it and/or modify it under
+// the terms of the GNU Affero General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option) any
+// later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+// details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+package org.biosemantics.codemapper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.sql.DataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * In-memory index for completing concept names, built from the preferred English names of the UMLS
+ * concepts and the terms of the non-UMLS coding systems, for a single UMLS version.
+ *
+ * <p>The index is a sorted array of all word starts in all terms. Terms are compared
+ * case-insensitively, with non-alphanumeric characters as space. A query finds the range of word
+ * starts for its longest token with binary search, and ranks the terms in that range that contain
+ * all tokens of the query. Each concept has a bit mask of the coding systems it has codes in, for
+ * filtering during the search.
+ */
+public class UmlsCompletionIndex {
+
+  private static Logger logger = LogManager.getLogger(UmlsCompletionIndex.class);
+
+  private static final int FETCH_SIZE = 10_000;
+
+  /** Maximum number of term starts and of word starts that are considered for a query */
+  private static final int MAX_SCAN = 20_000;
+
+  private static final short PREFERRED_NAME = -1;
+
+  private final String umlsVersion;
+  private final Map<String, Integer> codingSystemBits;
+  private final int maskWords;
+
+  // per concept
+  private final String[] cuis;
+  private final String[] names;
+  private final long[] masks; // maskWords per concept
+
+  // per term
+  private final String[] terms;
+  private final int[] termConcepts;
+  private final short[] termCodingSystems; // PREFERRED_NAME or bit of non-UMLS coding system
+
+  // term index << 32 | offset, sorted by the normalized suffix, for the start of the terms and
+  // the start of the other words in the terms
+  private final long[] termStarts;
+  private final long[] wordStarts;
+
+  private UmlsCompletionIndex(
+      String umlsVersion,
+      Map<String, Integer> codingSystemBits,
+      String[] cuis,
+      String[] names,
+      long[] masks,
+      String[] terms,
+      int[] termConcepts,
+      short[] termCodingSystems) {
+    this.umlsVersion = umlsVersion;
+    this.codingSystemBits = codingSystemBits;
+    this.maskWords = maskWords(codingSystemBits.size());
+    this.cuis = cuis;
+    this.names = names;
+    this.masks = masks;
+    this.terms = terms;
+    this.termConcepts = termConcepts;
+    this.termCodingSystems = termCodingSystems;
+    this.termStarts = indexStarts(terms, true);
+    this.wordStarts = indexStarts(terms, false);
+  }
+
+  public String getUmlsVersion() {
+    return umlsVersion;
+  }
+
+  /**
+   * The best matching concepts for the query, with their preferred name, restricted to concepts
+   * with codes in the coding systems if given.
+   */
+  public List<UmlsConcept> getCompletions(String q, Collection<String> codingSystems, int limit) {
+    String query = normalizeQuery(q);
+    if (query.isEmpty()) return new LinkedList<>();
+    String[] tokens = query.split(" ");
+
+    long[] filter = null;
+    if (codingSystems != null && !codingSystems.isEmpty()) {
+      filter = new long[maskWords];
+      for (String codingSystem : codingSystems) {
+        Integer bit = codingSystemBits.get(codingSystem);
+        if (bit != null) filter[bit / 64] |= 1L << (bit % 64);
+      }
+    }
+
+    String longestToken = tokens[0];
+    for (String token : tokens) if (token.length() > longestToken.length()) longestToken = token;
+
+    // rank << 56 | length << 32 | concept, so that sorting orders by rank, length and concept
+    long[] candidates = new long[3 * MAX_SCAN];
+    int numCandidates = 0;
+
+    // terms that start with the query
+    int begin = lowerBound(termStarts, query);
+    int end = Math.min(termStarts.length, begin + MAX_SCAN);
+    for (int ix = begin; ix < end; ix++) {
+      int term = (int) (termStarts[ix] >>> 32);
+      if (!startsWith(terms[term], 0, query)) break;
+      int concept = termConcepts[term];
+      if (filter != null && !matches(term, concept, filter)) continue;
+      int rank = terms[term].length() == query.length() ? 0 : 1;
+      candidates[numCandidates++] = candidate(rank, terms[term].length(), concept);
+    }
+
+    // terms with a word that starts with the longest token
+    for (long[] starts : new long[][] {termStarts, wordStarts}) {
+      begin = lowerBound(starts, longestToken);
+      end = Math.min(starts.length, begin + MAX_SCAN);
+      for (int ix = begin; ix < end; ix++) {
+        int term = (int) (starts[ix] >>> 32);
+        int offset = (int) starts[ix];
+        if (!startsWith(terms[term], offset, longestToken)) break;
+        int concept = termConcepts[term];
+        if (filter != null && !matches(term, concept, filter)) continue;
+        // a single token query is contained in the term, unless it starts the term
+        int rank = tokens.length == 1 ? (offset == 0 ? 1 : 2) : rank(terms[term], query, tokens);
+        if (rank < 2) continue; // negative or found already
+        candidates[numCandidates++] = candidate(rank, terms[term].length(), concept);
+      }
+    }
+
+    Arrays.sort(candidates, 0, numCandidates);
+    Set<Integer> seen = new HashSet<>();
+    List<UmlsConcept> completions = new LinkedList<>();
+    for (int ix = 0; ix < numCandidates && completions.size() < limit; ix++) {
+      int concept = (int) candidates[ix];
+      if (seen.add(concept)) {
+        completions.add(new UmlsConcept(cuis[concept], names[concept]));
+      }
+    }
+    return completions;
+  }
+
+  private static long candidate(int rank, int length, int concept) {
+    return ((long) rank << 56) | ((long) Math.min(length, 0xFFFFFF) << 32) | concept;
+  }
+
+  private boolean matches(int term, int concept, long[] filter) {
+    short codingSystem = termCodingSystems[term];
+    if (codingSystem != PREFERRED_NAME) {
+      return (filter[codingSystem / 64] & (1L << (codingSystem % 64))) != 0;
+    }
+    for (int word = 0; word < maskWords; word++) {
+      if ((masks[concept * maskWords + word] & filter[word]) != 0) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Rank of a term for the query, lower is better: 0 when equal, 1 when the term starts with the
+   * query, 2 when the term contains the query at a word start, 3 when all tokens of the query start
+   * a word in the term, and -1 otherwise.
+   */
+  private static int rank(String term, String query, String[] tokens) {
+    if (startsWith(term, 0, query)) {
+      return term.length() == query.length() ? 0 : 1;
+    }
+    boolean containsQuery = false;
+    boolean[] foundTokens = new boolean[tokens.length];
+    for (int offset = 0; offset < term.length(); offset++) {
+      if (!isWordStart(term, offset)) continue;
+      if (startsWith(term, offset, query)) containsQuery = true;
+      for (int ix = 0; ix < tokens.length; ix++) {
+        if (!foundTokens[ix] && startsWith(term, offset, tokens[ix])) foundTokens[ix] = true;
+      }
+    }
+    if (containsQuery) return 2;
+    for (boolean found : foundTokens) if (!found) return -1;
+    return 3;
+  }
+
+  /** The index of the first start whose suffix is not less than the prefix. */
+  private int lowerBound(long[] starts, String prefix) {
+    int low = 0, high = starts.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int term = (int) (starts[mid] >>> 32);
+      int offset = (int) starts[mid];
+      if (compareSuffix(terms[term], offset, prefix) < 0) low = mid + 1;
+      else high = mid;
+    }
+    return low;
+  }
+
+  private static char normalize(char c) {
+    return Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : ' ';
+  }
+
+  /** Lower case, with single spaces between alphanumeric tokens. */
+  static String normalizeQuery(String q) {
+    StringBuilder sb = new StringBuilder(q.length());
+    for (int ix = 0; ix < q.length(); ix++) {
+      char c = normalize(q.charAt(ix));
+      if (c != ' ' || (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ')) sb.append(c);
+    }
+    return sb.toString().trim();
+  }
+
+  private static boolean isWordStart(String term, int offset) {
+    return normalize(term.charAt(offset)) != ' '
+        && (offset == 0 || normalize(term.charAt(offset - 1)) == ' ');
+  }
+
+  /** The normalized term starts with the normalized prefix at the offset. */
+  private static boolean startsWith(String term, int offset, String prefix) {
+    if (term.length() - offset < prefix.length()) return false;
+    for (int ix = 0; ix < prefix.length(); ix++) {
+      if (normalize(term.charAt(offset + ix)) != prefix.charAt(ix)) return false;
+    }
+    return true;
+  }
+
+  private static int compareSuffix(String term, int offset, String normalized) {
+    int length = Math.min(term.length() - offset, normalized.length());
+    for (int ix = 0; ix < length; ix++) {
+      int cmp = Character.compare(normalize(term.charAt(offset + ix)), normalized.charAt(ix));
+      if (cmp != 0) return cmp;
+    }
+    return Integer.compare(term.length() - offset, normalized.length());
+  }
+
+  private static int compareSuffixes(String term1, int offset1, String term2, int offset2) {
+    int length = Math.min(term1.length() - offset1, term2.length() - offset2);
+    for (int ix = 0; ix < length; ix++) {
+      int cmp =
+          Character.compare(
+              normalize(term1.charAt(offset1 + ix)), normalize(term2.charAt(offset2 + ix)));
+      if (cmp != 0) return cmp;
+    }
+    return Integer.compare(term1.length() - offset1, term2.length() - offset2);
+  }
+
+  /** The sorted starts of the terms (first) or of the other words in the terms (not first). */
+  private static long[] indexStarts(String[] terms, boolean first) {
+    int count = 0;
+    for (String term : terms) {
+      for (int offset = 0; offset < term.length(); offset++) {
+        if (isStart(term, offset, first)) count++;
+      }
+    }
+    long[] starts = new long[count];
+    int ix = 0;
+    for (int term = 0; term < terms.length; term++) {
+      for (int offset = 0; offset < terms[term].length(); offset++) {
+        if (isStart(terms[term], offset, first)) starts[ix++] = ((long) term << 32) | offset;
+      }
+    }
+    sortStarts(starts, new long[count], 0, count, terms);
+    return starts;
+  }
+
+  private static boolean isStart(String term, int offset, boolean first) {
+    return first ? offset == 0 : offset > 0 && isWordStart(term, offset);
+  }
+
+  /** Merge sort of the starts by their suffix, without boxing. */
+  private static void sortStarts(long[] array, long[] buffer, int from, int to, String[] terms) {
+    if (to - from < 2) return;
+    int mid = (from + to) >>> 1;
+    sortStarts(array, buffer, from, mid, terms);
+    sortStarts(array, buffer, mid, to, terms);
+    System.arraycopy(array, from, buffer, from, to - from);
+    int left = from, right = mid, ix = from;
+    while (left < mid && right < to) {
+      long a = buffer[left], b = buffer[right];
+      int cmp = compareSuffixes(terms[(int) (a >>> 32)], (int) a, terms[(int) (b >>> 32)], (int) b);
+      array[ix++] = cmp <= 0 ? buffer[left++] : buffer[right++];
+    }
+    while (left < mid) array[ix++] = buffer[left++];
+    while (right < to) array[ix++] = buffer[right++];
+  }
+
+  private static int maskWords(int numCodingSystems) {
+    return Math.max(1, (numCodingSystems + 63) / 64);
+  }
+
+  public static UmlsCompletionIndex load(
+      DataSource umlsDataSource,
+      DataSource nonUmlsDataSource,
+      String umlsVersion,
+      Collection<String> codingSystems)
+      throws CodeMapperException {
+    long start = System.currentTimeMillis();
+    try (Connection connection = umlsDataSource.getConnection();
+        Connection nonUmlsConnection = nonUmlsDataSource.getConnection()) {
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false); // needed for streaming with a fetch size
+      try {
+        if (codingSystems == null) codingSystems = UmlsConceptStore.loadSabs(connection);
+        Map<String, Integer> codingSystemBits = new HashMap<>();
+        for (String codingSystem : codingSystems) {
+          codingSystemBits.putIfAbsent(codingSystem, codingSystemBits.size());
+        }
+        List<String[]> nonUmlsTerms = loadNonUmlsTerms(nonUmlsConnection);
+        for (String[] term : nonUmlsTerms) {
+          codingSystemBits.putIfAbsent(term[1], codingSystemBits.size());
+        }
+        int maskWords = maskWords(codingSystemBits.size());
+
+        Map<String, Integer> conceptIndices = new HashMap<>();
+        List<String> cuis = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        String query =
+            "SELECT cui, str FROM mrconso "
+                + "WHERE lat = 'ENG' "
+                + "AND ispref = 'Y' "
+                + "AND ts = 'P' "
+                + "AND stt = 'PF' "
+                + "AND suppress != 'Y'";
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+          statement.setFetchSize(FETCH_SIZE);
+          try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+              String cui = result.getString(1);
+              if (conceptIndices.putIfAbsent(cui, cuis.size()) == null) {
+                cuis.add(cui);
+                names.add(result.getString(2));
+              }
+            }
+          }
+        }
+
+        long[] masks = new long[cuis.size() * maskWords];
+        query = "SELECT DISTINCT cui, sab FROM mrconso WHERE sab = ANY(?) AND suppress != 'Y'";
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+          statement.setFetchSize(FETCH_SIZE);
+          statement.setArray(1, connection.createArrayOf("VARCHAR", codingSystems.toArray()));
+          try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+              Integer concept = conceptIndices.get(result.getString(1));
+              if (concept == null) continue;
+              int bit = codingSystemBits.get(result.getString(2));
+              masks[concept * maskWords + bit / 64] |= 1L << (bit % 64);
+            }
+          }
+        }
+
+        List<String> terms = new ArrayList<>(names);
+        List<Integer> termConcepts = new ArrayList<>(cuis.size() + nonUmlsTerms.size());
+        List<Short> termCodingSystems = new ArrayList<>(cuis.size() + nonUmlsTerms.size());
+        for (int concept = 0; concept < cuis.size(); concept++) {
+          termConcepts.add(concept);
+          termCodingSystems.add(PREFERRED_NAME);
+        }
+        for (String[] term : nonUmlsTerms) {
+          Integer concept = conceptIndices.get(term[0]);
+          if (concept == null) continue;
+          int bit = codingSystemBits.get(term[1]);
+          masks[concept * maskWords + bit / 64] |= 1L << (bit % 64);
+          terms.add(term[2]);
+          termConcepts.add(concept);
+          termCodingSystems.add((short) bit);
+        }
+
+        short[] termCodingSystemsArray = new short[termCodingSystems.size()];
+        for (int ix = 0; ix < termCodingSystemsArray.length; ix++) {
+          termCodingSystemsArray[ix] = termCodingSystems.get(ix);
+        }
+        UmlsCompletionIndex index =
+            new UmlsCompletionIndex(
+                umlsVersion,
+                codingSystemBits,
+                cuis.toArray(new String[0]),
+                names.toArray(new String[0]),
+                masks,
+                terms.toArray(new String[0]),
+                termConcepts.stream().mapToInt(Integer::intValue).toArray(),
+                termCodingSystemsArray);
+        logger.info(
+            String.format(
+                "Loaded UMLS completion index %s with %d concepts, %d terms and %d words in %ds",
+                umlsVersion,
+                index.cuis.length,
+                index.terms.length,
+                index.termStarts.length + index.wordStarts.length,
+                (System.currentTimeMillis() - start) / 1000));
+        return index;
+      } finally {
+        connection.setAutoCommit(autoCommit);
+      }
+    } catch (SQLException e) {
+      throw CodeMapperException.server("Cannot load UMLS completion index", e);
+    }
+  }
+
+  /** [cui, voc_abbr, term] of the latest non-UMLS coding systems */
+  private static List<String[]> loadNonUmlsTerms(Connection connection) throws SQLException {
+    String query = "SELECT DISTINCT cui, voc_abbr, term FROM non_umls_latest_codes";
+    List<String[]> res = new ArrayList<>();
+    try (PreparedStatement statement = connection.prepareStatement(query);
+        ResultSet result = statement.executeQuery()) {
+      while (result.next()) {
+        res.add(new String[] {result.getString(1), result.getString(2), result.getString(3)});
+      }
+    }
+    return res;
+  }
+}
@@ -0,0 +1,203 @@
+// This file is part of CodeMapper.
+//
+// Copyright 2022-2024 VAC4EU - Vaccine monitoring Collaboration for Europe.
+// Copyright 2017-2021 Erasmus Medical Center, Department of Medical Informatics.
+//
+// CodeMapper is free software: you can redistribute it and/or modify it under
+// the terms of the GNU Affero General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option) any
+// later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+// details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+package org.biosemantics.codemapper;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Bounded cache of the UMLS part of concepts as returned by {@link UmlsApi#getConcepts}.
+ *
+ * <p>UMLS data does not change for a given UMLS version, so entries are keyed by the UMLS version,
+ * the CUI, and the coding systems and ignored term types that determine the source concepts.
+ * Unknown CUIs are cached too. The cache is bounded by the estimated size of the entries in bytes.
+ */
+public class UmlsConceptCache {
+
+  public interface Loader {
+    Map<String, UmlsConcept> load(Collection<String> cuis) throws CodeMapperException;
+  }
+
+  /** Entry for CUIs that have no concept */
+  private static final UmlsConcept MISSING = new UmlsConcept();
+
+  private final Cache<Key, UmlsConcept> cache;
+
+  public UmlsConceptCache(long maxBytes) {
+    cache =
+        Caffeine.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher((Key key, UmlsConcept concept) -> key.weight() + weight(concept))
+            .recordStats()
+            .build();
+  }
+
+  /**
+   * Get the concepts from the cache, and load the missing concepts with the loader. The returned
+   * concepts are copies that can be modified by the caller.
+   */
+  public Map<String, UmlsConcept> getConcepts(
+      String umlsVersion,
+      Collection<String> cuis,
+      Collection<String> codingSystems,
+      Collection<String> ignoreTermTypes,
+      Loader loader)
+      throws CodeMapperException {
+    String selection =
+        String.join(",", new TreeSet<>(codingSystems))
+            + "|"
+            + String.join(",", new TreeSet<>(ignoreTermTypes));
+    Map<String, Key> keys = new LinkedHashMap<>();
+    for (String cui : cuis) {
+      keys.put(cui, new Key(umlsVersion, cui, selection));
+    }
+    Map<Key, UmlsConcept> cached = cache.getAllPresent(keys.values());
+
+    Map<String, UmlsConcept> concepts = new TreeMap<>();
+    List<String> missing = new ArrayList<>();
+    for (Map.Entry<String, Key> entry : keys.entrySet()) {
+      UmlsConcept concept = cached.get(entry.getValue());
+      if (concept == null) {
+        missing.add(entry.getKey());
+      } else if (concept != MISSING) {
+        concepts.put(entry.getKey(), copy(concept));
+      }
+    }
+    if (!missing.isEmpty()) {
+      Map<String, UmlsConcept> loaded = loader.load(missing);
+      for (String cui : missing) {
+        UmlsConcept concept = loaded.get(cui);
+        if (concept == null) {
+          cache.put(keys.get(cui), MISSING);
+        } else {
+          cache.put(keys.get(cui), copy(concept));
+          concepts.put(cui, concept);
+        }
+      }
+    }
+    return concepts;
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /** Statistics of the cache for sizing it. */
+  public Map<String, Object> getStats() {
+    CacheStats stats = cache.stats();
+    Map<String, Object> res = new LinkedHashMap<>();
+    res.put("size", cache.estimatedSize());
+    cache
+        .policy()
+        .eviction()
+        .ifPresent(
+            eviction -> {
+              res.put("weightedSize", eviction.weightedSize().orElse(-1));
+              res.put("maximumWeight", eviction.getMaximum());
+            });
+    res.put("hitCount", stats.hitCount());
+    res.put("missCount", stats.missCount());
+    res.put("hitRate", stats.hitRate());
+    res.put("evictionCount", stats.evictionCount());
+    res.put("evictionWeight", stats.evictionWeight());
+    return res;
+  }
+
+  private static UmlsConcept copy(UmlsConcept concept) {
+    List<SourceConcept> sourceConcepts = new LinkedList<>();
+    for (SourceConcept sourceConcept : concept.getSourceConcepts()) {
+      SourceConcept copy =
+          new SourceConcept(
+              sourceConcept.getCui(),
+              sourceConcept.getCodingSystem(),
+              sourceConcept.getId(),
+              sourceConcept.getPreferredTerm());
+      copy.setTty(sourceConcept.getTty());
+      sourceConcepts.add(copy);
+    }
+    return new UmlsConcept(
+        concept.getCui(),
+        concept.getPreferredName(),
+        concept.getDefinition(),
+        new LinkedList<>(concept.getSemanticTypes()),
+        sourceConcepts);
+  }
+
+  /** Rough estimate of the retained size of a concept in bytes. */
+  private static int weight(UmlsConcept concept) {
+    int weight = 64 + weight(concept.getPreferredName()) + weight(concept.getDefinition());
+    for (String semanticType : concept.getSemanticTypes()) {
+      weight += 32 + weight(semanticType);
+    }
+    for (SourceConcept sourceConcept : concept.getSourceConcepts()) {
+      weight +=
+          64
+              + weight(sourceConcept.getId())
+              + weight(sourceConcept.getPreferredTerm())
+              + weight(sourceConcept.getTty());
+    }
+    return weight;
+  }
+
+  private static int weight(String str) {
+    return str == null ? 0 : 40 + str.length();
+  }
+
+  private static class Key {
+    final String umlsVersion;
+    final String cui;
+    final String selection;
+
+    Key(String umlsVersion, String cui, String selection) {
+      this.umlsVersion = umlsVersion;
+      this.cui = cui;
+      this.selection = selection;
+    }
+
+    /** The selection string is shared by the keys of one request. */
+    int weight() {
+      return 32 + UmlsConceptCache.weight(cui);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(umlsVersion, cui, selection);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) return true;
+      if (!(obj instanceof Key)) return false;
+      Key other = (Key) obj;
+      return Objects.equals(umlsVersion, other.umlsVersion)
+          && cui.equals(other.cui)
+          && selection.equals(other.selection);
+    }
+  }
+}
@@ -0,0 +1,432 @@
+// This file is part of CodeMapper.
+//
+// Copyright 2022-2024 VAC4EU - Vaccine monitoring Collaboration for Europe.
+// Copyright 2017-2021 Erasmus Medical Center, Department of Medical Informatics.
+//
+// CodeMapper is free software: you can redistribute it and/or modify it under
+// the terms of the GNU Affero General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option) any
+// later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+// details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+package org.biosemantics.codemapper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.sql.DataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Read-only, in-memory copy of the parts of MRCONSO, MRDEF and MRSTY that are served by {@link
+ * UmlsApi#getConcepts}, for a single UMLS version.
+ *
+ * <p>Concepts are indexed by the numeric part of their CUI in a sorted int array, all other data
+ * lives in parallel arrays with interned strings for the small vocabularies (SAB, TTY, TUI).
+ */
+public class UmlsConceptStore {
+
+  private static Logger logger = LogManager.getLogger(UmlsConceptStore.class);
+
+  private static final int FETCH_SIZE = 10_000;
+
+  private final String umlsVersion;
+  private final Set<String> sabs;
+
+  // per concept, sorted by cui
+  private final int[] cuis;
+  private final String[] preferredNames;
+  private final String[] definitions;
+  private final int[] atomOffsets; // cuis.length + 1
+  private final int[] semanticTypeOffsets; // cuis.length + 1
+
+  // per atom, sorted by cui, sab, code, str
+  private final String[] atomSabs;
+  private final String[] atomCodes;
+  private final String[] atomStrs;
+  private final String[] atomTtys;
+
+  private final String[] semanticTypes;
+
+  private UmlsConceptStore(
+      String umlsVersion,
+      Set<String> sabs,
+      int[] cuis,
+      String[] preferredNames,
+      String[] definitions,
+      int[] atomOffsets,
+      int[] semanticTypeOffsets,
+      String[] atomSabs,
+      String[] atomCodes,
+      String[] atomStrs,
+      String[] atomTtys,
+      String[] semanticTypes) {
+    this.umlsVersion = umlsVersion;
+    this.sabs = sabs;
+    this.cuis = cuis;
+    this.preferredNames = preferredNames;
+    this.definitions = definitions;
+    this.atomOffsets = atomOffsets;
+    this.semanticTypeOffsets = semanticTypeOffsets;
+    this.atomSabs = atomSabs;
+    this.atomCodes = atomCodes;
+    this.atomStrs = atomStrs;
+    this.atomTtys = atomTtys;
+    this.semanticTypes = semanticTypes;
+  }
+
+  public String getUmlsVersion() {
+    return umlsVersion;
+  }
+
+  public int size() {
+    return cuis.length;
+  }
+
+  /** True if all coding systems are UMLS vocabularies that are held by the store. */
+  public boolean containsAll(Collection<String> codingSystems) {
+    return sabs.containsAll(codingSystems);
+  }
+
+  /** Numeric part of a CUI, or -1 if it is not formatted like a CUI. */
+  static int parseCui(String cui) {
+    if (cui == null || cui.length() < 2 || cui.charAt(0) != 'C') return -1;
+    int res = 0;
+    for (int i = 1; i < cui.length(); i++) {
+      char c = cui.charAt(i);
+      if (c < '0' || c > '9' || res > (Integer.MAX_VALUE - 9) / 10) return -1;
+      res = res * 10 + (c - '0');
+    }
+    return res;
+  }
+
+  /**
+   * Returns the concepts like {@link UmlsApi#getConcepts}, but only with source concepts from the
+   * UMLS. CUIs without any data are left out of the result.
+   */
+  public Map<String, UmlsConcept> getConcepts(
+      Collection<String> cuis,
+      Collection<String> codingSystems,
+      Collection<String> ignoreTermTypes) {
+    Set<String> codingSystems1 = new HashSet<>(codingSystems);
+    Set<String> ignoreTermTypes1 =
+        ignoreTermTypes == null ? Collections.emptySet() : new HashSet<>(ignoreTermTypes);
+    Map<String, UmlsConcept> res = new TreeMap<>();
+    for (String cui : cuis) {
+      int ix = Arrays.binarySearch(this.cuis, parseCui(cui));
+      if (ix < 0) continue;
+      List<SourceConcept> sourceConcepts =
+          codingSystems1.isEmpty()
+              ? new LinkedList<>()
+              : getSourceConcepts(cui, ix, codingSystems1, ignoreTermTypes1);
+      List<String> semanticTypes = new LinkedList<>();
+      for (int j = semanticTypeOffsets[ix]; j < semanticTypeOffsets[ix + 1]; j++)
+        semanticTypes.add(this.semanticTypes[j]);
+      String definition = definitions[ix];
+      String name = preferredNames[ix];
+      if (sourceConcepts.isEmpty()
+          && semanticTypes.isEmpty()
+          && (definition == null || definition.isEmpty())
+          && name == null) continue;
+      res.put(cui, new UmlsConcept(cui, name, definition, semanticTypes, sourceConcepts));
+    }
+    return res;
+  }
+
+  private List<SourceConcept> getSourceConcepts(
+      String cui, int ix, Set<String> codingSystems, Set<String> ignoreTermTypes) {
+    List<SourceConcept> res = new LinkedList<>();
+    SourceConcept current = null;
+    for (int j = atomOffsets[ix]; j < atomOffsets[ix + 1]; j++) {
+      String sab = atomSabs[j];
+      String tty = atomTtys[j];
+      if (!codingSystems.contains(sab) || ignoreTermTypes.contains(tty)) continue;
+      String code = atomCodes[j];
+      String str = atomStrs[j];
+      if (current == null
+          || !sab.equals(current.getCodingSystem())
+          || !code.equals(current.getId())) {
+        current = new SourceConcept(cui, sab, code, str);
+        current.setTty(tty);
+        res.add(current);
+      }
+      if ("PT".equals(tty)) current.setPreferredTerm(str);
+    }
+    return res;
+  }
+
+  /**
+   * Load the store from the UMLS database.
+   *
+   * @param sabs The vocabularies for which atoms are loaded, all if null.
+   * @param codingSystemsWithDefinition The vocabularies of definitions, by priority.
+   */
+  public static UmlsConceptStore load(
+      DataSource dataSource,
+      String umlsVersion,
+      Collection<String> sabs,
+      List<String> codingSystemsWithDefinition)
+      throws CodeMapperException {
+    long start = System.currentTimeMillis();
+    try (Connection connection = dataSource.getConnection()) {
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false); // needed for streaming with a fetch size
+      try {
+        Set<String> allSabs = sabs != null ? new HashSet<>(sabs) : loadSabs(connection);
+        Interner interner = new Interner();
+        Atoms atoms = loadAtoms(connection, allSabs, interner);
+        Strings names = loadPreferredNames(connection);
+        Strings definitions = loadDefinitions(connection, codingSystemsWithDefinition);
+        Strings semanticTypes = loadSemanticTypes(connection, interner);
+        UmlsConceptStore store =
+            merge(umlsVersion, allSabs, atoms, names, definitions, semanticTypes);
+        logger.info(
+            String.format(
+                "Loaded UMLS concept store %s with %d concepts and %d atoms in %ds",
+                umlsVersion,
+                store.cuis.length,
+                store.atomCodes.length,
+                (System.currentTimeMillis() - start) / 1000));
+        return store;
+      } finally {
+        connection.setAutoCommit(autoCommit);
+      }
+    } catch (SQLException e) {
+      throw CodeMapperException.server("Cannot load UMLS concept store", e);
+    }
+  }
+
+  /** The current coding systems in MRSAB */
+  static Set<String> loadSabs(Connection connection) throws SQLException {
+    String query = "SELECT DISTINCT rsab FROM mrsab WHERE curver = 'Y'";
+    Set<String> res = new HashSet<>();
+    try (PreparedStatement statement = connection.prepareStatement(query);
+        ResultSet result = statement.executeQuery()) {
+      while (result.next()) res.add(result.getString(1));
+    }
+    return res;
+  }
+
+  private static Atoms loadAtoms(Connection connection, Set<String> sabs, Interner interner)
+      throws SQLException {
+    String query =
+        "SELECT DISTINCT cui, sab, code, str, tty "
+            + "FROM mrconso "
+            + "WHERE sab = ANY(?) "
+            + "AND suppress != 'Y' "
+            + "ORDER BY cui, sab, code, str";
+    Atoms atoms = new Atoms();
+    try (PreparedStatement statement = connection.prepareStatement(query)) {
+      statement.setFetchSize(FETCH_SIZE);
+      statement.setArray(1, connection.createArrayOf("VARCHAR", sabs.toArray()));
+      try (ResultSet result = statement.executeQuery()) {
+        while (result.next()) {
+          int cui = parseCui(result.getString(1));
+          if (cui < 0) continue;
+          atoms.cuis.add(cui);
+          atoms.sabs.add(interner.intern(result.getString(2)));
+          atoms.codes.add(result.getString(3));
+          atoms.strs.add(result.getString(4));
+          atoms.ttys.add(interner.intern(result.getString(5)));
+        }
+      }
+    }
+    return atoms;
+  }
+
+  private static Strings loadPreferredNames(Connection connection) throws SQLException {
+    String query =
+        "SELECT DISTINCT cui, str FROM mrconso "
+            + "WHERE lat = 'ENG' "
+            + "AND ispref = 'Y' "
+            + "AND ts = 'P' "
+            + "AND stt = 'PF' "
+            + "ORDER BY cui";
+    Strings names = new Strings();
+    try (PreparedStatement statement = connection.prepareStatement(query)) {
+      statement.setFetchSize(FETCH_SIZE);
+      try (ResultSet result = statement.executeQuery()) {
+        while (result.next()) {
+          int cui = parseCui(result.getString(1));
+          if (cui < 0 || names.last() == cui) continue;
+          names.cuis.add(cui);
+          names.values.add(result.getString(2));
+        }
+      }
+    }
+    return names;
+  }
+
+  /** One definition per CUI like in {@code UmlsApi.getDefinitions}. */
+  private static Strings loadDefinitions(
+      Connection connection, List<String> codingSystemsWithDefinition) throws SQLException {
+    String query = "SELECT DISTINCT cui, sab, def FROM mrdef ORDER BY cui";
+    Strings definitions = new Strings();
+    try (PreparedStatement statement = connection.prepareStatement(query)) {
+      statement.setFetchSize(FETCH_SIZE);
+      try (ResultSet result = statement.executeQuery()) {
+        int lastCui = -1;
+        Map<String, String> bySab = new HashMap<>();
+        while (true) {
+          boolean hasNext = result.next();
+          int cui = hasNext ? parseCui(result.getString(1)) : -1;
+          if (cui != lastCui && lastCui >= 0) {
+            String definition = null;
+            for (String sab : codingSystemsWithDefinition)
+              if (bySab.containsKey(sab)) {
+                definition = bySab.get(sab);
+                break;
+              }
+            definitions.cuis.add(lastCui);
+            definitions.values.add(definition);
+            bySab.clear();
+          }
+          if (!hasNext) break;
+          lastCui = cui;
+          if (cui >= 0) bySab.put(result.getString(2), result.getString(3));
+        }
+      }
+    }
+    return definitions;
+  }
+
+  private static Strings loadSemanticTypes(Connection connection, Interner interner)
+      throws SQLException {
+    String query = "SELECT DISTINCT cui, tui FROM mrsty ORDER BY cui, tui";
+    Strings semanticTypes = new Strings();
+    try (PreparedStatement statement = connection.prepareStatement(query)) {
+      statement.setFetchSize(FETCH_SIZE);
+      try (ResultSet result = statement.executeQuery()) {
+        while (result.next()) {
+          int cui = parseCui(result.getString(1));
+          if (cui < 0) continue;
+          semanticTypes.cuis.add(cui);
+          semanticTypes.values.add(interner.intern(result.getString(2)));
+        }
+      }
+    }
+    return semanticTypes;
+  }
+
+  /** Merge the separately loaded, CUI-sorted tables into the arrays of the store. */
+  private static UmlsConceptStore merge(
+      String umlsVersion,
+      Set<String> sabs,
+      Atoms atoms,
+      Strings names,
+      Strings definitions,
+      Strings semanticTypes) {
+    IntList cuis = new IntList();
+    List<String> preferredNames = new ArrayList<>();
+    List<String> definitions1 = new ArrayList<>();
+    IntList atomOffsets = new IntList();
+    IntList semanticTypeOffsets = new IntList();
+    int a = 0, n = 0, d = 0, s = 0;
+    while (a < atoms.cuis.size
+        || n < names.cuis.size
+        || d < definitions.cuis.size
+        || s < semanticTypes.cuis.size) {
+      int cui = Integer.MAX_VALUE;
+      if (a < atoms.cuis.size) cui = Math.min(cui, atoms.cuis.get(a));
+      if (n < names.cuis.size) cui = Math.min(cui, names.cuis.get(n));
+      if (d < definitions.cuis.size) cui = Math.min(cui, definitions.cuis.get(d));
+      if (s < semanticTypes.cuis.size) cui = Math.min(cui, semanticTypes.cuis.get(s));
+      cuis.add(cui);
+      atomOffsets.add(a);
+      while (a < atoms.cuis.size && atoms.cuis.get(a) == cui) a++;
+      semanticTypeOffsets.add(s);
+      while (s < semanticTypes.cuis.size && semanticTypes.cuis.get(s) == cui) s++;
+      if (n < names.cuis.size && names.cuis.get(n) == cui) {
+        preferredNames.add(names.values.get(n++));
+      } else {
+        preferredNames.add(null);
+      }
+      if (d < definitions.cuis.size && definitions.cuis.get(d) == cui) {
+        definitions1.add(definitions.values.get(d++));
+      } else {
+        definitions1.add("");
+      }
+    }
+    atomOffsets.add(a);
+    semanticTypeOffsets.add(s);
+    return new UmlsConceptStore(
+        umlsVersion,
+        sabs,
+        cuis.toArray(),
+        preferredNames.toArray(new String[0]),
+        definitions1.toArray(new String[0]),
+        atomOffsets.toArray(),
+        semanticTypeOffsets.toArray(),
+        atoms.sabs.toArray(new String[0]),
+        atoms.codes.toArray(new String[0]),
+        atoms.strs.toArray(new String[0]),
+        atoms.ttys.toArray(new String[0]),
+        semanticTypes.values.toArray(new String[0]));
+  }
+
+  private static class Atoms {
+    IntList cuis = new IntList();
+    List<String> sabs = new ArrayList<>();
+    List<String> codes = new ArrayList<>();
+    List<String> strs = new ArrayList<>();
+    List<String> ttys = new ArrayList<>();
+  }
+
+  /** CUI-sorted string values. */
+  private static class Strings {
+    IntList cuis = new IntList();
+    List<String> values = new ArrayList<>();
+
+    int last() {
+      return cuis.size == 0 ? -1 : cuis.get(cuis.size - 1);
+    }
+  }
+
+  /** Canonical instances of the few distinct SAB, TTY, and TUI values. */
+  private static class Interner {
+    private Map<String, String> values = new HashMap<>();
+
+    String intern(String value) {
+      String res = values.putIfAbsent(value, value);
+      return res == null ? value : res;
+    }
+  }
+
+  static class IntList {
+    int[] values = new int[1024];
+    int size = 0;
+
+    void add(int value) {
+      if (size == values.length) values = Arrays.copyOf(values, size * 2);
+      values[size++] = value;
+    }
+
+    int get(int ix) {
+      return values[ix];
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -18,9 +18,15 @@
 
 package org.biosemantics.codemapper.descendants;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import org.biosemantics.codemapper.CodeMapperException;
 import org.biosemantics.codemapper.MappingData.Code;
@@ -51,9 +57,20 @@ public class DescendantsApi implements AutoCloseable {
         Collection<String> codes, String codingSystem) throws CodeMapperException;
   }
 
+  /** Creates descendants APIs with connections of their own, which are closed with the API. */
+  public static interface Factory {
+    DescendantsApi createApi() throws CodeMapperException;
+  }
+
+  /** Retrieves the descendants of codes in one vocabulary. */
+  public static interface VocabularyDescender {
+    Descendants getDescendants(String voc, Collection<String> codes) throws CodeMapperException;
+  }
+
   Map<String, SpecificDescender> specificDescenders;
   GeneralDescender generalDescender;
   NonUmlsTargets nonUmls;
+  List<AutoCloseable> resources = new ArrayList<>();
 
   public DescendantsApi(GeneralDescender generalDescender, NonUmlsTargets nonUmls) {
     this.generalDescender = generalDescender;
@@ -61,8 +78,26 @@ public class DescendantsApi implements AutoCloseable {
     this.nonUmls = nonUmls;
   }
 
+  /** Close the resource, like a connection used by the descenders, when the API is closed. */
+  public void closeWith(AutoCloseable resource) {
+    resources.add(resource);
+  }
+
   @Override
-  public void close() throws Exception {}
+  public void close() throws Exception {
+    Exception exception = null;
+    for (int ix = resources.size() - 1; ix >= 0; ix--) {
+      try {
+        resources.get(ix).close();
+      } catch (Exception e) {
+        exception = e;
+      }
+    }
+    resources.clear();
+    if (exception != null) {
+      throw exception;
+    }
+  }
 
   public void add(SpecificDescender specificDescender) {
     this.specificDescenders.put(specificDescender.getCodingSystem(), specificDescender);
@@ -139,4 +174,59 @@ public class DescendantsApi implements AutoCloseable {
     }
     return descendants;
   }
+
+  /**
+   * Run the descender for each vocabulary concurrently on the executor, or on the calling thread if
+   * there is only one vocabulary or no executor. Vocabularies for which the descender fails are
+   * missing in the result, and their exceptions are put in the failures, so that one vocabulary
+   * does not fail the others.
+   */
+  public static Map<String, Descendants> getConcurrently(
+      Map<String, Collection<String>> codesByVoc,
+      ExecutorService executor,
+      VocabularyDescender descender,
+      Map<String, CodeMapperException> failures)
+      throws CodeMapperException {
+    Map<String, Descendants> res = new HashMap<>();
+    if (executor == null || codesByVoc.size() <= 1) {
+      for (Map.Entry<String, Collection<String>> entry : codesByVoc.entrySet()) {
+        try {
+          res.put(entry.getKey(), descender.getDescendants(entry.getKey(), entry.getValue()));
+        } catch (CodeMapperException e) {
+          failures.put(entry.getKey(), e);
+        }
+      }
+      return res;
+    }
+    Map<String, Future<Descendants>> futures = new LinkedHashMap<>();
+    for (Map.Entry<String, Collection<String>> entry : codesByVoc.entrySet()) {
+      String voc = entry.getKey();
+      Collection<String> codes = entry.getValue();
+      futures.put(voc, executor.submit(() -> descender.getDescendants(voc, codes)));
+    }
+    try {
+      for (Map.Entry<String, Future<Descendants>> entry : futures.entrySet()) {
+        String voc = entry.getKey();
+        try {
+          res.put(voc, entry.getValue().get());
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          CodeMapperException exception =
+              cause instanceof CodeMapperException
+                  ? (CodeMapperException) cause
+                  : CodeMapperException.server(
+                      "Cannot get descendants in " + voc,
+                      cause instanceof Exception ? (Exception) cause : e);
+          failures.put(voc, exception);
+        }
+      }
+    } catch (InterruptedException e) {
+      for (Future<Descendants> future : futures.values()) {
+        future.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+      throw CodeMapperException.server("retrieval of descendants was interrupted", e);
+    }
+    return res;
+  }
 }
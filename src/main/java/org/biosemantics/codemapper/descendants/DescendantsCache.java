@@ -3,15 +3,37 @@ package org.biosemantics.codemapper.descendants;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.mchange.v2.c3p0.DataSources;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 import javax.sql.DataSource;
 import org.apache.logging.log4j.LogManager;
@@ -19,13 +41,28 @@ import org.apache.logging.log4j.Logger;
 import org.biosemantics.codemapper.CodeMapperException;
 import org.biosemantics.codemapper.CodingSystem;
 import org.biosemantics.codemapper.MappingData.Code;
-import org.biosemantics.codemapper.UmlsApi;
 import org.biosemantics.codemapper.descendants.DescendantsApi.Descendants;
 
 public class DescendantsCache implements AutoCloseable {
 
   private static Logger logger = LogManager.getLogger(DescendantsCache.class);
 
+  private static final int MIGRATE_BATCH_SIZE = 1000;
+
+  // Maximum number of rows per call of set_cached_descendants_batch
+  private static final int WRITE_BATCH_SIZE = 1000;
+
+  // Maximum number of pending asynchronous writes, before requests write synchronously
+  private static final int WRITE_QUEUE_SIZE = 32;
+
+  // Interval of updating last_access of the rows that were read in the meantime
+  private static final int TOUCH_PERIOD_SECONDS = 60;
+
+  // Legacy JSON encoding of the column descendants, which is replaced by descendants_bin
+  private static final ObjectReader JSON_READER =
+      new ObjectMapper().readerFor(new TypeReference<List<CachedCode>>() {});
+  private static final ObjectWriter JSON_WRITER = new ObjectMapper().writer();
+
   static class CachedCode {
     String id;
     String term;
@@ -61,24 +98,325 @@ public class DescendantsCache implements AutoCloseable {
     }
   }
 
+  static class Key {
+    final String sab;
+    final String ver;
+    final String code;
+
+    Key(String sab, String ver, String code) {
+      this.sab = sab;
+      this.ver = ver;
+      this.code = code;
+    }
+
+    int weight() {
+      return 64 + 2 * (sab.length() + ver.length() + code.length());
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(sab, ver, code);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) return true;
+      if (obj == null || getClass() != obj.getClass()) return false;
+      Key other = (Key) obj;
+      return sab.equals(other.sab) && ver.equals(other.ver) && code.equals(other.code);
+    }
+  }
+
+  /** Provides the current version of each coding system, to evict descendants of old versions. */
+  public static interface VersionsProvider {
+    Map<String, String> getVersions() throws CodeMapperException;
+  }
+
+  /** Number and stored size of evicted rows. */
+  public static class Eviction {
+    public final long rows;
+    public final long bytes;
+
+    Eviction(long rows, long bytes) {
+      this.rows = rows;
+      this.bytes = bytes;
+    }
+  }
+
   public static class Config {
 
     DataSource connectionPool;
+    ExecutorService writer;
+    // Retrieves the descendants of the vocabularies concurrently (null to retrieve sequentially)
+    ExecutorService vocabularies;
+    // Encoded descendants, in front of the table cached_descendants (null if disabled)
+    Cache<Key, byte[]> memory;
+    ScheduledExecutorService scheduler;
+    // Rows that were read since the last update of last_access
+    final Set<Key> touches = ConcurrentHashMap.newKeySet();
+    volatile boolean touchesScheduled = false;
+    final LongAdder databaseHits = new LongAdder();
+    final LongAdder databaseMisses = new LongAdder();
+    final LongAdder evictionRuns = new LongAdder();
+    final LongAdder evictedStaleRows = new LongAdder();
+    final LongAdder evictedStaleBytes = new LongAdder();
+    final LongAdder evictedRows = new LongAdder();
+    final LongAdder evictedBytes = new LongAdder();
+    final AtomicLong lastEviction = new AtomicLong();
 
     public Config(DataSource connectionPool) {
       this.connectionPool = connectionPool;
     }
 
+    /**
+     * Retrieve the descendants of up to the given number of vocabularies concurrently, for all
+     * requests together.
+     */
+    public void setConcurrency(int concurrency) {
+      if (vocabularies != null) {
+        vocabularies.shutdown();
+      }
+      vocabularies =
+          Executors.newFixedThreadPool(
+              concurrency,
+              runnable -> {
+                Thread thread = new Thread(runnable, "codemapper-descendants");
+                thread.setDaemon(true);
+                return thread;
+              });
+    }
+
+    /** Keep the recently used descendants in memory, bounded by their encoded size in bytes. */
+    public void setMemoryCache(long maxBytes) {
+      memory =
+          Caffeine.newBuilder()
+              .maximumWeight(maxBytes)
+              .weigher((Key key, byte[] encoded) -> key.weight() + 16 + encoded.length)
+              .recordStats()
+              .build();
+    }
+
+    /**
+     * Update last_access of the rows that were read periodically in one statement, instead of with
+     * every read.
+     */
+    public synchronized void scheduleTouches() {
+      if (touchesScheduled) {
+        return;
+      }
+      touchesScheduled = true;
+      getScheduler()
+          .scheduleWithFixedDelay(
+              () -> {
+                try (Connection connection = connectionPool.getConnection()) {
+                  flushTouches(connection);
+                } catch (SQLException | CodeMapperException e) {
+                  logger.error("Cannot update last access of cached descendants", e);
+                }
+              },
+              TOUCH_PERIOD_SECONDS,
+              TOUCH_PERIOD_SECONDS,
+              TimeUnit.SECONDS);
+    }
+
+    /**
+     * Periodically evict the cached descendants of coding system versions that are not current
+     * anymore, and the least recently used rows beyond the maximum number of rows or stored bytes.
+     */
+    public void scheduleEviction(
+        long periodMinutes, int maxRows, long maxBytes, VersionsProvider versions) {
+      getScheduler()
+          .scheduleWithFixedDelay(
+              () -> {
+                try (Connection connection = connectionPool.getConnection()) {
+                  evict(connection, maxRows, maxBytes, versions);
+                } catch (SQLException | CodeMapperException e) {
+                  logger.error("Cannot evict cached descendants", e);
+                }
+              },
+              periodMinutes,
+              periodMinutes,
+              TimeUnit.MINUTES);
+    }
+
+    void evict(Connection connection, int maxRows, long maxBytes, VersionsProvider versions)
+        throws CodeMapperException {
+      Map<String, String> current = versions.getVersions();
+      Eviction stale = new Eviction(0, 0);
+      // Don't take an empty result for the absence of any current versions
+      if (!current.isEmpty()) {
+        List<String> sabs = new ArrayList<>(current.keySet());
+        List<String> vers = sabs.stream().map(current::get).collect(Collectors.toList());
+        String query =
+            "SELECT deleted_rows, deleted_bytes FROM evict_stale_cached_descendants(?, ?)";
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+          statement.setArray(1, connection.createArrayOf("varchar", sabs.toArray()));
+          statement.setArray(2, connection.createArrayOf("varchar", vers.toArray()));
+          stale = queryEviction(statement);
+        } catch (SQLException e) {
+          throw CodeMapperException.server("could not evict stale cached descendants", e);
+        }
+      }
+      Eviction bySize;
+      String query =
+          "SELECT deleted_rows, deleted_bytes FROM evict_cached_descendants_by_size(?, ?)";
+      try (PreparedStatement statement = connection.prepareStatement(query)) {
+        statement.setInt(1, maxRows);
+        statement.setLong(2, maxBytes);
+        bySize = queryEviction(statement);
+      } catch (SQLException e) {
+        throw CodeMapperException.server("could not evict cached descendants", e);
+      }
+      evictionRuns.increment();
+      evictedStaleRows.add(stale.rows);
+      evictedStaleBytes.add(stale.bytes);
+      evictedRows.add(bySize.rows);
+      evictedBytes.add(bySize.bytes);
+      lastEviction.set(System.currentTimeMillis());
+      logger.info(
+          String.format(
+              "Evicted cached descendants: %d stale rows (%d bytes), %d rows by size (%d bytes)",
+              stale.rows, stale.bytes, bySize.rows, bySize.bytes));
+    }
+
+    private static Eviction queryEviction(PreparedStatement statement) throws SQLException {
+      try (ResultSet results = statement.executeQuery()) {
+        results.next();
+        return new Eviction(results.getLong(1), results.getLong(2));
+      }
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+      if (scheduler == null) {
+        scheduler =
+            Executors.newSingleThreadScheduledExecutor(
+                runnable -> {
+                  Thread thread = new Thread(runnable, "codemapper-descendants-maintenance");
+                  thread.setDaemon(true);
+                  return thread;
+                });
+      }
+      return scheduler;
+    }
+
+    void touch(Connection connection, Collection<Key> keys) throws CodeMapperException {
+      touches.addAll(keys);
+      if (!touchesScheduled) {
+        flushTouches(connection);
+      }
+    }
+
+    void flushTouches(Connection connection) throws CodeMapperException {
+      List<String> sabs = new ArrayList<>();
+      List<String> vers = new ArrayList<>();
+      List<String> codes = new ArrayList<>();
+      for (Iterator<Key> iter = touches.iterator(); iter.hasNext(); ) {
+        Key key = iter.next();
+        iter.remove();
+        sabs.add(key.sab);
+        vers.add(key.ver);
+        codes.add(key.code);
+      }
+      if (codes.isEmpty()) {
+        return;
+      }
+      String query = "SELECT touch_cached_descendants(?, ?, ?)";
+      try (PreparedStatement statement = connection.prepareStatement(query)) {
+        statement.setArray(1, connection.createArrayOf("varchar", sabs.toArray()));
+        statement.setArray(2, connection.createArrayOf("varchar", vers.toArray()));
+        statement.setArray(3, connection.createArrayOf("varchar", codes.toArray()));
+        statement.execute();
+      } catch (SQLException e) {
+        throw CodeMapperException.server("could not update last access of cached descendants", e);
+      }
+    }
+
+    /** Statistics of the in-memory tier, or null if it is disabled. */
+    public Map<String, Object> getMemoryStats() {
+      if (memory == null) {
+        return null;
+      }
+      CacheStats stats = memory.stats();
+      Map<String, Object> res = new LinkedHashMap<>();
+      res.put("size", memory.estimatedSize());
+      memory
+          .policy()
+          .eviction()
+          .ifPresent(
+              eviction -> {
+                res.put("weightedSize", eviction.weightedSize().orElse(-1));
+                res.put("maximumWeight", eviction.getMaximum());
+              });
+      res.put("hitCount", stats.hitCount());
+      res.put("missCount", stats.missCount());
+      res.put("hitRate", stats.hitRate());
+      res.put("evictionCount", stats.evictionCount());
+      res.put("evictionWeight", stats.evictionWeight());
+      return res;
+    }
+
+    /** Statistics of the eviction of rows from the table, since the start. */
+    public Map<String, Object> getEvictionStats() {
+      Map<String, Object> res = new LinkedHashMap<>();
+      res.put("runs", evictionRuns.sum());
+      res.put("lastRun", lastEviction.get());
+      res.put("staleRows", evictedStaleRows.sum());
+      res.put("staleBytes", evictedStaleBytes.sum());
+      res.put("rows", evictedRows.sum());
+      res.put("bytes", evictedBytes.sum());
+      return res;
+    }
+
+    /** Statistics of the table tier, for the codes that were not in memory. */
+    public Map<String, Object> getDatabaseStats() {
+      long hits = databaseHits.sum();
+      long misses = databaseMisses.sum();
+      Map<String, Object> res = new LinkedHashMap<>();
+      res.put("hitCount", hits);
+      res.put("missCount", misses);
+      res.put("hitRate", hits + misses == 0 ? 1.0 : (double) hits / (hits + misses));
+      res.put("pendingTouches", touches.size());
+      return res;
+    }
+
+    /**
+     * Write missed descendants to the cache in the background on a connection of its own, so that
+     * requests don't wait for the cache to be populated. When the background writer falls behind,
+     * the requests write the descendants themselves.
+     */
+    public void setAsyncWrites(boolean asyncWrites) {
+      if (asyncWrites && writer == null) {
+        writer =
+            new ThreadPoolExecutor(
+                1,
+                1,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(WRITE_QUEUE_SIZE),
+                runnable -> {
+                  Thread thread = new Thread(runnable, "codemapper-descendants-cache");
+                  thread.setDaemon(true);
+                  return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+      } else if (!asyncWrites && writer != null) {
+        writer.shutdown();
+        writer = null;
+      }
+    }
+
     @SuppressWarnings("resource")
     public DescendantsCache createApi() throws SQLException {
-      return new DescendantsCache(connectionPool.getConnection());
+      return new DescendantsCache(connectionPool.getConnection(), this);
     }
   }
 
   Connection connection;
+  Config config;
 
-  DescendantsCache(Connection connection) {
+  DescendantsCache(Connection connection, Config config) {
     this.connection = connection;
+    this.config = config;
   }
 
   @Override
@@ -86,31 +424,58 @@ public class DescendantsCache implements AutoCloseable {
     connection.close();
   }
 
+  /**
+   * Cached descendants of the codes, from memory or from the table cached_descendants. Codes
+   * without cached descendants are missing in the result.
+   */
   public Descendants getDescendants(String voc, String vocVersion, Collection<String> codes)
       throws CodeMapperException {
-    String query = "SELECT code, descendants FROM get_cached_descendants(?, ?, ?)";
-    try (PreparedStatement statement = connection.prepareStatement(query)) {
-      statement.setString(1, voc);
-      statement.setString(2, vocVersion);
-      statement.setArray(3, connection.createArrayOf("varchar", codes.toArray()));
-      Descendants result = new Descendants();
-      try (ResultSet results = statement.executeQuery()) {
-        while (results.next()) {
-          String code = results.getString(1);
-          String descendantsJson = results.getString(2);
-          ObjectMapper mapper = new ObjectMapper();
-          Collection<Code> cachedCodes =
-              mapper.readValue(descendantsJson, new TypeReference<Collection<CachedCode>>() {})
-                  .stream()
-                  .map(CachedCode::toCode)
-                  .collect(Collectors.toList());
-          result.put(code, cachedCodes);
+    Descendants result = new Descendants();
+    List<Key> read = new ArrayList<>();
+    List<String> missing = new ArrayList<>();
+    for (String code : codes) {
+      Key key = new Key(voc, vocVersion, code);
+      byte[] encoded = config.memory != null ? config.memory.getIfPresent(key) : null;
+      if (encoded != null) {
+        result.put(code, DescendantsCodec.decode(encoded));
+        read.add(key);
+      } else {
+        missing.add(code);
+      }
+    }
+    if (!missing.isEmpty()) {
+      String query =
+          "SELECT code, descendants, descendants_bin FROM get_cached_descendants(?, ?, ?)";
+      try (PreparedStatement statement = connection.prepareStatement(query)) {
+        statement.setString(1, voc);
+        statement.setString(2, vocVersion);
+        statement.setArray(3, connection.createArrayOf("varchar", missing.toArray()));
+        int hits = 0;
+        try (ResultSet results = statement.executeQuery()) {
+          while (results.next()) {
+            String code = results.getString(1);
+            byte[] encoded = results.getBytes(3);
+            if (encoded == null) {
+              // Not yet migrated, see migrate()
+              encoded = DescendantsCodec.encode(decodeJson(results.getString(2)));
+            }
+            result.put(code, DescendantsCodec.decode(encoded));
+            Key key = new Key(voc, vocVersion, code);
+            if (config.memory != null) {
+              config.memory.put(key, encoded);
+            }
+            read.add(key);
+            hits++;
+          }
         }
+        config.databaseHits.add(hits);
+        config.databaseMisses.add(missing.size() - hits);
+      } catch (SQLException | JsonProcessingException e) {
+        throw CodeMapperException.server("cannot get cached descendants", e);
       }
-      return result;
-    } catch (SQLException | JsonProcessingException e) {
-      throw CodeMapperException.server("cannot get cached descendants", e);
     }
+    config.touch(connection, read);
+    return result;
   }
 
   public void setDescendants(
@@ -120,24 +485,128 @@ public class DescendantsCache implements AutoCloseable {
       String code,
       Collection<Code> descendants)
       throws CodeMapperException {
-    Collection<CachedCode> cachedCodes =
-        descendants.stream().map(c -> new CachedCode(c)).collect(Collectors.toList());
-    String query = "SELECT set_cached_descendants(?, ?, ?, ?::TEXT)";
-    try {
-      ObjectMapper mapper = new ObjectMapper();
-      String descendendsJson = mapper.writeValueAsString(cachedCodes);
-      try (PreparedStatement statement = connection.prepareStatement(query)) {
+    String query = "SELECT set_cached_descendants(?, ?, ?, ?::BYTEA)";
+    try (PreparedStatement statement = connection.prepareStatement(query)) {
+      statement.setString(1, voc);
+      statement.setString(2, vocVersion);
+      statement.setString(3, code);
+      byte[] encoded = DescendantsCodec.encode(descendants);
+      statement.setBytes(4, encoded);
+      statement.execute();
+      if (config.memory != null) {
+        config.memory.put(new Key(voc, vocVersion, code), encoded);
+      }
+    } catch (SQLException e) {
+      throw CodeMapperException.server("could not cache descendants", e);
+    }
+  }
+
+  /** Upsert the encoded descendants in batches, instead of a round trip per code. */
+  private static void writeBatch(
+      Connection connection,
+      String voc,
+      String vocVersion,
+      List<String> codes,
+      List<byte[]> encoded)
+      throws CodeMapperException {
+    String query = "SELECT set_cached_descendants_batch(?, ?, ?, ?)";
+    try (PreparedStatement statement = connection.prepareStatement(query)) {
+      for (int start = 0; start < codes.size(); start += WRITE_BATCH_SIZE) {
+        int end = Math.min(start + WRITE_BATCH_SIZE, codes.size());
         statement.setString(1, voc);
         statement.setString(2, vocVersion);
-        statement.setString(3, code);
-        statement.setString(4, descendendsJson);
+        statement.setArray(
+            3, connection.createArrayOf("varchar", codes.subList(start, end).toArray()));
+        statement.setArray(
+            4,
+            connection.createArrayOf("bytea", encoded.subList(start, end).toArray(new byte[0][])));
         statement.execute();
       }
-    } catch (SQLException | JsonProcessingException e) {
+    } catch (SQLException e) {
       throw CodeMapperException.server("could not cache descendants", e);
     }
   }
 
+  /**
+   * Cache the descendants of the codes, in the background if asynchronous writes are enabled. The
+   * descendants are encoded right away, so the caller is free to modify them afterwards. The codes
+   * are written in sorted order, so that concurrent batches lock the rows in the same order and
+   * cannot deadlock.
+   */
+  void cacheDescendants(String voc, String vocVersion, Map<String, Collection<Code>> descendants)
+      throws CodeMapperException {
+    List<String> codes = new ArrayList<>(descendants.keySet());
+    Collections.sort(codes);
+    List<byte[]> encoded = new ArrayList<>(codes.size());
+    for (String code : codes) {
+      encoded.add(DescendantsCodec.encode(descendants.get(code)));
+    }
+    if (config.memory != null) {
+      for (int ix = 0; ix < codes.size(); ix++) {
+        config.memory.put(new Key(voc, vocVersion, codes.get(ix)), encoded.get(ix));
+      }
+    }
+    if (config.writer == null) {
+      writeBatch(connection, voc, vocVersion, codes, encoded);
+      return;
+    }
+    config.writer.execute(
+        () -> {
+          try (Connection connection = config.connectionPool.getConnection()) {
+            writeBatch(connection, voc, vocVersion, codes, encoded);
+          } catch (SQLException | CodeMapperException e) {
+            logger.error("Cannot cache descendants of " + codes.size() + " codes in " + voc, e);
+          }
+        });
+  }
+
+  static List<Code> decodeJson(String json) throws JsonProcessingException {
+    List<CachedCode> cachedCodes = JSON_READER.readValue(json);
+    return cachedCodes.stream().map(CachedCode::toCode).collect(Collectors.toList());
+  }
+
+  static String encodeJson(Collection<Code> codes) throws JsonProcessingException {
+    return JSON_WRITER.writeValueAsString(
+        codes.stream().map(CachedCode::new).collect(Collectors.toList()));
+  }
+
+  /**
+   * Convert the cached descendants in the legacy JSON column to the binary column, in batches.
+   * Returns the number of converted rows.
+   */
+  public int migrate() throws CodeMapperException {
+    String select =
+        "SELECT id, descendants FROM cached_descendants "
+            + "WHERE descendants_bin IS NULL AND descendants IS NOT NULL LIMIT ?";
+    String update =
+        "UPDATE cached_descendants SET descendants_bin = ?, descendants = NULL WHERE id = ?";
+    int count = 0;
+    try (PreparedStatement selectStatement = connection.prepareStatement(select);
+        PreparedStatement updateStatement = connection.prepareStatement(update)) {
+      selectStatement.setInt(1, MIGRATE_BATCH_SIZE);
+      while (true) {
+        int batch = 0;
+        try (ResultSet results = selectStatement.executeQuery()) {
+          while (results.next()) {
+            updateStatement.setBytes(1, DescendantsCodec.encode(decodeJson(results.getString(2))));
+            updateStatement.setInt(2, results.getInt(1));
+            updateStatement.addBatch();
+            batch++;
+          }
+        }
+        if (batch == 0) {
+          break;
+        }
+        updateStatement.executeBatch();
+        count += batch;
+        logger.info("Migrated cached descendants: " + count);
+      }
+    } catch (SQLException | JsonProcessingException e) {
+      throw CodeMapperException.server("could not migrate cached descendants", e);
+    }
+    return count;
+  }
+
   public void evict(int keep) throws CodeMapperException {
     String query = "SELECT evict_cached_descendants(?)";
     try (PreparedStatement statement = connection.prepareStatement(query)) {
@@ -148,35 +617,75 @@ public class DescendantsCache implements AutoCloseable {
     }
   }
 
+  /**
+   * Descendants of the codes by vocabulary, from the cache or from descendants APIs of the factory.
+   * The vocabularies are retrieved concurrently, each with connections of its own. Vocabularies
+   * that fail are missing in the result, and their exceptions are put in the failures.
+   */
   public Map<String, Descendants> getDescendantsAndCache(
       Map<String, Collection<String>> codesByVoc,
       Map<String, CodingSystem> codingSystems,
-      DescendantsApi descendantsApi,
-      UmlsApi umlsApi)
+      DescendantsApi.Factory descendantsApis,
+      Map<String, CodeMapperException> failures)
       throws CodeMapperException {
-    Map<String, Descendants> res = new HashMap<>();
+    Map<String, Collection<String>> known = new HashMap<>();
     for (String voc : codesByVoc.keySet()) {
-      CodingSystem vocabulary = codingSystems.get(voc);
-      if (vocabulary == null) {
+      if (codingSystems.containsKey(voc)) {
+        known.put(voc, codesByVoc.get(voc));
+      } else {
         logger.error("Cannot find descendant codes, unknown vocabulary: " + voc);
-        continue;
-      }
-      Collection<String> codes = codesByVoc.get(voc);
-      String vocVersion = vocabulary.getVersion();
-      Descendants descendants = getDescendants(voc, vocVersion, codes);
-      Collection<String> missing = new HashSet<>(codes);
-      missing.removeAll(descendants.keySet());
-      if (!missing.isEmpty()) {
-        Descendants missedDescendants = descendantsApi.getCodeDescendants(voc, missing);
-        descendants.putAll(missedDescendants);
-        for (String code : missing) {
-          Collection<Code> cacheDescendants =
-              missedDescendants.getOrDefault(code, new LinkedList<>());
-          setDescendants(connection, voc, vocVersion, code, cacheDescendants);
-        }
       }
-      res.put(voc, descendants);
     }
-    return res;
+    Thread caller = Thread.currentThread();
+    return DescendantsApi.getConcurrently(
+        known,
+        config.vocabularies,
+        (voc, codes) -> {
+          String vocVersion = codingSystems.get(voc).getVersion();
+          if (Thread.currentThread() == caller) {
+            return getDescendantsAndCache(voc, vocVersion, codes, descendantsApis);
+          }
+          try (DescendantsCache cache = config.createApi()) {
+            return cache.getDescendantsAndCache(voc, vocVersion, codes, descendantsApis);
+          } catch (CodeMapperException e) {
+            throw e;
+          } catch (Exception e) {
+            throw CodeMapperException.server("Cannot connect to descendants cache", e);
+          }
+        },
+        failures);
+  }
+
+  private Descendants getDescendantsAndCache(
+      String voc, String vocVersion, Collection<String> codes, DescendantsApi.Factory factory)
+      throws CodeMapperException {
+    Descendants descendants = getDescendants(voc, vocVersion, codes);
+    Collection<String> missing = new HashSet<>(codes);
+    missing.removeAll(descendants.keySet());
+    if (!missing.isEmpty()) {
+      Descendants missedDescendants;
+      try (DescendantsApi descendantsApi = factory.createApi()) {
+        missedDescendants = descendantsApi.getCodeDescendants(voc, missing);
+      } catch (CodeMapperException e) {
+        throw e;
+      } catch (Exception e) {
+        throw CodeMapperException.server("Cannot close descendants API", e);
+      }
+      Map<String, Collection<Code>> cacheDescendants = new HashMap<>();
+      for (String code : missing) {
+        cacheDescendants.put(code, missedDescendants.getOrDefault(code, new LinkedList<>()));
+      }
+      cacheDescendants(voc, vocVersion, cacheDescendants);
+      descendants.putAll(missedDescendants);
+    }
+    return descendants;
+  }
+
+  /** Migrate the cached descendants to the binary encoding, with arguments URI USER PASSWORD. */
+  public static void main(String[] args) throws Exception {
+    DataSource dataSource = DataSources.unpooledDataSource(args[0], args[1], args[2]);
+    try (DescendantsCache cache = new DescendantsCache.Config(dataSource).createApi()) {
+      cache.migrate();
+    }
   }
 }
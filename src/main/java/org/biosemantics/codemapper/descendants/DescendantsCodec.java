@@ -0,0 +1,179 @@
+// This file is part of CodeMapper.
+//
+// Copyright 2022-2024 VAC4EU - Vaccine monitoring Collaboration for Europe.
+// Copyright 2017-2021 Erasmus Medical Center, Department of Medical Informatics.
+//
+// CodeMapper is free software: you can redistribute it and/or modify it under
+// the terms of the GNU Affero General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option) any
+// later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+// details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+package org.biosemantics.codemapper.descendants;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import org.biosemantics.codemapper.MappingData.Code;
+import org.biosemantics.codemapper.descendants.DescendantsCache.CachedCode;
+
+/**
+ * Binary encoding of the descendants of a code in the column {@code
+ * cached_descendants.descendants_bin}.
+ *
+ * <p>The encoding is a version byte and the number of codes, followed by each code as the length of
+ * the UTF-8 prefix that the id shares with the id of the previous code, the remaining bytes of the
+ * id, and the term (null if its length is 0, the length is stored plus one otherwise). All numbers
+ * are unsigned variable-length integers of 7 bits per byte. Descendants are mostly sorted, so the
+ * shared prefixes of the ids keep the encoding compact.
+ */
+public class DescendantsCodec {
+
+  private static final byte VERSION = 1;
+
+  private DescendantsCodec() {}
+
+  public static byte[] encode(Collection<Code> codes) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream(16 + codes.size() * 48);
+    output.write(VERSION);
+    writeVarint(output, codes.size());
+    byte[] previous = new byte[0];
+    for (Code code : codes) {
+      byte[] id = code.getId().getBytes(StandardCharsets.UTF_8);
+      int shared = 0;
+      int max = Math.min(previous.length, id.length);
+      while (shared < max && previous[shared] == id[shared]) {
+        shared++;
+      }
+      writeVarint(output, shared);
+      writeVarint(output, id.length - shared);
+      output.write(id, shared, id.length - shared);
+      if (code.getTerm() == null) {
+        writeVarint(output, 0);
+      } else {
+        byte[] term = code.getTerm().getBytes(StandardCharsets.UTF_8);
+        writeVarint(output, term.length + 1);
+        output.write(term, 0, term.length);
+      }
+      previous = id;
+    }
+    return output.toByteArray();
+  }
+
+  public static List<Code> decode(byte[] bytes) {
+    if (bytes.length == 0 || bytes[0] != VERSION) {
+      throw new IllegalArgumentException("Invalid descendants encoding");
+    }
+    int[] pos = {1};
+    int size = readVarint(bytes, pos);
+    List<Code> codes = new ArrayList<>(size);
+    byte[] id = new byte[64];
+    for (int ix = 0; ix < size; ix++) {
+      int shared = readVarint(bytes, pos);
+      int suffix = readVarint(bytes, pos);
+      if (shared + suffix > id.length) {
+        id = Arrays.copyOf(id, Math.max(shared + suffix, 2 * id.length));
+      }
+      System.arraycopy(bytes, pos[0], id, shared, suffix);
+      pos[0] += suffix;
+      String term = null;
+      int termLength = readVarint(bytes, pos);
+      if (termLength > 0) {
+        term = new String(bytes, pos[0], termLength - 1, StandardCharsets.UTF_8);
+        pos[0] += termLength - 1;
+      }
+      Code code = new Code();
+      code.setId(new String(id, 0, shared + suffix, StandardCharsets.UTF_8));
+      code.setTerm(term);
+      codes.add(code);
+    }
+    return codes;
+  }
+
+  private static void writeVarint(ByteArrayOutputStream output, int value) {
+    while ((value & ~0x7f) != 0) {
+      output.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    output.write(value);
+  }
+
+  private static int readVarint(byte[] bytes, int[] pos) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = bytes[pos[0]++];
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   * Benchmark of decoding descendants in the binary encoding and in JSON, with arguments
+   * [NUMBER-OF-CODES [ITERATIONS]].
+   */
+  public static void main(String[] args) throws Exception {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    Random random = new Random(1);
+    List<Code> codes = new ArrayList<>(size);
+    for (int ix = 0; ix < size; ix++) {
+      String id = String.format("%s%02d.%d", (char) ('A' + ix / 1000), ix % 100, ix % 10);
+      String term = "Disorder " + Long.toString(random.nextLong() & Long.MAX_VALUE, 36) + " " + ix;
+      codes.add(new Code(id, term, false, true, null));
+    }
+    byte[] binary = encode(codes);
+    String json = DescendantsCache.encodeJson(codes);
+    System.out.printf(
+        "%d codes: binary %d bytes, JSON %d bytes%n",
+        size, binary.length, json.getBytes(StandardCharsets.UTF_8).length);
+    for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+      benchmark(
+          "JSON, new mapper",
+          iterations,
+          size,
+          () ->
+              new ObjectMapper()
+                  .readValue(json, new TypeReference<Collection<CachedCode>>() {}).stream()
+                      .map(CachedCode::toCode)
+                      .collect(Collectors.toList()));
+      benchmark("JSON, shared reader", iterations, size, () -> DescendantsCache.decodeJson(json));
+      benchmark("binary", iterations, size, () -> decode(binary));
+    }
+  }
+
+  private interface Decoder {
+    List<Code> decode() throws Exception;
+  }
+
+  private static void benchmark(String name, int iterations, int size, Decoder decoder)
+      throws Exception {
+    long decoded = 0;
+    long start = System.nanoTime();
+    for (int ix = 0; ix < iterations; ix++) {
+      decoded += decoder.decode().size();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (decoded != (long) iterations * size) {
+      throw new IllegalStateException("Unexpected number of decoded codes: " + decoded);
+    }
+    System.out.printf(
+        "%-20s %8.2f ms/decode %12.0f codes/s%n",
+        name, seconds * 1000 / iterations, decoded / seconds);
+  }
+}
@@ -0,0 +1,360 @@
+// This file is part of CodeMapper.
+//
+// Copyright 2022-2024 VAC4EU - Vaccine monitoring Collaboration for Europe.
+// Copyright 2017-2021 Erasmus Medical Center, Department of Medical Informatics.
+//
+// CodeMapper is free software: you can redistribute it and/or modify it under
+// the terms of the GNU Affero General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option) any
+// later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+// details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+package org.biosemantics.codemapper.descendants;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.biosemantics.codemapper.CodeMapperException;
+import org.biosemantics.codemapper.SourceConcept;
+import org.biosemantics.codemapper.descendants.DescendantsApi.SpecificDescender;
+
+/**
+ * Descendants of SNOMED CT concepts from an RF2 snapshot in memory, instead of Snowstorm.
+ *
+ * <p>Reads the same files as snomedct-transitive-closure/psql_tables.sql: the concepts, the
+ * descriptions and language refset for the preferred names (as in the view conceptpreferredname,
+ * falling back to the fully specified name), and the active inferred IS-A relationships. Inactive
+ * concepts are resolved to active concepts through the REPLACED_BY, SAME_AS and
+ * POSSIBLY_EQUIVALENT_TO association refsets, like in {@link SnowstormDescender}.
+ */
+public class SnomedRf2Descender implements SpecificDescender {
+
+  private static Logger logger = LogManager.getLogger(SnomedRf2Descender.class);
+
+  private static final int MAX_RESOLVE_DEPTH = 10;
+
+  static final String IS_A = "116680003";
+  static final String INFERRED_RELATIONSHIP = "900000000000011006";
+  static final String FSN = "900000000000003001";
+  static final String SYNONYM = "900000000000013009";
+  static final String PREFERRED = "900000000000548007";
+  public static final String US_ENGLISH_LANGUAGE_REFSET = "900000000000509007";
+
+  /** Association refsets that are used to resolve inactive concepts. */
+  static final Set<String> ACTIVE_ASSOCIATIONS =
+      new HashSet<>(
+          Arrays.asList(
+              "900000000000526001", // REPLACED_BY
+              "900000000000527005", // SAME_AS
+              "900000000000523009")); // POSSIBLY_EQUIVALENT_TO
+
+  private final String codingSystem;
+  // sorted concept ids, concepts are identified by their index
+  private final long[] ids;
+  private final BitSet active;
+  private final String[] terms;
+  // children of concept i are children[childrenStart[i]..childrenStart[i+1]]
+  private final int[] childrenStart;
+  private final int[] children;
+  // inactive concept -> association targets
+  private final Map<Integer, int[]> associations;
+
+  private SnomedRf2Descender(
+      String codingSystem,
+      long[] ids,
+      BitSet active,
+      String[] terms,
+      int[] childrenStart,
+      int[] children,
+      Map<Integer, int[]> associations) {
+    this.codingSystem = codingSystem;
+    this.ids = ids;
+    this.active = active;
+    this.terms = terms;
+    this.childrenStart = childrenStart;
+    this.children = children;
+    this.associations = associations;
+  }
+
+  @Override
+  public String getCodingSystem() {
+    return codingSystem;
+  }
+
+  @Override
+  public Map<String, Collection<SourceConcept>> getDescendants(Collection<String> conceptIds) {
+    Map<String, Collection<SourceConcept>> res = new HashMap<>();
+    BitSet visited = new BitSet(ids.length);
+    int[] stack = new int[16];
+    for (String conceptId : conceptIds) {
+      int concept = index(conceptId);
+      if (concept < 0) {
+        continue;
+      }
+      visited.clear();
+      List<SourceConcept> descendants = new ArrayList<>();
+      for (int resolved : resolveDeep(concept)) {
+        int top = 0;
+        stack[top++] = resolved;
+        while (top > 0) {
+          int node = stack[--top];
+          for (int ix = childrenStart[node]; ix < childrenStart[node + 1]; ix++) {
+            int child = children[ix];
+            if (visited.get(child)) {
+              continue;
+            }
+            visited.set(child);
+            if (top == stack.length) {
+              stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[top++] = child;
+            descendants.add(toSourceConcept(child));
+          }
+        }
+      }
+      res.put(conceptId, descendants);
+    }
+    return res;
+  }
+
+  /** The concept and its association targets if it is inactive, recursively until some depth. */
+  private Collection<Integer> resolveDeep(int concept) {
+    Set<Integer> res = new HashSet<>();
+    res.add(concept);
+    Collection<Integer> todo = Arrays.asList(concept);
+    for (int depth = 0; depth < MAX_RESOLVE_DEPTH && !todo.isEmpty(); depth++) {
+      Collection<Integer> next = new ArrayList<>();
+      for (int id : todo) {
+        if (active.get(id) || !associations.containsKey(id)) {
+          continue;
+        }
+        for (int target : associations.get(id)) {
+          if (res.add(target)) next.add(target);
+        }
+      }
+      todo = next;
+    }
+    return res;
+  }
+
+  private SourceConcept toSourceConcept(int concept) {
+    SourceConcept res = new SourceConcept();
+    res.setCodingSystem(codingSystem);
+    res.setId(Long.toString(ids[concept]));
+    res.setPreferredTerm(terms[concept]);
+    return res;
+  }
+
+  private int index(String conceptId) {
+    try {
+      return index(Long.parseLong(conceptId));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private int index(long id) {
+    int ix = Arrays.binarySearch(ids, id);
+    return ix < 0 ? -1 : ix;
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+  /**
+   * Load the RF2 snapshot files from the directories, which are searched recursively. The files of
+   * an edition and its extensions can be in different directories.
+   */
+  public static SnomedRf2Descender load(
+      String codingSystem, Collection<Path> directories, String languageRefset)
+      throws CodeMapperException {
+    long start = System.currentTimeMillis();
+    try {
+      List<Path> files = new ArrayList<>();
+      for (Path directory : directories) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+          files.addAll(paths.filter(Files::isRegularFile).collect(Collectors.toList()));
+        }
+      }
+
+      // Concepts
+      List<long[]> conceptRows = new ArrayList<>();
+      for (Path file : filesStartingWith(files, "sct2_Concept_Snapshot")) {
+        // id, effectiveTime, active, moduleId, definitionStatusId
+        forEachRow(
+            file,
+            row ->
+                conceptRows.add(new long[] {Long.parseLong(row[0]), row[2].equals("1") ? 1 : 0}));
+      }
+      long[] ids = conceptRows.stream().mapToLong(row -> row[0]).sorted().distinct().toArray();
+      BitSet active = new BitSet(ids.length);
+      for (long[] row : conceptRows) {
+        if (row[1] == 1) active.set(Arrays.binarySearch(ids, row[0]));
+      }
+      conceptRows.clear();
+
+      // Preferred names
+      Set<String> preferredDescriptions = new HashSet<>();
+      for (Path file : filesStartingWith(files, "der2_cRefset_LanguageSnapshot")) {
+        // id, effectiveTime, active, moduleId, refsetId, referencedComponentId, acceptabilityId
+        forEachRow(
+            file,
+            row -> {
+              if (row[2].equals("1") && row[4].equals(languageRefset) && row[6].equals(PREFERRED)) {
+                preferredDescriptions.add(row[5]);
+              }
+            });
+      }
+      String[] terms = new String[ids.length];
+      String[] fsns = new String[ids.length];
+      for (Path file : filesStartingWith(files, "sct2_Description_Snapshot")) {
+        // id, effectiveTime, active, moduleId, conceptId, languageCode, typeId, term,
+        // caseSignificanceId
+        forEachRow(
+            file,
+            row -> {
+              if (!row[2].equals("1")) return;
+              int concept = Arrays.binarySearch(ids, Long.parseLong(row[4]));
+              if (concept < 0) return;
+              if (row[6].equals(SYNONYM) && preferredDescriptions.contains(row[0])) {
+                terms[concept] = row[7];
+              } else if (row[6].equals(FSN)) {
+                fsns[concept] = row[7];
+              }
+            });
+      }
+      for (int concept = 0; concept < ids.length; concept++) {
+        if (terms[concept] == null) terms[concept] = fsns[concept];
+      }
+
+      // Hierarchy
+      int[] parents = new int[1024];
+      int[] childs = new int[1024];
+      int[] edges = {0};
+      for (Path file : filesStartingWith(files, "sct2_Relationship_Snapshot")) {
+        // id, effectiveTime, active, moduleId, sourceId, destinationId, relationshipGroup,
+        // typeId, characteristicTypeId, modifierId
+        int[][] arrays = {parents, childs};
+        forEachRow(
+            file,
+            row -> {
+              if (!row[2].equals("1")
+                  || !row[7].equals(IS_A)
+                  || !row[8].equals(INFERRED_RELATIONSHIP)) return;
+              int child = Arrays.binarySearch(ids, Long.parseLong(row[4]));
+              int parent = Arrays.binarySearch(ids, Long.parseLong(row[5]));
+              if (child < 0 || parent < 0) return;
+              if (edges[0] == arrays[0].length) {
+                arrays[0] = Arrays.copyOf(arrays[0], edges[0] * 2);
+                arrays[1] = Arrays.copyOf(arrays[1], edges[0] * 2);
+              }
+              arrays[0][edges[0]] = parent;
+              arrays[1][edges[0]] = child;
+              edges[0]++;
+            });
+        parents = arrays[0];
+        childs = arrays[1];
+      }
+      int[][] adjacency = TransitiveClosure.adjacency(ids.length, parents, childs, edges[0]);
+
+      // Associations of inactive concepts
+      Map<Integer, Set<Integer>> associationSets = new HashMap<>();
+      for (Path file : filesStartingWith(files, "der2_cRefset_AssociationSnapshot")) {
+        // id, effectiveTime, active, moduleId, refsetId, referencedComponentId, targetComponentId
+        forEachRow(
+            file,
+            row -> {
+              if (!row[2].equals("1") || !ACTIVE_ASSOCIATIONS.contains(row[4])) return;
+              int source = Arrays.binarySearch(ids, Long.parseLong(row[5]));
+              int target = Arrays.binarySearch(ids, Long.parseLong(row[6]));
+              if (source < 0 || target < 0) return;
+              associationSets.computeIfAbsent(source, key -> new HashSet<>()).add(target);
+            });
+      }
+      Map<Integer, int[]> associations = new HashMap<>();
+      for (Map.Entry<Integer, Set<Integer>> entry : associationSets.entrySet()) {
+        associations.put(
+            entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+      }
+
+      logger.info(
+          String.format(
+              "Loaded SNOMED CT snapshot for %s with %d concepts, %d IS-A relationships and %d"
+                  + " associations in %ds",
+              codingSystem,
+              ids.length,
+              edges[0],
+              associations.size(),
+              (System.currentTimeMillis() - start) / 1000));
+      return new SnomedRf2Descender(
+          codingSystem, ids, active, terms, adjacency[0], adjacency[1], associations);
+    } catch (IOException | RuntimeException e) {
+      throw CodeMapperException.server("Cannot load SNOMED CT snapshot", e);
+    }
+  }
+
+  private static List<Path> filesStartingWith(List<Path> files, String prefix) {
+    return files.stream()
+        .filter(path -> path.getFileName().toString().startsWith(prefix))
+        .collect(Collectors.toList());
+  }
+
+  private interface RowConsumer {
+    void accept(String[] row);
+  }
+
+  /** Pass the rows of a tab-separated RF2 file without the header to the consumer. */
+  private static void forEachRow(Path file, RowConsumer consumer) throws IOException {
+    logger.debug("read " + file);
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      reader.readLine(); // header
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isEmpty()) consumer.accept(line.split("\t", -1));
+      }
+    }
+  }
+
+  /** Time descendant lookups. Arguments: snapshot directory, concept ids. */
+  public static void main(String[] args) throws Exception {
+    SnomedRf2Descender descender =
+        load("SNOMEDCT_US", Arrays.asList(Paths.get(args[0])), US_ENGLISH_LANGUAGE_REFSET);
+    List<String> conceptIds = Arrays.asList(args).subList(1, args.length);
+    for (int round = 0; round < 3; round++) {
+      for (String conceptId : conceptIds) {
+        long start = System.nanoTime();
+        int size =
+            descender
+                .getDescendants(Arrays.asList(conceptId))
+                .getOrDefault(conceptId, new ArrayList<>())
+                .size();
+        System.out.printf(
+            "%s: %d descendants in %.3fms\n", conceptId, size, (System.nanoTime() - start) / 1e6);
+      }
+    }
+  }
+}
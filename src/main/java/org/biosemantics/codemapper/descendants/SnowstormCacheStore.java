@@ -0,0 +1,383 @@
+// This file is part of CodeMapper.
+//
+// Copyright 2022-2024 VAC4EU - Vaccine monitoring Collaboration for Europe.
+// Copyright 2017-2021 Erasmus Medical Center, Department of Medical Informatics.
+//
+// CodeMapper is free software: you can redistribute it and/or modify it under
+// the terms of the GNU Affero General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option) any
+// later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+// details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+package org.biosemantics.codemapper.descendants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.biosemantics.codemapper.CodeMapperException;
+import org.biosemantics.codemapper.descendants.SnowstormDescender.CachedConcept;
+
+/**
+ * Persistent tier of the caches of the {@link SnowstormDescender}, as an append-only binary file
+ * per Snowstorm server and branch.
+ *
+ * <p>The file starts with a header with the base URI and branch, followed by a record per loaded
+ * concept: a kind byte ({@link #DESCENDANTS} or {@link #RESOLVED}), the concept id, and the number
+ * and values of the descendants (id and term) or resolved concepts (id). Later records of a concept
+ * replace earlier ones. A record that was cut short by a crash is dropped when the file is opened.
+ * The store keeps at most a maximum number of concepts of each kind, like the caches: the file is
+ * compacted to the most recently written records when it is opened and when many records were
+ * appended.
+ *
+ * <p>Only one branch is kept per Snowstorm server: opening the store of a branch deletes the stores
+ * of other branches of the same server, because their descendants are outdated after a branch
+ * change like a new SNOMED CT release.
+ */
+class SnowstormCacheStore implements AutoCloseable {
+
+  private static Logger logger = LogManager.getLogger(SnowstormCacheStore.class);
+
+  private static final int MAGIC = 0x434d5353; // "CMSS"
+  private static final int VERSION = 1;
+  private static final String SUFFIX = ".snowstorm";
+
+  static final byte DESCENDANTS = 'D';
+  static final byte RESOLVED = 'R';
+
+  private final Path file;
+  private final String baseUri;
+  private final String branch;
+  private final int maxDescendants;
+  private final int maxResolved;
+  private DataOutputStream output;
+  // records in the file
+  private int records;
+
+  private SnowstormCacheStore(
+      Path file, String baseUri, String branch, int maxDescendants, int maxResolved, int records)
+      throws IOException {
+    this.file = file;
+    this.baseUri = baseUri;
+    this.branch = branch;
+    this.maxDescendants = maxDescendants;
+    this.maxResolved = maxResolved;
+    this.records = records;
+    this.output = openAppend(file);
+  }
+
+  Path getFile() {
+    return file;
+  }
+
+  /**
+   * Opens the store of the branch in the directory, and reads the most recently written records of
+   * at most the maximum number of concepts into the maps, in the order in which they were written.
+   */
+  static SnowstormCacheStore open(
+      Path directory,
+      String baseUri,
+      String branch,
+      int maxDescendants,
+      int maxResolved,
+      LinkedHashMap<String, Collection<CachedConcept>> descendants,
+      LinkedHashMap<String, Collection<String>> resolved)
+      throws CodeMapperException {
+    try {
+      Files.createDirectories(directory);
+      deleteOtherBranches(directory, baseUri, branch);
+      Path file = directory.resolve(fileName(baseUri, branch));
+      int records = read(file, baseUri, branch, maxDescendants, maxResolved, descendants, resolved);
+      int entries = descendants.size() + resolved.size();
+      // Append to the file unless it is damaged or mostly contains replaced or dropped records
+      if (records < 0 || records > 2 * entries) {
+        write(file, baseUri, branch, descendants, resolved);
+        records = entries;
+      }
+      logger.info(
+          String.format(
+              "Opened Snowstorm cache %s with %d descendants and %d resolved concepts",
+              file, descendants.size(), resolved.size()));
+      return new SnowstormCacheStore(file, baseUri, branch, maxDescendants, maxResolved, records);
+    } catch (IOException e) {
+      throw CodeMapperException.server("Cannot open Snowstorm cache in " + directory, e);
+    }
+  }
+
+  /**
+   * Read the records of the file into the maps, keeping at most the maximum number of concepts of
+   * each kind. Returns the number of records, or -1 if the file doesn't exist or is damaged.
+   */
+  private static int read(
+      Path file,
+      String baseUri,
+      String branch,
+      int maxDescendants,
+      int maxResolved,
+      Map<String, Collection<CachedConcept>> descendants,
+      Map<String, Collection<String>> resolved)
+      throws IOException {
+    if (!Files.exists(file)) {
+      return -1;
+    }
+    byte[] bytes = Files.readAllBytes(file);
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+    if (!readHeader(input, baseUri, branch)) {
+      logger.warn("Ignore Snowstorm cache with unexpected header: " + file);
+      return -1;
+    }
+    int records = 0;
+    try {
+      while (input.available() > 0) {
+        readRecord(input, descendants, resolved);
+        removeEldest(descendants, maxDescendants);
+        removeEldest(resolved, maxResolved);
+        records++;
+      }
+    } catch (IOException e) {
+      logger.warn("Drop incomplete or invalid records at the end of " + file, e);
+      return -1;
+    }
+    return records;
+  }
+
+  /** Remove the first entries of an insertion-ordered map until it has at most max entries. */
+  private static void removeEldest(Map<String, ?> map, int max) {
+    Iterator<String> keys = map.keySet().iterator();
+    for (int size = map.size(); size > max; size--) {
+      keys.next();
+      keys.remove();
+    }
+  }
+
+  /** Replace the file atomically by a file with the records of the maps. */
+  private static void write(
+      Path file,
+      String baseUri,
+      String branch,
+      Map<String, Collection<CachedConcept>> descendants,
+      Map<String, Collection<String>> resolved)
+      throws IOException {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      writeHeader(out, baseUri, branch);
+      for (Map.Entry<String, Collection<CachedConcept>> entry : descendants.entrySet()) {
+        writeDescendants(out, entry.getKey(), entry.getValue());
+      }
+      for (Map.Entry<String, Collection<String>> entry : resolved.entrySet()) {
+        writeResolved(out, entry.getKey(), entry.getValue());
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static DataOutputStream openAppend(Path file) throws IOException {
+    return new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.APPEND)));
+  }
+
+  /**
+   * Compact the file to the most recently written records when there are twice as many records as
+   * the store keeps.
+   */
+  private void compactIfNeeded() throws IOException {
+    records++;
+    if (records <= 2 * (maxDescendants + maxResolved)) {
+      return;
+    }
+    output.close();
+    try {
+      LinkedHashMap<String, Collection<CachedConcept>> descendants = new LinkedHashMap<>();
+      LinkedHashMap<String, Collection<String>> resolved = new LinkedHashMap<>();
+      read(file, baseUri, branch, maxDescendants, maxResolved, descendants, resolved);
+      write(file, baseUri, branch, descendants, resolved);
+      logger.debug(
+          String.format(
+              "Compacted Snowstorm cache %s from %d to %d records",
+              file, records, descendants.size() + resolved.size()));
+      records = descendants.size() + resolved.size();
+    } finally {
+      output = openAppend(file);
+    }
+  }
+
+  /** Write the descendants of a concept through to the file. */
+  synchronized void putDescendants(String conceptId, Collection<CachedConcept> concepts) {
+    try {
+      writeDescendants(output, conceptId, concepts);
+      output.flush();
+      compactIfNeeded();
+    } catch (IOException e) {
+      logger.error("Cannot write descendants of " + conceptId + " to " + file, e);
+    }
+  }
+
+  /** Write the resolved concepts of a concept through to the file. */
+  synchronized void putResolved(String conceptId, Collection<String> conceptIds) {
+    try {
+      writeResolved(output, conceptId, conceptIds);
+      output.flush();
+      compactIfNeeded();
+    } catch (IOException e) {
+      logger.error("Cannot write resolved concepts of " + conceptId + " to " + file, e);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    output.close();
+  }
+
+  static String fileName(String baseUri, String branch) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest((baseUri + "\n" + branch).getBytes(StandardCharsets.UTF_8));
+      StringBuilder res = new StringBuilder();
+      for (int ix = 0; ix < 8; ix++) {
+        res.append(String.format("%02x", hash[ix]));
+      }
+      return res.append(SUFFIX).toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void deleteOtherBranches(Path directory, String baseUri, String branch)
+      throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+      for (Path file : files) {
+        String[] header = peekHeader(file);
+        if (header != null && header[0].equals(baseUri) && !header[1].equals(branch)) {
+          logger.info("Delete Snowstorm cache of previous branch " + header[1] + ": " + file);
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  /** The base URI and branch of a store, or null if it has no valid header. */
+  private static String[] peekHeader(Path file) throws IOException {
+    try (InputStream stream = Files.newInputStream(file)) {
+      DataInputStream input = new DataInputStream(new BufferedInputStream(stream));
+      if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+        return null;
+      }
+      return new String[] {input.readUTF(), input.readUTF()};
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  private static void writeHeader(DataOutputStream output, String baseUri, String branch)
+      throws IOException {
+    output.writeInt(MAGIC);
+    output.writeInt(VERSION);
+    output.writeUTF(baseUri);
+    output.writeUTF(branch);
+  }
+
+  private static boolean readHeader(DataInputStream input, String baseUri, String branch)
+      throws IOException {
+    try {
+      return input.readInt() == MAGIC
+          && input.readInt() == VERSION
+          && input.readUTF().equals(baseUri)
+          && input.readUTF().equals(branch);
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  private static void writeDescendants(
+      DataOutputStream output, String conceptId, Collection<CachedConcept> concepts)
+      throws IOException {
+    output.writeByte(DESCENDANTS);
+    output.writeUTF(conceptId);
+    output.writeInt(concepts.size());
+    for (CachedConcept concept : concepts) {
+      output.writeUTF(concept.id);
+      output.writeUTF(concept.term != null ? concept.term : "");
+    }
+  }
+
+  private static void writeResolved(
+      DataOutputStream output, String conceptId, Collection<String> conceptIds) throws IOException {
+    output.writeByte(RESOLVED);
+    output.writeUTF(conceptId);
+    output.writeInt(conceptIds.size());
+    for (String id : conceptIds) {
+      output.writeUTF(id);
+    }
+  }
+
+  private static void readRecord(
+      DataInputStream input,
+      Map<String, Collection<CachedConcept>> descendants,
+      Map<String, Collection<String>> resolved)
+      throws IOException {
+    byte kind = input.readByte();
+    if (kind != DESCENDANTS && kind != RESOLVED) {
+      throw new IOException("Invalid record kind: " + kind);
+    }
+    String conceptId = input.readUTF();
+    int size = input.readInt();
+    // Each value takes at least the two length bytes of a string per id and term
+    int minValueBytes = kind == DESCENDANTS ? 4 : 2;
+    if (size < 0 || size > input.available() / minValueBytes) {
+      throw new IOException("Invalid record size: " + size);
+    }
+    switch (kind) {
+      case DESCENDANTS:
+        {
+          List<CachedConcept> concepts = new ArrayList<>(size);
+          for (int ix = 0; ix < size; ix++) {
+            concepts.add(new CachedConcept(input.readUTF(), input.readUTF()));
+          }
+          // Remove first to keep the maps in the order of the last write
+          descendants.remove(conceptId);
+          descendants.put(conceptId, concepts);
+          break;
+        }
+      case RESOLVED:
+        {
+          List<String> ids = new ArrayList<>(size);
+          for (int ix = 0; ix < size; ix++) {
+            ids.add(input.readUTF());
+          }
+          resolved.remove(conceptId);
+          resolved.put(conceptId, ids);
+          break;
+        }
+      default:
+        throw new IOException("Invalid record kind: " + kind);
+    }
+  }
+}
@@ -21,22 +21,34 @@ package org.biosemantics.codemapper.descendants;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
 import com.github.benmanes.caffeine.cache.Caffeine;
-import java.util.AbstractMap;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status.Family;
@@ -47,6 +59,7 @@ import org.biosemantics.codemapper.CodeMapperException;
 import org.biosemantics.codemapper.SourceConcept;
 import org.biosemantics.codemapper.descendants.DescendantsApi.SpecificDescender;
 import org.biosemantics.codemapper.rest.CodeMapperApplication;
+import org.glassfish.jersey.client.ClientProperties;
 
 public class SnowstormDescender implements SpecificDescender {
 
@@ -56,89 +69,287 @@ public class SnowstormDescender implements SpecificDescender {
 
   private static final int RESOLVE_ACTIVE_MAX_CACHE_SIZE = 25_000;
 
+  public static final int DEFAULT_PAGE_SIZE = 1_000;
+  public static final int DEFAULT_TIMEOUT_MILLIS = 30_000;
+  public static final int DEFAULT_MAX_RETRIES = 3;
+  public static final int DEFAULT_CONCURRENCY = 8;
+  public static final long DEFAULT_DEADLINE_MILLIS = 600_000;
+
+  private static final long RETRY_BACKOFF_MILLIS = 250;
+  private static final long MAX_RETRY_BACKOFF_MILLIS = 5_000;
+  private static final int PAGE_CONCURRENCY = 4;
+
+  /**
+   * Shared by all descenders, so that connections to Snowstorm are kept alive and reused. A
+   * connection is only reused when the response was read completely or closed.
+   */
+  private static final Client client = ClientBuilder.newClient();
+
+  /** Fetches the pages after the first page of the descendants concurrently. */
+  private static final ExecutorService pageExecutor =
+      Executors.newFixedThreadPool(
+          PAGE_CONCURRENCY,
+          runnable -> {
+            Thread thread = new Thread(runnable, "codemapper-snowstorm-page");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private static final int TOO_MANY_REQUESTS = 429;
+
   private static Logger logger = LogManager.getLogger(SnowstormDescender.class);
 
   private final String codingSystem;
   private final String baseUri;
   private final String branch;
+  private final int pageSize;
+  private final int timeoutMillis;
+  private final int maxRetries;
+  private final ExecutorService executor;
+  private volatile long deadlineMillis = DEFAULT_DEADLINE_MILLIS;
+  private final AsyncLoadingCache<String, Collection<CachedConcept>> descendentsCache;
+  private final AsyncLoadingCache<String, Collection<String>> resolveActiveCache;
+  private volatile SnowstormCacheStore store;
 
   public SnowstormDescender(String codingSystem, String baseUri, String branch) {
+    this(
+        codingSystem,
+        baseUri,
+        branch,
+        DEFAULT_PAGE_SIZE,
+        DEFAULT_TIMEOUT_MILLIS,
+        DEFAULT_MAX_RETRIES,
+        DEFAULT_CONCURRENCY);
+  }
+
+  /**
+   * @param pageSize the number of descendants per request
+   * @param timeoutMillis the connect and read timeout of each request
+   * @param maxRetries the number of retries of requests that failed with an I/O error or a server
+   *     error, with exponential backoff
+   * @param concurrency the maximum number of concepts that are loaded from Snowstorm at a time
+   */
+  public SnowstormDescender(
+      String codingSystem,
+      String baseUri,
+      String branch,
+      int pageSize,
+      int timeoutMillis,
+      int maxRetries,
+      int concurrency) {
     this.codingSystem = codingSystem;
     this.baseUri = baseUri;
     this.branch = branch;
+    this.pageSize = pageSize;
+    this.timeoutMillis = timeoutMillis;
+    this.maxRetries = maxRetries;
+    this.executor =
+        Executors.newFixedThreadPool(
+            concurrency,
+            runnable -> {
+              Thread thread = new Thread(runnable, "codemapper-snowstorm");
+              thread.setDaemon(true);
+              return thread;
+            });
+    // The loaders block on HTTP, so they run on the bounded executor instead of the common pool
+    descendentsCache =
+        Caffeine.newBuilder()
+            .maximumSize(DESCENDANTS_CACHE_MAX_SIZE)
+            .executor(executor)
+            .buildAsync(id -> loadDescendants(id));
+    resolveActiveCache =
+        Caffeine.newBuilder()
+            .maximumSize(RESOLVE_ACTIVE_MAX_CACHE_SIZE)
+            .executor(executor)
+            .buildAsync(id -> loadResolveActive(id));
   }
 
   public String getCodingSystem() {
     return codingSystem;
   }
 
+  /**
+   * Set the maximum time to wait for the descendants of a call to {@link #getDescendants}, after
+   * which the loading of the descendants that did not start yet is cancelled. The servlet container
+   * doesn't interrupt a request when the client aborts it, so the deadline bounds the work for
+   * requests that nobody waits for anymore.
+   */
+  public void setDeadline(long deadlineMillis) {
+    this.deadlineMillis = deadlineMillis;
+  }
+
+  /** Stop the threads that load from Snowstorm, when the application is undeployed. */
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /** Close the HTTP client and the page executor that are shared by all descenders. */
+  public static void closeShared() {
+    pageExecutor.shutdownNow();
+    client.close();
+  }
+
+  /**
+   * Write the loaded descendants and resolved concepts through to a store in the directory, and
+   * warm the caches with the concepts that were stored before, e.g. before a redeploy. The store is
+   * specific to the base URI and branch, and the stores of previous branches of the base URI are
+   * deleted.
+   */
+  public void persistTo(Path directory) throws CodeMapperException {
+    LinkedHashMap<String, Collection<CachedConcept>> descendants = new LinkedHashMap<>();
+    LinkedHashMap<String, Collection<String>> resolved = new LinkedHashMap<>();
+    SnowstormCacheStore store =
+        SnowstormCacheStore.open(
+            directory,
+            baseUri,
+            branch,
+            DESCENDANTS_CACHE_MAX_SIZE,
+            RESOLVE_ACTIVE_MAX_CACHE_SIZE,
+            descendants,
+            resolved);
+    // The maps are in the order of writing, so the caches keep the recently stored entries
+    descendentsCache.synchronous().putAll(descendants);
+    resolveActiveCache.synchronous().putAll(resolved);
+    this.store = store;
+  }
+
   @Override
   public Map<String, Collection<SourceConcept>> getDescendants(Collection<String> conceptIds)
       throws CodeMapperException {
-    logger.debug("get descendants: {}", conceptIds);
+    CompletableFuture<Map<String, Collection<SourceConcept>>> future =
+        getDescendantsAsync(conceptIds);
     try {
-      return conceptIds
-          .parallelStream()
-          .map(
-              conceptId -> {
-                try {
-                  Collection<String> resolved = resolveDeep(conceptId);
-                  logger.debug("concept: {}, resolved: {}", conceptId, resolved);
-                  Map<String, Collection<CachedConcept>> cachedDescendants =
-                      descendentsCache.getAll(resolved).get();
-                  Collection<SourceConcept> descendents =
+      return future.get(deadlineMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw CodeMapperException.server("computation of descendants was interrupted", e);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      throw CodeMapperException.server(
+          String.format("descendants from Snowstorm took longer than %dms", deadlineMillis), e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof CompletionException) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof CodeMapperException) {
+        throw (CodeMapperException) cause;
+      }
+      String msg = "computation of descendants couldn't be executed";
+      throw CodeMapperException.server(msg, cause instanceof Exception ? (Exception) cause : e);
+    }
+  }
+
+  /**
+   * Descendants of the concepts, composed on the executor. Cancelling the result stops the
+   * resolution and loading of descendants that did not start yet.
+   */
+  private CompletableFuture<Map<String, Collection<SourceConcept>>> getDescendantsAsync(
+      Collection<String> conceptIds) {
+    logger.debug("get descendants: {}", conceptIds);
+    AtomicBoolean cancelled = new AtomicBoolean();
+    Map<String, CompletableFuture<Collection<SourceConcept>>> futures = new HashMap<>();
+    for (String conceptId : new HashSet<>(conceptIds)) {
+      futures.put(
+          conceptId,
+          resolveDeep(conceptId, cancelled)
+              .thenCompose(
+                  resolved -> {
+                    logger.debug("concept: {}, resolved: {}", conceptId, resolved);
+                    if (cancelled.get()) {
+                      return cancelledFuture();
+                    }
+                    return descendentsCache.getAll(resolved);
+                  })
+              .thenApply(
+                  cachedDescendants ->
                       cachedDescendants.values().stream()
                           .flatMap(Collection::stream)
-                          .map(cc -> cc.toSourceConcept())
-                          .collect(Collectors.toList());
-                  return new AbstractMap.SimpleEntry<>(conceptId, descendents);
-                } catch (CodeMapperException e) {
-                  throw new RuntimeException(e);
-                } catch (InterruptedException e) {
-                  String msg = "computation of descendants was interrupted";
-                  Exception e1 = null;
-                  if (e.getCause() instanceof Exception) {
-                    e1 = (Exception) e.getCause();
-                  }
-                  throw new RuntimeException(CodeMapperException.server(msg, e1));
-                } catch (ExecutionException e) {
-                  String msg = "computation of descendants couldn't be executed";
-                  Exception e1 = null;
-                  if (e.getCause() instanceof Exception) {
-                    e1 = (Exception) e.getCause();
+                          .map(cc -> cc.toSourceConcept(codingSystem))
+                          .collect(Collectors.toList())));
+    }
+    CompletableFuture<Map<String, Collection<SourceConcept>>> res =
+        CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0]))
+            .thenApply(
+                ignored -> {
+                  Map<String, Collection<SourceConcept>> descendants = new HashMap<>();
+                  for (Map.Entry<String, CompletableFuture<Collection<SourceConcept>>> entry :
+                      futures.entrySet()) {
+                    descendants.put(entry.getKey(), entry.getValue().join());
                   }
-                  throw new RuntimeException(CodeMapperException.server(msg, e1));
-                }
-              })
-          .collect(Collectors.toMap(Entry::getKey, Entry::getValue));
-    } catch (RuntimeException e) {
+                  return descendants;
+                });
+    res.whenComplete(
+        (descendants, exception) -> {
+          if (res.isCancelled()) {
+            cancelled.set(true);
+            futures.values().forEach(future -> future.cancel(true));
+          }
+        });
+    return res;
+  }
+
+  private Collection<CachedConcept> loadDescendants(String conceptId) throws CodeMapperException {
+    logger.debug("load descendants " + conceptId);
+    String uri = String.format("%s/%s/concepts/%s/descendants", baseUri, branch, conceptId);
+    Collection<CachedConcept> result = new TreeSet<>();
+    DescendantsResult first = loadDescendantsPage(uri, conceptId, 0);
+    if (first == null) {
+      return stored(conceptId, result);
+    }
+    addDescendants(result, first);
+    List<Future<DescendantsResult>> pages = new ArrayList<>();
+    for (int offset = first.offset + first.items.size(); offset < first.total; offset += pageSize) {
+      int pageOffset = offset;
+      pages.add(pageExecutor.submit(() -> loadDescendantsPage(uri, conceptId, pageOffset)));
+    }
+    try {
+      for (Future<DescendantsResult> page : pages) {
+        DescendantsResult res = page.get();
+        if (res == null) {
+          break;
+        }
+        addDescendants(result, res);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw CodeMapperException.server("loading descendants was interrupted", e);
+    } catch (ExecutionException e) {
       if (e.getCause() instanceof CodeMapperException) {
         throw (CodeMapperException) e.getCause();
-      } else {
-        throw e;
+      }
+      throw CodeMapperException.server("Cannot get descendants", e);
+    } finally {
+      for (Future<DescendantsResult> page : pages) {
+        page.cancel(true);
       }
     }
+    logger.trace("descendants found for " + conceptId);
+    return stored(conceptId, result);
   }
 
-  private AsyncLoadingCache<String, Collection<CachedConcept>> descendentsCache =
-      Caffeine.newBuilder()
-          .maximumSize(DESCENDANTS_CACHE_MAX_SIZE)
-          .buildAsync(id -> loadDescendants(id));
+  private Collection<CachedConcept> stored(String conceptId, Collection<CachedConcept> result) {
+    SnowstormCacheStore store = this.store;
+    if (store != null) {
+      store.putDescendants(conceptId, result);
+    }
+    return result;
+  }
 
-  private Collection<CachedConcept> loadDescendants(String conceptId) throws CodeMapperException {
-    logger.debug("load descendants " + conceptId);
-    Client client = ClientBuilder.newClient();
-    String uri = String.format("%s/%s/concepts/%s/descendants", baseUri, branch, conceptId);
-    Collection<CachedConcept> result = new TreeSet<>();
-    int total = 0, offset = 0;
-    do {
-      final Response response =
-          client
-              .target(uri)
-              .queryParam("offset", offset)
-              .queryParam("limit", 150)
-              .request(MediaType.APPLICATION_JSON)
-              .get();
+  private void addDescendants(Collection<CachedConcept> result, DescendantsResult res) {
+    result.addAll(
+        res.items.stream()
+            .map(dc -> new CachedConcept(dc.conceptId, dc.fsn.term))
+            .collect(Collectors.toList()));
+  }
+
+  /** A page of descendants, or null if the concept has no descendants in Snowstorm. */
+  private DescendantsResult loadDescendantsPage(String uri, String conceptId, int offset)
+      throws CodeMapperException {
+    Response response =
+        get(client.target(uri).queryParam("offset", offset).queryParam("limit", pageSize));
+    try {
       if (response.getStatusInfo().getFamily() == Family.CLIENT_ERROR) {
         SnowstormError err = response.readEntity(SnowstormError.class);
         logger.trace(
@@ -148,45 +359,100 @@ public class SnowstormDescender implements SpecificDescender {
                 + response.getStatusInfo().getReasonPhrase()
                 + " - "
                 + err);
-        break; // stop paging
+        return null;
       }
       if (response.getStatusInfo().getFamily() != Family.SUCCESSFUL) {
         throw createException("get descendants", response);
       }
-      DescendantsResult res = response.readEntity(DescendantsResult.class);
-      result.addAll(
-          res.items.stream().map(dc -> new CachedConcept(dc)).collect(Collectors.toList()));
-      total = res.total;
-      offset = res.offset + res.items.size();
-    } while (result.size() < total);
-    logger.trace("descendants found for " + conceptId);
-    return result;
+      return response.readEntity(DescendantsResult.class);
+    } finally {
+      response.close();
+    }
+  }
+
+  /**
+   * GET the target, retrying I/O errors and server errors with exponential backoff. The caller must
+   * close the response.
+   */
+  private Response get(WebTarget target) throws CodeMapperException {
+    long backoff = RETRY_BACKOFF_MILLIS;
+    for (int attempt = 0; ; attempt++) {
+      String error;
+      try {
+        Response response =
+            target
+                .request(MediaType.APPLICATION_JSON)
+                .property(ClientProperties.CONNECT_TIMEOUT, timeoutMillis)
+                .property(ClientProperties.READ_TIMEOUT, timeoutMillis)
+                .get();
+        int status = response.getStatus();
+        if (response.getStatusInfo().getFamily() != Family.SERVER_ERROR
+            && status != TOO_MANY_REQUESTS) {
+          return response;
+        }
+        error = status + " " + response.getStatusInfo().getReasonPhrase();
+        if (attempt >= maxRetries) {
+          return response;
+        }
+        response.close();
+      } catch (ProcessingException e) {
+        if (attempt >= maxRetries) {
+          throw CodeMapperException.server("Cannot connect to Snowstorm", e);
+        }
+        error = e.getMessage();
+      }
+      logger.debug("retry {} after {}ms: {} ({})", target.getUri(), backoff, error, attempt + 1);
+      try {
+        Thread.sleep(backoff);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw CodeMapperException.server("Snowstorm request was interrupted", e);
+      }
+      backoff = Math.min(backoff * 2, MAX_RETRY_BACKOFF_MILLIS);
+    }
   }
 
   /** Associations that are used to resolve inactive concepts. */
   private static Set<String> ACTIVE_ASSOCIATIONS =
       new HashSet<>(Arrays.asList("POSSIBLY_EQUIVALENT_TO", "SAME_AS", "REPLACED_BY"));
 
+  /**
+   * The association targets of an inactive concept, or an empty collection for an active or unknown
+   * concept. Empty collections are cached (and stored) too, to not look up active concepts again.
+   */
   private Collection<String> loadResolveActive(String conceptId) throws CodeMapperException {
+    Collection<String> res = loadResolveActive1(conceptId);
+    SnowstormCacheStore store = this.store;
+    if (store != null) {
+      store.putResolved(conceptId, res);
+    }
+    return res;
+  }
+
+  private Collection<String> loadResolveActive1(String conceptId) throws CodeMapperException {
     logger.debug("load resolved active {}", conceptId);
     String uri = String.format("%s/browser/%s/concepts/%s", baseUri, branch, conceptId);
-    Client client = ClientBuilder.newClient();
-    Response response = client.target(uri).request(MediaType.APPLICATION_JSON).get();
-    if (response.getStatus() == 404) {
-      logger.trace("concept not found: " + conceptId);
-      return null;
-    }
-    if (response.getStatusInfo().getFamily() != Family.SUCCESSFUL) {
-      throw createException("get concept", response);
+    Response response = get(client.target(uri));
+    BrowserConcept concept;
+    try {
+      if (response.getStatus() == 404) {
+        logger.trace("concept not found: " + conceptId);
+        return Collections.emptySet();
+      }
+      if (response.getStatusInfo().getFamily() != Family.SUCCESSFUL) {
+        throw createException("get concept", response);
+      }
+      concept = response.readEntity(BrowserConcept.class);
+    } finally {
+      response.close();
     }
-    BrowserConcept concept = response.readEntity(BrowserConcept.class);
     if (concept.active) {
       logger.trace("keep active concept " + concept.conceptId);
-      return null;
+      return Collections.emptySet();
     }
     if (concept.associationTargets == null) {
       logger.trace("No association targets");
-      return null;
+      return Collections.emptySet();
     }
     Collection<String> res = new HashSet<>();
     for (String key : concept.associationTargets.keySet()) {
@@ -199,51 +465,62 @@ public class SnowstormDescender implements SpecificDescender {
     return res;
   }
 
-  private AsyncLoadingCache<String, Collection<String>> resolveActiveCache =
-      Caffeine.newBuilder()
-          .maximumSize(RESOLVE_ACTIVE_MAX_CACHE_SIZE)
-          .buildAsync(id -> loadResolveActive(id));
-
   /**
    * Resolve inactive concepts to active concepts using the association targets of the concept.
    * Association targets may be in turn be inactive, and are further resolved until the given
    * depth..
    */
-  private Collection<String> resolveDeep(String conceptId)
-      throws CodeMapperException, InterruptedException, ExecutionException {
-    Set<String> res = new HashSet<>();
+  private CompletableFuture<Set<String>> resolveDeep(String conceptId, AtomicBoolean cancelled) {
     Map<String, Integer> todo = new HashMap<>();
     todo.put(conceptId, 0);
-    while (!todo.isEmpty()) {
-      res.addAll(todo.keySet());
-      Collection<String> ids =
-          todo.entrySet().stream()
-              .filter(e -> e.getValue() < MAX_RESOLVE_DEPTH)
-              .map(Entry::getKey)
-              .collect(Collectors.toSet());
-      Map<String, Integer> newTodo = new HashMap<>();
-      Map<String, Collection<String>> allResolved = resolveActiveCache.getAll(ids).get();
-      for (String id : allResolved.keySet()) {
-        Integer depth = todo.get(id);
-        for (String resolved : allResolved.get(id)) {
-          if (!res.contains(resolved)) newTodo.put(resolved, depth + 1);
-        }
-      }
-      todo = newTodo;
+    return resolveDeep(todo, new HashSet<>(), cancelled);
+  }
+
+  private CompletableFuture<Set<String>> resolveDeep(
+      Map<String, Integer> todo, Set<String> res, AtomicBoolean cancelled) {
+    if (todo.isEmpty()) {
+      return CompletableFuture.completedFuture(res);
     }
+    if (cancelled.get()) {
+      return cancelledFuture();
+    }
+    res.addAll(todo.keySet());
+    Collection<String> ids =
+        todo.entrySet().stream()
+            .filter(e -> e.getValue() < MAX_RESOLVE_DEPTH)
+            .map(Entry::getKey)
+            .collect(Collectors.toSet());
+    return resolveActiveCache
+        .getAll(ids)
+        .thenCompose(
+            allResolved -> {
+              Map<String, Integer> newTodo = new HashMap<>();
+              for (String id : allResolved.keySet()) {
+                Integer depth = todo.get(id);
+                for (String resolved : allResolved.get(id)) {
+                  if (!res.contains(resolved)) newTodo.put(resolved, depth + 1);
+                }
+              }
+              return resolveDeep(newTodo, res, cancelled);
+            });
+  }
+
+  private static <T> CompletableFuture<T> cancelledFuture() {
+    CompletableFuture<T> res = new CompletableFuture<>();
+    res.cancel(false);
     return res;
   }
 
-  private class CachedConcept implements Comparable<CachedConcept> {
-    String id;
-    String term;
+  static class CachedConcept implements Comparable<CachedConcept> {
+    final String id;
+    final String term;
 
-    CachedConcept(DescendentsConcept dc) {
-      this.id = dc.conceptId;
-      this.term = dc.fsn.term;
+    CachedConcept(String id, String term) {
+      this.id = id;
+      this.term = term;
     }
 
-    SourceConcept toSourceConcept() {
+    SourceConcept toSourceConcept(String codingSystem) {
       SourceConcept res = new SourceConcept();
       res.setCodingSystem(codingSystem);
       res.setId(id);
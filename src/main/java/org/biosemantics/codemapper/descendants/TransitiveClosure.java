@@ -0,0 +1,331 @@
+// This file is part of CodeMapper.
+//
+// Copyright 2022-2024 VAC4EU - Vaccine monitoring Collaboration for Europe.
+// Copyright 2017-2021 Erasmus Medical Center, Department of Medical Informatics.
+//
+// CodeMapper is free software: you can redistribute it and/or modify it under
+// the terms of the GNU Affero General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option) any
+// later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+// details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+package org.biosemantics.codemapper.descendants;
+
+import com.mchange.v2.c3p0.DataSources;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.sql.DataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Transitive closure of a hierarchy, as sorted sets of descendant ids per ancestor.
+ *
+ * <p>The nodes (AUIs) are interned to ints. The descendants of node i are
+ * descendants[offsets[i]..offsets[i+1]], sorted. The closure is computed from the parent-child
+ * edges in MRHIER or MRREL (see {@link UmlsTransitiveClosure}), written to a binary file per
+ * vocabulary, and memory-mapped from that file by the server (see {@link
+ * UmlsDescender.Config#loadClosures}).
+ *
+ * <p>File format (big-endian): magic, version, number of nodes n, number of pairs m, n ids as
+ * length-prefixed UTF-8, n+1 offsets, and m descendants.
+ */
+public class TransitiveClosure {
+
+  private static Logger logger = LogManager.getLogger(TransitiveClosure.class);
+
+  private static final int MAGIC = 0x434d5443; // CMTC
+  private static final int VERSION = 1;
+  private static final int FETCH_SIZE = 10_000;
+
+  private final String[] ids;
+  private final Map<String, Integer> index;
+  private final IntBuffer offsets;
+  private final IntBuffer descendants;
+
+  private TransitiveClosure(String[] ids, IntBuffer offsets, IntBuffer descendants) {
+    this.ids = ids;
+    this.offsets = offsets;
+    this.descendants = descendants;
+    index = new HashMap<>(ids.length * 2);
+    for (int ix = 0; ix < ids.length; ix++) {
+      index.put(ids[ix], ix);
+    }
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+  public int pairs() {
+    return offsets.get(ids.length);
+  }
+
+  /** The descendants of the id, excluding the id itself, empty if the id is unknown. */
+  public List<String> getDescendants(String id) {
+    Integer node = index.get(id);
+    if (node == null) {
+      return new ArrayList<>();
+    }
+    int start = offsets.get(node), end = offsets.get(node + 1);
+    List<String> res = new ArrayList<>(end - start);
+    for (int ix = start; ix < end; ix++) {
+      res.add(ids[descendants.get(ix)]);
+    }
+    return res;
+  }
+
+  /** Returns a mapping from each of the known ids to its descendants. */
+  public Map<String, Collection<String>> getDescendants(Collection<String> ids) {
+    Map<String, Collection<String>> res = new HashMap<>();
+    for (String id : ids) {
+      if (index.containsKey(id)) {
+        res.put(id, getDescendants(id));
+      }
+    }
+    return res;
+  }
+
+  interface PairConsumer {
+    void accept(String sup, String sub) throws Exception;
+  }
+
+  /** Pass all pairs of an ancestor and a descendant to the consumer, grouped by ancestor. */
+  void forEachPair(PairConsumer consumer) throws Exception {
+    for (int node = 0; node < ids.length; node++) {
+      for (int ix = offsets.get(node); ix < offsets.get(node + 1); ix++) {
+        consumer.accept(ids[node], ids[descendants.get(ix)]);
+      }
+    }
+  }
+
+  /**
+   * Adjacency arrays of the edges parents[i] -> children[i], by counting sort on the parent. The
+   * children of node k are res[1][res[0][k]..res[0][k+1]].
+   */
+  static int[][] adjacency(int n, int[] parents, int[] children, int edges) {
+    int[] childrenStart = new int[n + 1];
+    for (int ix = 0; ix < edges; ix++) {
+      childrenStart[parents[ix] + 1]++;
+    }
+    for (int node = 0; node < n; node++) {
+      childrenStart[node + 1] += childrenStart[node];
+    }
+    int[] adjacent = new int[edges];
+    int[] next = Arrays.copyOf(childrenStart, n);
+    for (int ix = 0; ix < edges; ix++) {
+      adjacent[next[parents[ix]]++] = children[ix];
+    }
+    return new int[][] {childrenStart, adjacent};
+  }
+
+  /**
+   * Compute the closure of the edges parents[i] -> children[i] between node ids. Nodes in cycles
+   * are not their own descendants.
+   */
+  public static TransitiveClosure compute(String[] ids, int[] parents, int[] children, int edges) {
+    int n = ids.length;
+    int[][] adjacency = adjacency(n, parents, children, edges);
+    int[] childrenStart = adjacency[0];
+    int[] adjacent = adjacency[1];
+
+    int[] offsets = new int[n + 1];
+    int[] descendants = new int[Math.max(16, edges)];
+    int size = 0;
+    int[] visited = new int[n];
+    Arrays.fill(visited, -1);
+    int[] stack = new int[16];
+    for (int root = 0; root < n; root++) {
+      offsets[root] = size;
+      visited[root] = root;
+      int top = 0;
+      stack[top++] = root;
+      while (top > 0) {
+        int node = stack[--top];
+        for (int ix = childrenStart[node]; ix < childrenStart[node + 1]; ix++) {
+          int child = adjacent[ix];
+          if (visited[child] == root) {
+            continue;
+          }
+          visited[child] = root;
+          if (top == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+          }
+          stack[top++] = child;
+          if (size == descendants.length) {
+            if (size == Integer.MAX_VALUE - 8) {
+              throw new IllegalStateException("Transitive closure too large");
+            }
+            descendants =
+                Arrays.copyOf(descendants, (int) Math.min(Integer.MAX_VALUE - 8, size * 2L));
+          }
+          descendants[size++] = child;
+        }
+      }
+      Arrays.sort(descendants, offsets[root], size);
+    }
+    offsets[n] = size;
+    return new TransitiveClosure(
+        ids, IntBuffer.wrap(offsets), IntBuffer.wrap(Arrays.copyOf(descendants, size)));
+  }
+
+  /** Write the closure in the binary file format. */
+  public void write(Path path) throws IOException {
+    try (OutputStream stream = Files.newOutputStream(path);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeInt(ids.length);
+      output.writeInt(pairs());
+      for (String id : ids) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        output.writeShort(bytes.length);
+        output.write(bytes);
+      }
+      for (int ix = 0; ix <= ids.length; ix++) {
+        output.writeInt(offsets.get(ix));
+      }
+      for (int ix = 0; ix < pairs(); ix++) {
+        output.writeInt(descendants.get(ix));
+      }
+    }
+  }
+
+  /** Memory-map a closure from a file written by {@link #write}. */
+  public static TransitiveClosure map(Path path) throws IOException {
+    long start = System.currentTimeMillis();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Transitive closure file too large: " + path);
+      }
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        throw new IOException("Not a transitive closure file: " + path);
+      }
+      int n = buffer.getInt();
+      int m = buffer.getInt();
+      String[] ids = new String[n];
+      for (int ix = 0; ix < n; ix++) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        ids[ix] = new String(bytes, StandardCharsets.UTF_8);
+      }
+      IntBuffer offsets = buffer.slice().asIntBuffer();
+      offsets.limit(n + 1);
+      buffer.position(buffer.position() + 4 * (n + 1));
+      IntBuffer descendants = buffer.slice().asIntBuffer();
+      descendants.limit(m);
+      TransitiveClosure closure = new TransitiveClosure(ids, offsets, descendants);
+      logger.info(
+          String.format(
+              "Mapped transitive closure %s with %d nodes and %d pairs in %dms",
+              path, n, m, System.currentTimeMillis() - start));
+      return closure;
+    }
+  }
+
+  /** Closure over the AUIs of the coding system in MRHIER. */
+  public static TransitiveClosure fromMrhier(Connection connection, String sab)
+      throws SQLException {
+    Edges edges = new Edges();
+    boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false); // needed for streaming with a fetch size
+    String query = "SELECT paui, aui FROM mrhier WHERE sab = ? AND paui IS NOT NULL";
+    try (PreparedStatement statement = connection.prepareStatement(query)) {
+      statement.setFetchSize(FETCH_SIZE);
+      statement.setString(1, sab);
+      try (ResultSet set = statement.executeQuery()) {
+        while (set.next()) {
+          edges.add(set.getString(1), set.getString(2));
+        }
+      }
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+    return edges.closure();
+  }
+
+  /** Parent-child edges between interned ids. */
+  static class Edges {
+    final Map<String, Integer> ids = new HashMap<>();
+    int[] parents = new int[1024];
+    int[] children = new int[1024];
+    int size = 0;
+
+    void add(String parent, String child) {
+      if (size == parents.length) {
+        parents = Arrays.copyOf(parents, size * 2);
+        children = Arrays.copyOf(children, size * 2);
+      }
+      parents[size] = intern(parent);
+      children[size] = intern(child);
+      size++;
+    }
+
+    int intern(String id) {
+      Integer res = ids.get(id);
+      if (res == null) {
+        res = ids.size();
+        ids.put(id, res);
+      }
+      return res;
+    }
+
+    TransitiveClosure closure() {
+      String[] names = new String[ids.size()];
+      for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+        names[entry.getValue()] = entry.getKey();
+      }
+      return compute(names, parents, children, size);
+    }
+  }
+
+  /** Compute a closure file. Arguments: mrhier UMLS-DB-URI USER PASSWORD SAB OUTPUT. */
+  public static void main(String[] args) throws Exception {
+    long start = System.currentTimeMillis();
+    TransitiveClosure closure;
+    Path output;
+    if (args.length == 6 && args[0].equals("mrhier")) {
+      DataSource dataSource = DataSources.unpooledDataSource(args[1], args[2], args[3]);
+      try (Connection connection = dataSource.getConnection()) {
+        closure = fromMrhier(connection, args[4]);
+      }
+      output = Paths.get(args[5]);
+    } else {
+      System.err.println("Usage: TransitiveClosure mrhier UMLS-DB-URI USER PASSWORD SAB OUTPUT");
+      System.exit(1);
+      return;
+    }
+    closure.write(output);
+    System.out.printf(
+        "Wrote %d nodes and %d pairs to %s in %ds\n",
+        closure.size(), closure.pairs(), output, (System.currentTimeMillis() - start) / 1000);
+  }
+}
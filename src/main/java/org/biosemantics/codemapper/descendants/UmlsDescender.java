@@ -19,6 +19,10 @@
 package org.biosemantics.codemapper.descendants;
 
 import com.mchange.v2.c3p0.DataSources;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -34,6 +38,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import javax.sql.DataSource;
@@ -46,27 +51,66 @@ import org.biosemantics.codemapper.descendants.DescendantsApi.GeneralDescender;
 public class UmlsDescender implements GeneralDescender {
 
   private static final int AUIS_BATCH_SIZE = 50;
+  private static final String CLOSURE_SUFFIX = ".tc";
 
   private static Logger logger = LogManager.getLogger(UmlsDescender.class);
 
   public static class Config {
 
     private DataSource connectionPool;
+    private Map<String, UmlsHierarchy> hierarchies = new ConcurrentHashMap<>();
+    private Map<String, TransitiveClosure> closures = new ConcurrentHashMap<>();
 
     public Config(DataSource connectionPool) {
       this.connectionPool = connectionPool;
     }
 
+    /**
+     * Load the in-memory hierarchy of a coding system. Descendants in the coding system are
+     * retrieved from the database while this is running.
+     */
+    public void loadHierarchy(String sab) throws CodeMapperException {
+      hierarchies.put(sab, UmlsHierarchy.load(connectionPool, sab));
+    }
+
+    /**
+     * Map the closure files SAB.tc in the directory, to retrieve the descendant AUIs in the coding
+     * systems SAB from the closures instead of MRHIER.
+     */
+    public void loadClosures(Path directory) throws CodeMapperException {
+      try (DirectoryStream<Path> files =
+          Files.newDirectoryStream(directory, "*" + CLOSURE_SUFFIX)) {
+        for (Path file : files) {
+          String name = file.getFileName().toString();
+          String sab = name.substring(0, name.length() - CLOSURE_SUFFIX.length());
+          closures.put(sab, TransitiveClosure.map(file));
+        }
+      } catch (IOException e) {
+        throw CodeMapperException.server("Cannot map transitive closures in " + directory, e);
+      }
+    }
+
     @SuppressWarnings("resource")
     public UmlsDescender createApi() throws SQLException {
-      return new UmlsDescender(connectionPool.getConnection());
+      return new UmlsDescender(connectionPool.getConnection(), hierarchies, closures);
     }
   }
 
   private Connection connection;
+  private Map<String, UmlsHierarchy> hierarchies;
+  private Map<String, TransitiveClosure> closures;
 
   UmlsDescender(Connection connection) {
+    this(connection, Collections.emptyMap(), Collections.emptyMap());
+  }
+
+  UmlsDescender(
+      Connection connection,
+      Map<String, UmlsHierarchy> hierarchies,
+      Map<String, TransitiveClosure> closures) {
     this.connection = connection;
+    this.hierarchies = hierarchies;
+    this.closures = closures;
   }
 
   @Override
@@ -84,6 +128,11 @@ public class UmlsDescender implements GeneralDescender {
 
   public Map<String, Collection<SourceConcept>> getDescendants(
       Collection<String> codes, String codingSystem) throws CodeMapperException {
+    UmlsHierarchy hierarchy = hierarchies.get(codingSystem);
+    if (hierarchy != null) {
+      return hierarchy.getDescendants(codes);
+    }
+
     // {code -> {aui}}
     Map<String, Collection<String>> auis = getCodeAuis(codingSystem, codes);
 
@@ -159,6 +208,10 @@ public class UmlsDescender implements GeneralDescender {
     if (auis.isEmpty()) {
       return new HashMap<>();
     }
+    TransitiveClosure closure = closures.get(sab);
+    if (closure != null && includeIndirect) {
+      return closure.getDescendants(auis);
+    }
     String query = "SELECT aui, ptra FROM mrhier WHERE sab = ? AND ptra && ?";
     try {
       Map<String, Collection<String>> res = new HashMap<>();
@@ -0,0 +1,246 @@
+// This file is part of CodeMapper.
+//
+// Copyright 2022-2024 VAC4EU - Vaccine monitoring Collaboration for Europe.
+// Copyright 2017-2021 Erasmus Medical Center, Department of Medical Informatics.
+//
+// CodeMapper is free software: you can redistribute it and/or modify it under
+// the terms of the GNU Affero General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option) any
+// later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+// details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+package org.biosemantics.codemapper.descendants;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.sql.DataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.biosemantics.codemapper.CodeMapperException;
+import org.biosemantics.codemapper.SourceConcept;
+
+/**
+ * In-memory hierarchy of the AUIs of one coding system in MRHIER.
+ *
+ * <p>AUIs are interned to ints, and the parent-child edges of all contexts are kept as adjacency
+ * arrays (children of AUI i are children[childrenStart[i]..childrenStart[i+1]]). The codes and
+ * preferred terms of the AUIs are loaded from MRCONSO, so descendants are retrieved without
+ * querying the database.
+ */
+public class UmlsHierarchy {
+
+  private static Logger logger = LogManager.getLogger(UmlsHierarchy.class);
+
+  private static final int FETCH_SIZE = 10_000;
+
+  private final String sab;
+  private final String[] auis;
+  private final int[] childrenStart;
+  private final int[] children;
+  // per AUI id, null if the AUI is not in MRCONSO
+  private final String[] codes;
+  private final String[] terms;
+  // code -> AUI ids
+  private final Map<String, int[]> codeAuis;
+
+  private UmlsHierarchy(
+      String sab,
+      String[] auis,
+      int[] childrenStart,
+      int[] children,
+      String[] codes,
+      String[] terms,
+      Map<String, int[]> codeAuis) {
+    this.sab = sab;
+    this.auis = auis;
+    this.childrenStart = childrenStart;
+    this.children = children;
+    this.codes = codes;
+    this.terms = terms;
+    this.codeAuis = codeAuis;
+  }
+
+  public String getSab() {
+    return sab;
+  }
+
+  public int size() {
+    return auis.length;
+  }
+
+  /**
+   * Returns a mapping from each of the codes to its descendants, like {@link
+   * UmlsDescender#getDescendants}.
+   */
+  public Map<String, Collection<SourceConcept>> getDescendants(Collection<String> codes) {
+    Map<String, Collection<SourceConcept>> res = new HashMap<>();
+    BitSet visited = new BitSet(auis.length);
+    int[] stack = new int[16];
+    for (String code : codes) {
+      int[] roots = codeAuis.get(code);
+      if (roots == null) {
+        continue;
+      }
+      List<SourceConcept> concepts = new ArrayList<>();
+      for (int root : roots) {
+        visited.clear();
+        visited.set(root);
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+          int aui = stack[--top];
+          for (int ix = childrenStart[aui]; ix < childrenStart[aui + 1]; ix++) {
+            int child = children[ix];
+            if (visited.get(child)) {
+              continue;
+            }
+            visited.set(child);
+            if (top == stack.length) {
+              stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[top++] = child;
+            if (this.codes[child] != null) {
+              SourceConcept concept = new SourceConcept();
+              concept.setId(this.codes[child]);
+              concept.setPreferredTerm(terms[child]);
+              concepts.add(concept);
+            }
+          }
+        }
+      }
+      concepts.sort(Comparator.comparing(SourceConcept::getId));
+      res.put(code, concepts);
+    }
+    return res;
+  }
+
+  public static UmlsHierarchy load(DataSource dataSource, String sab) throws CodeMapperException {
+    long start = System.currentTimeMillis();
+    Map<String, Integer> auiIds = new HashMap<>();
+    IntList parents = new IntList();
+    IntList childs = new IntList();
+    String[] auis;
+    String[] codes;
+    String[] terms;
+    boolean[] preferred;
+    try (Connection connection = dataSource.getConnection()) {
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false); // needed for streaming with a fetch size
+      try {
+        String query = "SELECT paui, aui FROM mrhier WHERE sab = ? AND paui IS NOT NULL";
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+          statement.setFetchSize(FETCH_SIZE);
+          statement.setString(1, sab);
+          try (ResultSet set = statement.executeQuery()) {
+            while (set.next()) {
+              parents.add(intern(auiIds, set.getString(1)));
+              childs.add(intern(auiIds, set.getString(2)));
+            }
+          }
+        }
+        auis = new String[auiIds.size()];
+        for (Map.Entry<String, Integer> entry : auiIds.entrySet()) {
+          auis[entry.getValue()] = entry.getKey();
+        }
+        codes = new String[auis.length];
+        terms = new String[auis.length];
+        preferred = new boolean[auis.length];
+        query = "SELECT aui, code, str, ispref FROM mrconso WHERE sab = ?";
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+          statement.setFetchSize(FETCH_SIZE);
+          statement.setString(1, sab);
+          try (ResultSet set = statement.executeQuery()) {
+            while (set.next()) {
+              Integer aui = auiIds.get(set.getString(1));
+              if (aui == null) {
+                continue; // not in the hierarchy
+              }
+              boolean ispref = set.getString(4).equals("Y");
+              if (codes[aui] == null || (ispref && !preferred[aui])) {
+                codes[aui] = set.getString(2);
+                terms[aui] = set.getString(3);
+                preferred[aui] = ispref;
+              }
+            }
+          }
+        }
+      } finally {
+        connection.setAutoCommit(autoCommit);
+      }
+    } catch (SQLException e) {
+      throw CodeMapperException.server("Cannot load UMLS hierarchy of " + sab, e);
+    }
+
+    // Adjacency arrays by counting sort of the edges on the parent
+    int[] childrenStart = new int[auis.length + 1];
+    for (int ix = 0; ix < parents.size; ix++) {
+      childrenStart[parents.values[ix] + 1]++;
+    }
+    for (int aui = 0; aui < auis.length; aui++) {
+      childrenStart[aui + 1] += childrenStart[aui];
+    }
+    int[] children = new int[parents.size];
+    int[] next = Arrays.copyOf(childrenStart, auis.length);
+    for (int ix = 0; ix < parents.size; ix++) {
+      children[next[parents.values[ix]]++] = childs.values[ix];
+    }
+
+    Map<String, int[]> codeAuis = new HashMap<>();
+    for (int aui = 0; aui < auis.length; aui++) {
+      if (codes[aui] != null) {
+        codeAuis.merge(
+            codes[aui],
+            new int[] {aui},
+            (ids1, ids2) -> {
+              int[] ids = Arrays.copyOf(ids1, ids1.length + ids2.length);
+              System.arraycopy(ids2, 0, ids, ids1.length, ids2.length);
+              return ids;
+            });
+      }
+    }
+
+    logger.info(
+        String.format(
+            "Loaded UMLS hierarchy of %s with %d AUIs and %d edges in %ds",
+            sab, auis.length, children.length, (System.currentTimeMillis() - start) / 1000));
+    return new UmlsHierarchy(sab, auis, childrenStart, children, codes, terms, codeAuis);
+  }
+
+  private static int intern(Map<String, Integer> ids, String aui) {
+    Integer id = ids.get(aui);
+    if (id == null) {
+      id = ids.size();
+      ids.put(aui, id);
+    }
+    return id;
+  }
+
+  private static class IntList {
+    int[] values = new int[1024];
+    int size = 0;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, values.length * 2);
+      }
+      values[size++] = value;
+    }
+  }
+}
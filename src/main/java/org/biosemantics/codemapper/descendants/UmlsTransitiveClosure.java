@@ -0,0 +1,505 @@
+// This file is part of CodeMapper.
+//
+// Copyright 2022-2024 VAC4EU - Vaccine monitoring Collaboration for Europe.
+// Copyright 2017-2021 Erasmus Medical Center, Department of Medical Informatics.
+//
+// CodeMapper is free software: you can redistribute it and/or modify it under
+// the terms of the GNU Affero General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option) any
+// later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+// details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+package org.biosemantics.codemapper.descendants;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Generate the transitive closure of the PAR/CHD relations in MRREL between the AUIs of each
+ * vocabulary, like the Rust program in src/main/resources/umls-transitive-closure.
+ *
+ * <p>MRCONSO.RRF and MRREL.RRF are streamed from a file channel, keeping only the needed columns.
+ * The closures of the vocabularies are computed in parallel, and written as TC.RRF, copied into the
+ * table transitiveclosure, or written as {@link TransitiveClosure} files (one per vocabulary).
+ * Vocabularies with cycles are ignored.
+ */
+public class UmlsTransitiveClosure {
+
+  private static Logger logger = LogManager.getLogger(UmlsTransitiveClosure.class);
+
+  private static final String REL_PAR = "PAR";
+  private static final String REL_CHD = "CHD";
+  private static final int MRCONSO_AUI_COLUMN = 7;
+  private static final int MRCONSO_SAB_COLUMN = 11;
+  private static final int MRCONSO_CODE_COLUMN = 13;
+  private static final int MRREL_AUI1_COLUMN = 1;
+  private static final int MRREL_REL_COLUMN = 3;
+  private static final int MRREL_AUI2_COLUMN = 5;
+
+  /** Destination of the closures of the vocabularies, called concurrently. */
+  interface Output extends AutoCloseable {
+    void write(String sab, TransitiveClosure closure, Map<String, String> auiCodes)
+        throws Exception;
+  }
+
+  private final Set<String> sabs;
+  private final boolean writeAuis;
+
+  // AUIs of the selected vocabularies, interned to ints
+  private final Map<String, Integer> auiIds = new HashMap<>();
+  private final List<String> sabNames = new ArrayList<>();
+  private final Map<String, Integer> sabIds = new HashMap<>();
+  private int[] auiSabs = new int[1024];
+  private String[] auiCodes = new String[1024];
+  // per vocabulary, edges from the parent to the child AUI
+  private final List<TransitiveClosure.Edges> sabEdges = new ArrayList<>();
+
+  public UmlsTransitiveClosure(Set<String> sabs, boolean writeAuis) {
+    this.sabs = sabs;
+    this.writeAuis = writeAuis;
+  }
+
+  void readMrconso(Path path) throws IOException {
+    int[] columns = {MRCONSO_AUI_COLUMN, MRCONSO_SAB_COLUMN, MRCONSO_CODE_COLUMN};
+    String[] fields = new String[columns.length];
+    try (RrfReader reader = new RrfReader(path)) {
+      while (reader.next(columns, fields)) {
+        String aui = fields[0], sab = fields[1], code = fields[2];
+        if (!sabs.isEmpty() && !sabs.contains(sab)) {
+          continue;
+        }
+        Integer sabId = sabIds.get(sab);
+        if (sabId == null) {
+          sabId = sabNames.size();
+          sabIds.put(sab, sabId);
+          sabNames.add(sab);
+          sabEdges.add(new TransitiveClosure.Edges());
+        }
+        int auiId = auiIds.size();
+        if (auiIds.putIfAbsent(aui, auiId) != null) {
+          continue;
+        }
+        if (auiId == auiSabs.length) {
+          auiSabs = Arrays.copyOf(auiSabs, auiId * 2);
+          auiCodes = Arrays.copyOf(auiCodes, auiId * 2);
+        }
+        auiSabs[auiId] = sabId;
+        auiCodes[auiId] = code;
+      }
+    }
+    logger.info(String.format("Read %d AUIs in %d vocabularies", auiIds.size(), sabNames.size()));
+  }
+
+  void readMrrel(Path path) throws IOException {
+    int[] columns = {MRREL_AUI1_COLUMN, MRREL_REL_COLUMN, MRREL_AUI2_COLUMN};
+    String[] fields = new String[columns.length];
+    long relations = 0;
+    try (RrfReader reader = new RrfReader(path)) {
+      while (reader.next(columns, fields)) {
+        String aui1 = fields[0], rel = fields[1], aui2 = fields[2];
+        String sup, sub;
+        if (rel.equals(REL_CHD)) {
+          sup = aui1;
+          sub = aui2;
+        } else if (rel.equals(REL_PAR)) {
+          sup = aui2;
+          sub = aui1;
+        } else {
+          continue;
+        }
+        Integer supId = auiIds.get(sup), subId = auiIds.get(sub);
+        if (supId == null || subId == null || auiSabs[supId] != auiSabs[subId]) {
+          continue;
+        }
+        sabEdges.get(auiSabs[supId]).add(sup, sub);
+        relations++;
+      }
+    }
+    logger.info(String.format("Read %d PAR/CHD relations", relations));
+  }
+
+  /** Compute the closures of all vocabularies in parallel and write them to the outputs. */
+  void computeAndWrite(List<Output> outputs, int parallelism) {
+    List<RecursiveAction> tasks = new ArrayList<>();
+    for (int sab = 0; sab < sabNames.size(); sab++) {
+      String name = sabNames.get(sab);
+      TransitiveClosure.Edges edges = sabEdges.get(sab);
+      tasks.add(
+          new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+              try {
+                computeAndWrite(name, edges, outputs);
+              } catch (Exception e) {
+                throw new RuntimeException("Cannot write transitive closure of " + name, e);
+              }
+            }
+          });
+    }
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invoke(
+          new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+              invokeAll(tasks);
+            }
+          });
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private void computeAndWrite(String sab, TransitiveClosure.Edges edges, List<Output> outputs)
+      throws Exception {
+    String[] ids = new String[edges.ids.size()];
+    for (Map.Entry<String, Integer> entry : edges.ids.entrySet()) {
+      ids[entry.getValue()] = entry.getKey();
+    }
+    if (isCyclic(ids.length, edges.parents, edges.children, edges.size)) {
+      logger.warn(String.format("Ignoring %s, it's cyclic", sab));
+      return;
+    }
+    TransitiveClosure closure =
+        TransitiveClosure.compute(ids, edges.parents, edges.children, edges.size);
+    Map<String, String> codes = new HashMap<>(ids.length * 2);
+    for (String aui : ids) {
+      codes.put(aui, auiCodes[auiIds.get(aui)]);
+    }
+    logger.info(
+        String.format(
+            "Computed %s with %d AUIs and %d descendant pairs", sab, ids.length, closure.pairs()));
+    for (Output output : outputs) {
+      output.write(sab, closure, codes);
+    }
+  }
+
+  /** Kahn's algorithm: the graph is cyclic if not all nodes can be sorted topologically. */
+  static boolean isCyclic(int n, int[] parents, int[] children, int edges) {
+    int[][] adjacency = TransitiveClosure.adjacency(n, parents, children, edges);
+    int[] inDegree = new int[n];
+    for (int ix = 0; ix < edges; ix++) {
+      inDegree[children[ix]]++;
+    }
+    int[] queue = new int[n];
+    int head = 0, tail = 0;
+    for (int node = 0; node < n; node++) {
+      if (inDegree[node] == 0) queue[tail++] = node;
+    }
+    while (head < tail) {
+      int node = queue[head++];
+      for (int ix = adjacency[0][node]; ix < adjacency[0][node + 1]; ix++) {
+        if (--inDegree[adjacency[1][ix]] == 0) queue[tail++] = adjacency[1][ix];
+      }
+    }
+    return tail < n;
+  }
+
+  /**
+   * Pass the pairs of the closure to the consumer: AUIs, or distinct codes of the AUIs in the
+   * format of the Rust program.
+   */
+  void forEachPair(TransitiveClosure closure, Map<String, String> codes, PairConsumer consumer)
+      throws Exception {
+    if (writeAuis) {
+      closure.forEachPair(consumer::accept);
+    } else {
+      Map<String, Set<String>> codePairs = new TreeMap<>();
+      closure.forEachPair(
+          (sup, sub) ->
+              codePairs
+                  .computeIfAbsent(codes.get(sup), key -> new LinkedHashSet<>())
+                  .add(codes.get(sub)));
+      for (Map.Entry<String, Set<String>> entry : codePairs.entrySet()) {
+        for (String sub : entry.getValue()) {
+          consumer.accept(entry.getKey(), sub);
+        }
+      }
+    }
+  }
+
+  interface PairConsumer {
+    void accept(String sup, String sub) throws Exception;
+  }
+
+  /** Writes TC.RRF, with lines sup|sub for AUIs, or sab|sup|sub for codes. */
+  class RrfOutput implements Output {
+    private final Writer writer;
+
+    RrfOutput(Path path) throws IOException {
+      writer = new BufferedWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    @Override
+    public void write(String sab, TransitiveClosure closure, Map<String, String> codes)
+        throws Exception {
+      StringBuilder lines = new StringBuilder();
+      forEachPair(
+          closure,
+          codes,
+          (sup, sub) -> {
+            if (!writeAuis) lines.append(sab).append('|');
+            lines.append(sup).append('|').append(sub).append('\n');
+            if (lines.length() > 1 << 16) flush(lines);
+          });
+      flush(lines);
+    }
+
+    private void flush(StringBuilder lines) throws IOException {
+      synchronized (writer) {
+        writer.append(lines);
+      }
+      lines.setLength(0);
+    }
+
+    @Override
+    public void close() throws IOException {
+      writer.close();
+    }
+  }
+
+  /** Copies the AUI pairs into a new table transitiveclosure. */
+  class CopyOutput implements Output {
+    private final Connection connection;
+    private final CopyIn copyIn;
+
+    CopyOutput(Connection connection) throws SQLException {
+      this.connection = connection;
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("DROP TABLE IF EXISTS transitiveclosure");
+        statement.execute(
+            "CREATE TABLE transitiveclosure (sup char(9) not null, sub char(9) not null)");
+      }
+      copyIn =
+          connection
+              .unwrap(PGConnection.class)
+              .getCopyAPI()
+              .copyIn("COPY transitiveclosure (sup, sub) FROM STDIN WITH (DELIMITER '|')");
+    }
+
+    @Override
+    public void write(String sab, TransitiveClosure closure, Map<String, String> codes)
+        throws Exception {
+      StringBuilder lines = new StringBuilder();
+      forEachPair(
+          closure,
+          codes,
+          (sup, sub) -> {
+            lines.append(sup).append('|').append(sub).append('\n');
+            if (lines.length() > 1 << 16) flush(lines);
+          });
+      flush(lines);
+    }
+
+    private void flush(StringBuilder lines) throws SQLException {
+      byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+      synchronized (copyIn) {
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+      }
+      lines.setLength(0);
+    }
+
+    @Override
+    public void close() throws SQLException {
+      try {
+        long rows = copyIn.endCopy();
+        logger.info(String.format("Copied %d rows into transitiveclosure", rows));
+        try (Statement statement = connection.createStatement()) {
+          statement.execute("CREATE INDEX transitiveclosure_sup ON transitiveclosure (sup)");
+          statement.execute("ANALYZE transitiveclosure");
+        }
+      } finally {
+        connection.close();
+      }
+    }
+  }
+
+  /** Writes a {@link TransitiveClosure} file SAB.tc per vocabulary into the directory. */
+  static class ClosureFilesOutput implements Output {
+    private final Path directory;
+
+    ClosureFilesOutput(Path directory) throws IOException {
+      this.directory = Files.createDirectories(directory);
+    }
+
+    @Override
+    public void write(String sab, TransitiveClosure closure, Map<String, String> codes)
+        throws IOException {
+      closure.write(directory.resolve(sab + ".tc"));
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  /** Reads selected columns of the lines of an RRF file through a file channel. */
+  static class RrfReader implements AutoCloseable {
+    private final FileChannel channel;
+    private byte[] buffer = new byte[1 << 22];
+    private int start = 0, end = 0, scanned = 0;
+    private boolean eof = false;
+
+    RrfReader(Path path) throws IOException {
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    /** Read the next line into the fields of the (ascending) columns, false at the end. */
+    boolean next(int[] columns, String[] fields) throws IOException {
+      int newline;
+      while (true) {
+        newline = indexOf((byte) '\n', scanned, end);
+        if (newline >= 0) break;
+        scanned = end;
+        if (eof) {
+          if (start == end) return false;
+          newline = end;
+          break;
+        }
+        fill();
+      }
+      int lineEnd = newline > start && buffer[newline - 1] == '\r' ? newline - 1 : newline;
+      int column = 0, fieldStart = start, ix = 0;
+      for (int pos = start; pos <= lineEnd && ix < columns.length; pos++) {
+        if (pos == lineEnd || buffer[pos] == '|') {
+          if (column == columns[ix]) {
+            fields[ix++] = new String(buffer, fieldStart, pos - fieldStart, StandardCharsets.UTF_8);
+          }
+          column++;
+          fieldStart = pos + 1;
+        }
+      }
+      if (ix < columns.length) {
+        throw new IOException(
+            "Too few columns in line: "
+                + new String(buffer, start, lineEnd - start, StandardCharsets.UTF_8));
+      }
+      start = scanned = Math.min(newline + 1, end);
+      return true;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+      for (int pos = from; pos < to; pos++) {
+        if (buffer[pos] == b) return pos;
+      }
+      return -1;
+    }
+
+    private void fill() throws IOException {
+      if (start > 0) {
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        scanned -= start;
+        start = 0;
+      }
+      if (end == buffer.length) {
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+      int read = channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end));
+      if (read < 0) eof = true;
+      else end += read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * Arguments like the Rust program: --mrconso MRCONSO.RRF --mrrel MRREL.RRF [--sabs SAB,...]
+   * [--write-auis] [--output TC.RRF] [--closures DIR] [--db URI USER PASSWORD] [--threads N].
+   */
+  public static void main(String[] args) throws Exception {
+    Map<String, List<String>> options = new HashMap<>();
+    for (int ix = 0; ix < args.length; ix++) {
+      if (!args[ix].startsWith("--")) {
+        throw new IllegalArgumentException("Unexpected argument: " + args[ix]);
+      }
+      List<String> values = new ArrayList<>();
+      options.put(args[ix].substring(2), values);
+      while (ix + 1 < args.length && !args[ix + 1].startsWith("--")) {
+        values.add(args[++ix]);
+      }
+    }
+    if (!options.containsKey("mrconso") || !options.containsKey("mrrel")) {
+      System.err.println(
+          "Usage: UmlsTransitiveClosure --mrconso MRCONSO.RRF --mrrel MRREL.RRF [--sabs SAB,...]\n"
+              + "  [--write-auis] [--output TC.RRF] [--closures DIR] [--db URI USER PASSWORD]\n"
+              + "  [--threads N]");
+      System.exit(1);
+    }
+    Set<String> sabs = new HashSet<>();
+    if (options.containsKey("sabs")) {
+      sabs.addAll(Arrays.asList(options.get("sabs").get(0).split(",")));
+    }
+    boolean writeAuis = options.containsKey("write-auis");
+    int threads =
+        options.containsKey("threads")
+            ? Integer.parseInt(options.get("threads").get(0))
+            : Runtime.getRuntime().availableProcessors();
+
+    UmlsTransitiveClosure generator = new UmlsTransitiveClosure(sabs, writeAuis);
+    List<Output> outputs = new ArrayList<>();
+    try {
+      if (options.containsKey("output")) {
+        outputs.add(generator.new RrfOutput(Paths.get(options.get("output").get(0))));
+      }
+      if (options.containsKey("closures")) {
+        outputs.add(new ClosureFilesOutput(Paths.get(options.get("closures").get(0))));
+      }
+      if (options.containsKey("db")) {
+        if (!writeAuis) {
+          throw new IllegalArgumentException("Table transitiveclosure requires --write-auis");
+        }
+        List<String> db = options.get("db");
+        outputs.add(
+            generator.new CopyOutput(DriverManager.getConnection(db.get(0), db.get(1), db.get(2))));
+      }
+      generator.readMrconso(Paths.get(options.get("mrconso").get(0)));
+      generator.readMrrel(Paths.get(options.get("mrrel").get(0)));
+      generator.computeAndWrite(outputs, threads);
+    } finally {
+      for (Output output : outputs) {
+        output.close();
+      }
+    }
+  }
+}
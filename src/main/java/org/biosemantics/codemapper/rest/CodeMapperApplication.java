@@ -21,12 +21,20 @@ package org.biosemantics.codemapper.rest;
 import com.mchange.v2.c3p0.DataSources;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
 import javax.sql.DataSource;
@@ -40,18 +48,25 @@ import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
 import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
 import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
 import org.biosemantics.codemapper.CodeMapperException;
+import org.biosemantics.codemapper.CodingSystem;
 import org.biosemantics.codemapper.UmlsApi;
+import org.biosemantics.codemapper.UmlsCompletionIndex;
+import org.biosemantics.codemapper.UmlsConceptCache;
 import org.biosemantics.codemapper.UtsApi;
 import org.biosemantics.codemapper.authentification.AuthentificationApi;
 import org.biosemantics.codemapper.authentification.User;
 import org.biosemantics.codemapper.descendants.DescendantsApi;
 import org.biosemantics.codemapper.descendants.DescendantsApi.GeneralDescender;
 import org.biosemantics.codemapper.descendants.DescendantsCache;
+import org.biosemantics.codemapper.descendants.SnomedRf2Descender;
+import org.biosemantics.codemapper.descendants.SnowstormDescender;
 import org.biosemantics.codemapper.descendants.UmlsDescender;
 import org.biosemantics.codemapper.persistency.PersistencyApi;
 import org.biosemantics.codemapper.review.ReviewApi;
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener;
 
 @ApplicationPath("rest")
 public class CodeMapperApplication extends ResourceConfig {
@@ -61,6 +76,8 @@ public class CodeMapperApplication extends ResourceConfig {
   private static final String CODE_MAPPER_PROPERTIES = "/code-mapper.properties";
   private static final String CODE_MAPPER_CONFIG_PROPERTIES = "/code-mapper-config.properties";
 
+  private static final int MAX_STATEMENTS_PER_CONNECTION = 100;
+
   // Property names
   private static final String AVAILABLE_CODING_SYSTEMS = "available-coding-systems";
   private static final String CODE_MAPPER_DB = "code-mapper-db";
@@ -79,6 +96,38 @@ public class CodeMapperApplication extends ResourceConfig {
   private static final String DEFAULT_IGNORE_TERM_TYPES = "default-ignore-term-types";
   private static final String DEFAULT_IGNORE_SEMANTIC_TYPES = "default-ignore-semantic-types";
   private static final String DEFAULT_VOCABULARIES = "default-vocabularies";
+  private static final String UMLS_CONCEPT_STORE = "umls-concept-store";
+  private static final String UMLS_COMPLETION_INDEX = "umls-completion-index";
+  private static final String UMLS_CODE_COMPLETION_INDEX = "umls-code-completion-index";
+  private static final String UMLS_HIERARCHIES = "umls-hierarchies";
+  private static final String UMLS_TRANSITIVE_CLOSURE_DIRECTORY =
+      "umls-transitive-closure-directory";
+  private static final String SNOMED_RF2_SNAPSHOT = "snomed-rf2-snapshot";
+  private static final String SNOMED_RF2_CODING_SYSTEM = "snomed-rf2-coding-system";
+  private static final String SNOMED_RF2_LANGUAGE_REFSET = "snomed-rf2-language-refset";
+  private static final String DESCENDANTS_CACHE_MB = "descendants-cache-mb";
+  private static final String DESCENDANTS_CACHE_EVICTION_MINUTES =
+      "descendants-cache-eviction-minutes";
+  private static final String DESCENDANTS_CACHE_MAX_ROWS = "descendants-cache-max-rows";
+  private static final String DESCENDANTS_CACHE_MAX_MB = "descendants-cache-max-mb";
+  private static final String DESCENDANTS_CACHE_WARM_UP_HOURS = "descendants-cache-warm-up-hours";
+  private static final String DESCENDANTS_CACHE_WARM_UP_CONCURRENCY =
+      "descendants-cache-warm-up-concurrency";
+  private static final String DESCENDANTS_CONCURRENCY = "descendants-concurrency";
+  private static final String DESCENDANTS_CACHE_ASYNC_WRITES = "descendants-cache-async-writes";
+  private static final String SNOWSTORM_CODING_SYSTEM = "snowstorm-coding-system";
+  private static final String SNOWSTORM_BASE_URI = "snowstorm-base-uri";
+  private static final String SNOWSTORM_BRANCH = "snowstorm-branch";
+  private static final String SNOWSTORM_CACHE_DIRECTORY = "snowstorm-cache-directory";
+  private static final String SNOWSTORM_PAGE_SIZE = "snowstorm-page-size";
+  private static final String SNOWSTORM_TIMEOUT_MILLIS = "snowstorm-timeout-millis";
+  private static final String SNOWSTORM_MAX_RETRIES = "snowstorm-max-retries";
+  private static final String SNOWSTORM_CONCURRENCY = "snowstorm-concurrency";
+  private static final String SNOWSTORM_DEADLINE_SECONDS = "snowstorm-deadline-seconds";
+  private static final String UMLS_CONCEPT_CACHE_MB = "umls-concept-cache-mb";
+  private static final String UMLS_SINGLE_CONCEPT_QUERY = "umls-single-concept-query";
+  private static final String UMLS_BATCH_SIZE = "umls-batch-size";
+  private static final String UMLS_BATCH_CONCURRENCY = "umls-batch-concurrency";
 
   private static Properties properties;
   private static Properties propertiesConfig;
@@ -90,8 +139,18 @@ public class CodeMapperApplication extends ResourceConfig {
   private static UtsApi utsApi;
   private static ReviewApi.Config reviewApi;
   private static DescendantsCache.Config descendantsCacheApi;
+  private static DescendantsCacheWarmer descendantsCacheWarmer;
   private static NonUmlsTargets.Config nonUmlsTargets;
   private static UmlsDescender.Config umlsDescender;
+  private static volatile SnomedRf2Descender snomedRf2Descender;
+  private static SnowstormDescender snowstormDescender;
+  private static ExecutorService backgroundTasks =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "codemapper-background");
+            thread.setDaemon(true);
+            return thread;
+          });
 
   static {
     properties = new Properties();
@@ -127,6 +186,28 @@ public class CodeMapperApplication extends ResourceConfig {
             bindFactory(UserFactory.class).to(User.class);
           }
         });
+    register(
+        new ContainerLifecycleListener() {
+          @Override
+          public void onStartup(Container container) {}
+
+          @Override
+          public void onReload(Container container) {}
+
+          @Override
+          public void onShutdown(Container container) {
+            shutdown();
+          }
+        });
+  }
+
+  /** Release the resources that outlive requests, when the application is undeployed. */
+  public static void shutdown() {
+    logger.info("Shut down");
+    if (snowstormDescender != null) {
+      snowstormDescender.close();
+    }
+    SnowstormDescender.closeShared();
   }
 
   public static void initialize() {
@@ -202,6 +283,27 @@ public class CodeMapperApplication extends ResourceConfig {
             codingSystemsWithDefinition,
             defaultIgnoreTermTypes,
             versionInfo);
+    umlsApi.setSingleConceptQuery(
+        Boolean.parseBoolean(properties.getProperty(UMLS_SINGLE_CONCEPT_QUERY, "true")));
+    umlsApi.setBatching(
+        Integer.parseInt(properties.getProperty(UMLS_BATCH_SIZE, "5000")),
+        Integer.parseInt(properties.getProperty(UMLS_BATCH_CONCURRENCY, "4")));
+    long umlsConceptCacheMb = Long.parseLong(properties.getProperty(UMLS_CONCEPT_CACHE_MB, "0"));
+    if (umlsConceptCacheMb > 0) {
+      umlsApi.setConceptCache(new UmlsConceptCache(umlsConceptCacheMb * 1024 * 1024));
+    }
+    if (Boolean.parseBoolean(properties.getProperty(UMLS_CONCEPT_STORE))) {
+      runInBackground("load UMLS concept store", umlsApi::loadConceptStore);
+    }
+    if (Boolean.parseBoolean(properties.getProperty(UMLS_COMPLETION_INDEX))) {
+      runInBackground(
+          "load UMLS completion index",
+          () -> umlsApi.loadCompletionIndex(codeMapperConnectionPool));
+    }
+    runInBackground("detect UMLS code completion table", umlsApi::detectCodeCompletionTable);
+    if (Boolean.parseBoolean(properties.getProperty(UMLS_CODE_COMPLETION_INDEX))) {
+      runInBackground("load UMLS code completion index", umlsApi::loadCodeCompletionIndex);
+    }
 
     persistencyApi = new PersistencyApi.Config(codeMapperConnectionPool);
     authentificationApi = new AuthentificationApi.Config(codeMapperConnectionPool);
@@ -212,8 +314,148 @@ public class CodeMapperApplication extends ResourceConfig {
     reviewApi = new ReviewApi.Config(codeMapperConnectionPool);
 
     descendantsCacheApi = new DescendantsCache.Config(codeMapperConnectionPool);
+    descendantsCacheApi.setAsyncWrites(
+        Boolean.parseBoolean(properties.getProperty(DESCENDANTS_CACHE_ASYNC_WRITES, "true")));
+    long descendantsCacheMb = Long.parseLong(properties.getProperty(DESCENDANTS_CACHE_MB, "64"));
+    if (descendantsCacheMb > 0) {
+      descendantsCacheApi.setMemoryCache(descendantsCacheMb * 1024 * 1024);
+    }
+    descendantsCacheApi.scheduleTouches();
+    descendantsCacheApi.setConcurrency(
+        Integer.parseInt(properties.getProperty(DESCENDANTS_CONCURRENCY, "4")));
+    long evictionMinutes =
+        Long.parseLong(properties.getProperty(DESCENDANTS_CACHE_EVICTION_MINUTES, "60"));
+    if (evictionMinutes > 0) {
+      descendantsCacheApi.scheduleEviction(
+          evictionMinutes,
+          Integer.parseInt(properties.getProperty(DESCENDANTS_CACHE_MAX_ROWS, "100000")),
+          Long.parseLong(properties.getProperty(DESCENDANTS_CACHE_MAX_MB, "1024")) * 1024 * 1024,
+          CodeMapperApplication::getCodingSystemVersions);
+    }
+    descendantsCacheWarmer =
+        new DescendantsCacheWarmer(
+            Integer.parseInt(properties.getProperty(DESCENDANTS_CACHE_WARM_UP_CONCURRENCY, "2")));
+    long warmUpHours = Long.parseLong(properties.getProperty(DESCENDANTS_CACHE_WARM_UP_HOURS, "0"));
+    if (warmUpHours > 0) {
+      descendantsCacheWarmer.schedule(warmUpHours);
+    }
 
     umlsDescender = new UmlsDescender.Config(umlsConnectionPool);
+    String umlsHierarchies = properties.getProperty(UMLS_HIERARCHIES, "").trim();
+    if (!umlsHierarchies.isEmpty()) {
+      for (String sab : umlsHierarchies.split(",\\s*")) {
+        runInBackground("load UMLS hierarchy of " + sab, () -> umlsDescender.loadHierarchy(sab));
+      }
+    }
+    String closureDirectory = properties.getProperty(UMLS_TRANSITIVE_CLOSURE_DIRECTORY, "").trim();
+    if (!closureDirectory.isEmpty()) {
+      runInBackground(
+          "map UMLS transitive closures",
+          () -> umlsDescender.loadClosures(Paths.get(closureDirectory)));
+    }
+    String snomedRf2Snapshot = properties.getProperty(SNOMED_RF2_SNAPSHOT, "").trim();
+    if (!snomedRf2Snapshot.isEmpty()) {
+      List<Path> directories =
+          Arrays.stream(snomedRf2Snapshot.split(",\\s*"))
+              .map(Paths::get)
+              .collect(Collectors.toList());
+      String codingSystem = properties.getProperty(SNOMED_RF2_CODING_SYSTEM, "SNOMEDCT_US");
+      String languageRefset =
+          properties.getProperty(
+              SNOMED_RF2_LANGUAGE_REFSET, SnomedRf2Descender.US_ENGLISH_LANGUAGE_REFSET);
+      runInBackground(
+          "load SNOMED CT snapshot",
+          () ->
+              snomedRf2Descender =
+                  SnomedRf2Descender.load(codingSystem, directories, languageRefset));
+    }
+    String snowstormCodingSystem = properties.getProperty(SNOWSTORM_CODING_SYSTEM, "").trim();
+    if (!snowstormCodingSystem.isEmpty()) {
+      snowstormDescender =
+          new SnowstormDescender(
+              snowstormCodingSystem,
+              properties.getProperty(SNOWSTORM_BASE_URI),
+              properties.getProperty(SNOWSTORM_BRANCH),
+              Integer.parseInt(properties.getProperty(SNOWSTORM_PAGE_SIZE, "1000")),
+              Integer.parseInt(properties.getProperty(SNOWSTORM_TIMEOUT_MILLIS, "30000")),
+              Integer.parseInt(properties.getProperty(SNOWSTORM_MAX_RETRIES, "3")),
+              Integer.parseInt(properties.getProperty(SNOWSTORM_CONCURRENCY, "8")));
+      snowstormDescender.setDeadline(
+          Long.parseLong(properties.getProperty(SNOWSTORM_DEADLINE_SECONDS, "600")) * 1000);
+      String cacheDirectory = properties.getProperty(SNOWSTORM_CACHE_DIRECTORY, "").trim();
+      if (!cacheDirectory.isEmpty()) {
+        // On its own thread, so that the cache isn't queued behind loading the indexes
+        runInOwnThread(
+            "load Snowstorm cache", () -> snowstormDescender.persistTo(Paths.get(cacheDirectory)));
+      }
+    }
+  }
+
+  public static interface BackgroundTask {
+    void run() throws Exception;
+  }
+
+  /** Run a long-running task, like loading an in-memory index, in the background. */
+  public static void runInBackground(String description, BackgroundTask task) {
+    backgroundTasks.submit(logged(description, task));
+  }
+
+  /** Run a background task on a new thread, instead of after the other background tasks. */
+  public static void runInOwnThread(String description, BackgroundTask task) {
+    Thread thread = new Thread(logged(description, task), "codemapper-background-" + description);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static Runnable logged(String description, BackgroundTask task) {
+    return () -> {
+      logger.info("Start background task: " + description);
+      try {
+        task.run();
+        logger.info("Finished background task: " + description);
+      } catch (Exception e) {
+        logger.error("Failed background task: " + description, e);
+      }
+    };
+  }
+
+  /** Statistics of the in-memory caches by name, for sizing them. */
+  public static Map<String, Map<String, Object>> getCacheStats() {
+    Map<String, Map<String, Object>> res = new LinkedHashMap<>();
+    if (umlsApi.getConceptCache() != null) {
+      res.put("umls-concepts", umlsApi.getConceptCache().getStats());
+    }
+    if (descendantsCacheApi.getMemoryStats() != null) {
+      res.put("descendants-memory", descendantsCacheApi.getMemoryStats());
+    }
+    res.put("descendants-database", descendantsCacheApi.getDatabaseStats());
+    res.put("descendants-eviction", descendantsCacheApi.getEvictionStats());
+    return res;
+  }
+
+  public static DescendantsCacheWarmer getDescendantsCacheWarmer() {
+    return descendantsCacheWarmer;
+  }
+
+  /** The current version of each coding system. */
+  static Map<String, String> getCodingSystemVersions() throws CodeMapperException {
+    try (NonUmlsTargets nonUmlsTargets = createNonUmlsTargets();
+        UmlsApi umlsApi = createUmlsApi(nonUmlsTargets)) {
+      Map<String, String> res = new HashMap<>();
+      for (CodingSystem codingSystem : umlsApi.getCodingSystems()) {
+        res.put(codingSystem.getAbbreviation(), codingSystem.getVersion());
+      }
+      return res;
+    } catch (CodeMapperException e) {
+      throw e;
+    } catch (Exception e) {
+      throw CodeMapperException.server("Cannot get coding system versions", e);
+    }
+  }
+
+  /** The completion index if it is loaded, null otherwise. */
+  public static UmlsCompletionIndex getCompletionIndex() {
+    return umlsApi.getCompletionIndex();
   }
 
   public static String getCodeMapperURL() {
@@ -230,7 +472,10 @@ public class CodeMapperApplication extends ResourceConfig {
     String password = properties.getProperty(prefix + DB_PASSWORD_SUFFIX);
     logger.info("Get connection pool " + prefix);
     DataSource dataSource = DataSources.unpooledDataSource(uri, username, password);
-    return DataSources.pooledDataSource(dataSource);
+    // Reuse prepared statements, which have fixed SQL text, and their server-side plans
+    Map<String, Object> poolProperties = new HashMap<>();
+    poolProperties.put("maxStatementsPerConnection", MAX_STATEMENTS_PER_CONNECTION);
+    return DataSources.pooledDataSource(dataSource, poolProperties);
   }
 
   public static DataSource getCodeMapperConnectionPool() throws SQLException {
@@ -281,7 +526,34 @@ public class CodeMapperApplication extends ResourceConfig {
 
   public static DescendantsApi createDescendantsApi(
       NonUmlsTargets nonUmls, GeneralDescender generalDescender) throws CodeMapperException {
-    return DescendantsApi.createApi(nonUmls, generalDescender);
+    DescendantsApi api = DescendantsApi.createApi(nonUmls, generalDescender);
+    if (snowstormDescender != null) {
+      api.add(snowstormDescender);
+    }
+    if (snomedRf2Descender != null) {
+      api.add(snomedRf2Descender);
+    }
+    return api;
+  }
+
+  /** A descendants API with connections of its own, which are closed with the API. */
+  public static DescendantsApi createDescendantsApi() throws CodeMapperException {
+    NonUmlsTargets nonUmls = createNonUmlsTargets();
+    GeneralDescender generalDescender;
+    try {
+      generalDescender = createGeneralDescender();
+    } catch (CodeMapperException e) {
+      try {
+        nonUmls.close();
+      } catch (Exception e1) {
+        logger.error("Cannot close non-UMLS targets", e1);
+      }
+      throw e;
+    }
+    DescendantsApi api = createDescendantsApi(nonUmls, generalDescender);
+    api.closeWith(nonUmls);
+    api.closeWith(generalDescender);
+    return api;
   }
 
   public static PersistencyApi createPersistencyApi() throws CodeMapperException {
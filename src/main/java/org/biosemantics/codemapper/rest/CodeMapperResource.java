@@ -18,12 +18,10 @@
 
 package org.biosemantics.codemapper.rest;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringReader;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -42,6 +40,8 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.Providers;
 import javax.xml.bind.annotation.XmlRootElement;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -49,6 +49,7 @@ import org.biosemantics.codemapper.CodeMapperException;
 import org.biosemantics.codemapper.CodingSystem;
 import org.biosemantics.codemapper.UmlsApi;
 import org.biosemantics.codemapper.UmlsApi.ImportedMapping;
+import org.biosemantics.codemapper.UmlsCompletionIndex;
 import org.biosemantics.codemapper.UmlsConcept;
 import org.biosemantics.codemapper.UtsApi;
 import org.biosemantics.codemapper.authentification.AuthentificationApi;
@@ -56,7 +57,6 @@ import org.biosemantics.codemapper.authentification.ProjectPermission;
 import org.biosemantics.codemapper.authentification.User;
 import org.biosemantics.codemapper.descendants.DescendantsApi;
 import org.biosemantics.codemapper.descendants.DescendantsApi.Descendants;
-import org.biosemantics.codemapper.descendants.DescendantsApi.GeneralDescender;
 import org.biosemantics.codemapper.descendants.DescendantsCache;
 import org.biosemantics.codemapper.persistency.PersistencyApi;
 import org.biosemantics.codemapper.rest.WriteCsvApi.Mapping;
@@ -89,6 +89,34 @@ public class CodeMapperResource {
     }
   }
 
+  @GET
+  @Path("cache-stats")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Map<String, Object>> getCacheStats(@Context User user) {
+    AuthentificationApi.assertAdmin(user);
+    return CodeMapperApplication.getCacheStats();
+  }
+
+  @GET
+  @Path("cache-warm-up")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Object> getCacheWarmUp(@Context User user) {
+    AuthentificationApi.assertAdmin(user);
+    return CodeMapperApplication.getDescendantsCacheWarmer().getStatus();
+  }
+
+  @POST
+  @Path("cache-warm-up")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Object> startCacheWarmUp(@Context User user) {
+    AuthentificationApi.assertAdmin(user);
+    DescendantsCacheWarmer warmer = CodeMapperApplication.getDescendantsCacheWarmer();
+    if (!warmer.start()) {
+      logger.info("Descendants cache warm-up is running already");
+    }
+    return warmer.getStatus();
+  }
+
   @GET
   @Path("autocomplete")
   @Produces(MediaType.APPLICATION_JSON)
@@ -125,6 +153,56 @@ public class CodeMapperResource {
     }
   }
 
+  /**
+   * Concept completions as a streamed JSON array. A new completion of the same session cancels the
+   * running one.
+   */
+  @GET
+  @Path("autocomplete-stream")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response streamConceptCompletions(
+      @Context HttpServletRequest request,
+      @Context User user,
+      @Context Providers providers,
+      @QueryParam("str") String str,
+      @QueryParam("codingSystems") List<String> codingSystems) {
+    AuthentificationApi.assertAuthentificated(user);
+    if (str == null || str.length() < 3) {
+      throw CodeMapperException.user("Completions query too short").asWebApplicationException();
+    }
+    UmlsCompletionIndex index = CodeMapperApplication.getCompletionIndex();
+    if (index != null) {
+      // no need for the database
+      return Response.ok(index.getCompletions(str, codingSystems, UmlsApi.COMPLETIONS_LIMIT))
+          .build();
+    }
+    CompletionSession session = CompletionSession.get(request.getSession());
+    return Response.ok(
+            session.stream(
+                (umls, sink) -> umls.streamCompletions(str, codingSystems, sink),
+                CompletionSession.getWriter(providers)))
+        .build();
+  }
+
+  /** Code completions as a streamed JSON array, like {@link #streamConceptCompletions}. */
+  @GET
+  @Path("autocomplete-code-stream")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response streamCodeCompletions(
+      @Context HttpServletRequest request,
+      @Context User user,
+      @Context Providers providers,
+      @QueryParam("str") String str,
+      @QueryParam("codingSystem") String codingSystem) {
+    AuthentificationApi.assertAuthentificated(user);
+    CompletionSession session = CompletionSession.get(request.getSession());
+    return Response.ok(
+            session.stream(
+                (umls, sink) -> umls.streamCodeCompletions(str, codingSystem, sink),
+                CompletionSession.getWriter(providers)))
+        .build();
+  }
+
   @GET
   @Path("coding-systems")
   @Produces(MediaType.APPLICATION_JSON)
@@ -303,7 +381,7 @@ public class CodeMapperResource {
       @QueryParam("project") final String projectName,
       @QueryParam("mappings") final List<String> rawMappingConfigs,
       @QueryParam("content") final String content) {
-    String result =
+    StreamingOutput result =
         postCodeListsCSV(request, user, filename0, projectName, rawMappingConfigs, content);
     String suffix = "";
     switch (content) {
@@ -325,10 +403,18 @@ public class CodeMapperResource {
         .build();
   }
 
+  /**
+   * The mappings are loaded before the response starts, so that errors result in an error status.
+   * The CSV is then streamed to the response one mapping at a time, and the descendants are added a
+   * chunk of mappings at a time (see {@link WriteCsvApi#writeProjectCSV}). An error while adding
+   * the descendants of a later chunk ends the file with an error row and aborts the response.
+   * Vocabularies whose descendants cannot be retrieved are reported in error rows at the end of the
+   * file, and the other descendants are exported.
+   */
   @POST
   @Path("code-lists-csv")
   @Produces({WriteCsvApi.MIME_TYPE})
-  public String postCodeListsCSV(
+  public StreamingOutput postCodeListsCSV(
       @Context HttpServletRequest request,
       @Context User user,
       @FormParam("filename") final String filename0,
@@ -342,7 +428,6 @@ public class CodeMapperResource {
           String.format(
               "Download code lists as CSV %s: %s",
               projectName, String.join(", ", rawMappingConfigs)));
-      OutputStream output = new ByteArrayOutputStream();
       List<MappingConfig> mappingConfigs = new LinkedList<>();
       for (String rawMappingConfig : rawMappingConfigs) {
         String[] parts = rawMappingConfig.split("@", 2);
@@ -359,36 +444,25 @@ public class CodeMapperResource {
         mappingConfigs.add(config);
       }
       Collection<Mapping> mappings = getMappings(projectName, mappingConfigs, persistencyApi);
-      try (NonUmlsTargets nonUmlsTargets = CodeMapperApplication.createNonUmlsTargets();
-          GeneralDescender generalDescender = CodeMapperApplication.createGeneralDescender();
-          DescendantsApi descendantsApi =
-              CodeMapperApplication.createDescendantsApi(nonUmlsTargets, generalDescender);
-          DescendantsCache descendantsCacheApi = CodeMapperApplication.createDescendantsCacheApi();
-          UmlsApi umlsApi = CodeMapperApplication.createUmlsApi(nonUmlsTargets); ) {
-        switch (content) {
-          case "codelist":
-            {
-              addDescendants(mappings, descendantsApi, descendantsCacheApi, umlsApi);
-              new WriteCsvApi().writeProjectCSV(output, projectName, mappings, true);
-              break;
-            }
-          case "metadata":
-            {
-              new WriteCsvApi().writeMetaCSV(output, projectName, mappings);
-              break;
-            }
-          case "coding_systems":
-            {
-              new WriteCsvApi().writeCodingSystems(output, mappings);
-              break;
-            }
-          default:
-            throw CodeMapperException.user("unexpected content: " + content);
-        }
-      } catch (IOException e) {
-        throw CodeMapperException.server("could not write codelist CSV", e);
+      switch (content) {
+        case "codelist":
+          {
+            return output -> {
+              try {
+                writeCodeListsCSV(output, projectName, mappings);
+              } catch (CodeMapperException e) {
+                logger.error("Cannot write codelist CSV", e);
+                throw e.asWebApplicationException();
+              }
+            };
+          }
+        case "metadata":
+          return output -> new WriteCsvApi().writeMetaCSV(output, projectName, mappings);
+        case "coding_systems":
+          return output -> new WriteCsvApi().writeCodingSystems(output, mappings);
+        default:
+          throw CodeMapperException.user("unexpected content: " + content);
       }
-      return output.toString();
     } catch (CodeMapperException e) {
       throw e.asWebApplicationException();
     } catch (Exception e1) {
@@ -439,23 +513,37 @@ public class CodeMapperResource {
     return mappings;
   }
 
-  void addDescendants(
-      Collection<Mapping> mappings,
-      DescendantsApi descendantsApi,
-      DescendantsCache descendantsCacheApi,
-      UmlsApi api)
-      throws CodeMapperException {
-    for (Mapping mapping : mappings) {
-      if (mapping.includeDescendants) {
-        Map<String, Collection<String>> codes = mapping.data.getCodesByVoc();
-        Map<String, CodingSystem> codingSystems =
-            api.getCodingSystems().stream()
-                .collect(Collectors.toMap(CodingSystem::getAbbreviation, v -> v));
-        mapping.descendants =
-            descendantsCacheApi.getDescendantsAndCache(codes, codingSystems, descendantsApi, api);
-      } else {
-        mapping.descendants = Collections.emptyMap();
-      }
+  /**
+   * Add the descendants to the mappings that include descendants, retrieving the descendants of
+   * codes that are shared by several mappings only once. The connections are only held while
+   * retrieving, not while the mappings are written to the client.
+   */
+  /**
+   * Write the code lists of the mappings with their descendants. The coding systems are fetched and
+   * the descendants of the whole project are planned once, before the CSV is written.
+   */
+  void writeCodeListsCSV(OutputStream output, String projectName, Collection<Mapping> mappings)
+      throws IOException, CodeMapperException {
+    try (NonUmlsTargets nonUmlsTargets = CodeMapperApplication.createNonUmlsTargets();
+        DescendantsCache descendantsCacheApi = CodeMapperApplication.createDescendantsCacheApi();
+        UmlsApi umlsApi = CodeMapperApplication.createUmlsApi(nonUmlsTargets)) {
+      Map<String, CodingSystem> codingSystems =
+          umlsApi.getCodingSystems().stream()
+              .collect(Collectors.toMap(CodingSystem::getAbbreviation, v -> v));
+      ExportPlanner planner =
+          new ExportPlanner(
+              mappings,
+              (codesByVoc, failures) ->
+                  descendantsCacheApi.getDescendantsAndCache(
+                      codesByVoc,
+                      codingSystems,
+                      CodeMapperApplication::createDescendantsApi,
+                      failures));
+      new WriteCsvApi().writeProjectCSV(output, projectName, mappings, true, planner);
+    } catch (IOException | CodeMapperException e) {
+      throw e;
+    } catch (Exception e) {
+      throw CodeMapperException.server("Cannot get descendants", e);
     }
   }
 
@@ -470,10 +558,7 @@ public class CodeMapperResource {
     AuthentificationApi.assertAuthentificated(user);
     Map<String, Collection<String>> codesByVoc = new HashMap<>();
     codesByVoc.put(codingSystem, codes);
-    try (NonUmlsTargets nonUmlsTargets = CodeMapperApplication.createNonUmlsTargets();
-        GeneralDescender generalDescender = CodeMapperApplication.createGeneralDescender();
-        DescendantsApi descendants =
-            CodeMapperApplication.createDescendantsApi(nonUmlsTargets, generalDescender)) {
+    try (DescendantsApi descendants = CodeMapperApplication.createDescendantsApi()) {
       return descendants
           .getDescendantCodes(codesByVoc)
           .getOrDefault(codingSystem, new Descendants());
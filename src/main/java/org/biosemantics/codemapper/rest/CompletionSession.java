@@ -0,0 +1,205 @@
+// This file is part of CodeMapper.
+//
+// Copyright 2022-2024 VAC4EU - Vaccine monitoring Collaboration for Europe.
+// Copyright 2017-2021 Erasmus Medical Center, Department of Medical Informatics.
+//
+// CodeMapper is free software: you can redistribute it and/or modify it under
+// the terms of the GNU Affero General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option) any
+// later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+// details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+package org.biosemantics.codemapper.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.annotation.Annotation;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Providers;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.biosemantics.codemapper.CodeMapperException;
+import org.biosemantics.codemapper.UmlsApi;
+import org.biosemantics.codemapper.UmlsApi.CompletionSink;
+import org.biosemantics.codemapper.UmlsConcept;
+
+/**
+ * Completions for the typing user of an HTTP session.
+ *
+ * <p>A new completion cancels the query of the previous completion of the session, and the
+ * completions are streamed as a JSON array. Each completion takes its database connections from the
+ * pools and returns them when it is done, only the running statement is kept to cancel it.
+ *
+ * <p>An error before the first completion results in an error response. An error after the first
+ * completion was written cannot change the status anymore, and aborts the response instead, which
+ * leaves the client with an incomplete JSON array.
+ */
+public class CompletionSession implements HttpSessionBindingListener {
+
+  private static Logger logger = LogManager.getLogger(CompletionSession.class);
+
+  private static final String ATTRIBUTE = CompletionSession.class.getName();
+  private static final long LOCK_TIMEOUT_SECONDS = 10;
+  private static final int FLUSH_FIRST = 10;
+  private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
+  public interface Completer {
+    void complete(UmlsApi api, CompletionSink sink) throws CodeMapperException;
+  }
+
+  private final AtomicLong generation = new AtomicLong();
+  private final ReentrantLock lock = new ReentrantLock();
+  private volatile Statement running;
+  private volatile boolean closed = false;
+
+  public static CompletionSession get(HttpSession session) {
+    synchronized (session) {
+      CompletionSession completions = (CompletionSession) session.getAttribute(ATTRIBUTE);
+      if (completions == null) {
+        completions = new CompletionSession();
+        session.setAttribute(ATTRIBUTE, completions);
+      }
+      return completions;
+    }
+  }
+
+  /** The JSON writer of the application, to write completions like other endpoints. */
+  public static MessageBodyWriter<UmlsConcept> getWriter(Providers providers) {
+    return providers.getMessageBodyWriter(
+        UmlsConcept.class, UmlsConcept.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE);
+  }
+
+  /**
+   * Cancel the running completion of the session, and stream the completions of the completer once
+   * the running completion has stopped.
+   */
+  public StreamingOutput stream(Completer completer, MessageBodyWriter<UmlsConcept> writer) {
+    long current = generation.incrementAndGet();
+    cancel(running);
+    return output -> {
+      Sink sink = new Sink(current, writer, output);
+      try {
+        if (!lock.tryLock(LOCK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          logger.warn("Previous completion did not stop");
+        } else {
+          try {
+            if (generation.get() == current && !closed) {
+              try (NonUmlsTargets nonUmlsTargets = CodeMapperApplication.createNonUmlsTargets();
+                  UmlsApi umlsApi = CodeMapperApplication.createUmlsApi(nonUmlsTargets)) {
+                completer.complete(umlsApi, sink);
+              }
+            }
+          } finally {
+            running = null;
+            lock.unlock();
+          }
+        }
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (CodeMapperException e) {
+        if (!sink.started) {
+          throw e.asWebApplicationException();
+        }
+        throw new IOException("Cannot complete", e);
+      } catch (Exception e) {
+        if (!sink.started) {
+          throw CodeMapperException.server("Cannot complete", e).asWebApplicationException();
+        }
+        throw new IOException("Cannot complete", e);
+      }
+      sink.finish();
+    };
+  }
+
+  private class Sink implements CompletionSink {
+    private final long generation;
+    private final MessageBodyWriter<UmlsConcept> writer;
+    private final OutputStream output;
+    private boolean started = false;
+    private int count = 0;
+
+    Sink(long generation, MessageBodyWriter<UmlsConcept> writer, OutputStream output) {
+      this.generation = generation;
+      this.writer = writer;
+      this.output = output;
+    }
+
+    @Override
+    public boolean add(UmlsConcept completion) {
+      if (isCancelled()) return false;
+      try {
+        output.write(started ? ',' : '[');
+        started = true;
+        writer.writeTo(
+            completion,
+            UmlsConcept.class,
+            UmlsConcept.class,
+            NO_ANNOTATIONS,
+            MediaType.APPLICATION_JSON_TYPE,
+            new MultivaluedHashMap<>(),
+            output);
+        if (++count <= FLUSH_FIRST) output.flush();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return true;
+    }
+
+    void finish() throws IOException {
+      output.write((started ? "]" : "[]").getBytes(StandardCharsets.UTF_8));
+      output.flush();
+    }
+
+    @Override
+    public void running(Statement statement) {
+      running = statement;
+      if (isCancelled()) cancel(statement);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return CompletionSession.this.generation.get() != generation;
+    }
+  }
+
+  private static void cancel(Statement statement) {
+    if (statement == null) return;
+    try {
+      statement.cancel();
+    } catch (SQLException e) {
+      logger.debug("Cannot cancel completion query", e);
+    }
+  }
+
+  @Override
+  public void valueBound(HttpSessionBindingEvent event) {}
+
+  @Override
+  public void valueUnbound(HttpSessionBindingEvent event) {
+    closed = true;
+    generation.incrementAndGet();
+    cancel(running);
+  }
+}
@@ -0,0 +1,121 @@
+// This file is part of CodeMapper.
+//
+// Copyright 2022-2024 VAC4EU - Vaccine monitoring Collaboration for Europe.
+// Copyright 2017-2021 Erasmus Medical Center, Department of Medical Informatics.
+//
+// CodeMapper is free software: you can redistribute it and/or modify it under
+// the terms of the GNU Affero General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option) any
+// later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+// details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+package org.biosemantics.codemapper.rest;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered writer of CSV rows in UTF-8.
+ *
+ * <p>Fields that contain a comma or a double quote are quoted, and their double quotes are doubled.
+ * Fields are escaped in a single scan into a reusable character buffer, so that writing a row
+ * doesn't allocate. The rows are only complete in the output after {@link #flush()}.
+ */
+class CsvWriter implements Flushable {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final Writer writer;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int position = 0;
+  private boolean firstField = true;
+
+  CsvWriter(OutputStream output) {
+    this.writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+  }
+
+  void writeRow(String... fields) throws IOException {
+    for (String field : fields) {
+      writeField(field);
+    }
+    endRow();
+  }
+
+  /** Write a field of the current row, null as an empty field. */
+  void writeField(String field) throws IOException {
+    if (!firstField) {
+      append(',');
+    }
+    firstField = false;
+    if (field == null) {
+      return;
+    }
+    int length = field.length();
+    int special = 0;
+    while (special < length) {
+      char c = field.charAt(special);
+      if (c == '"' || c == ',') {
+        break;
+      }
+      special++;
+    }
+    if (special == length) {
+      append(field, 0, length);
+      return;
+    }
+    append('"');
+    append(field, 0, special);
+    for (int ix = special; ix < length; ix++) {
+      char c = field.charAt(ix);
+      if (c == '"') {
+        append('"');
+      }
+      append(c);
+    }
+    append('"');
+  }
+
+  void endRow() throws IOException {
+    append('\n');
+    firstField = true;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    writer.write(buffer, 0, position);
+    position = 0;
+    writer.flush();
+  }
+
+  private void append(char c) throws IOException {
+    if (position == buffer.length) {
+      writer.write(buffer, 0, position);
+      position = 0;
+    }
+    buffer[position++] = c;
+  }
+
+  private void append(String str, int start, int end) throws IOException {
+    while (start < end) {
+      if (position == buffer.length) {
+        writer.write(buffer, 0, position);
+        position = 0;
+      }
+      int chunk = Math.min(end - start, buffer.length - position);
+      str.getChars(start, start + chunk, buffer, position);
+      position += chunk;
+      start += chunk;
+    }
+  }
+}
@@ -0,0 +1,238 @@
+// This file is part of CodeMapper.
+//
+// Copyright 2022-2024 VAC4EU - Vaccine monitoring Collaboration for Europe.
+// Copyright 2017-2021 Erasmus Medical Center, Department of Medical Informatics.
+//
+// CodeMapper is free software: you can redistribute it and/or modify it under
+// the terms of the GNU Affero General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option) any
+// later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+// details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+package org.biosemantics.codemapper.rest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.biosemantics.codemapper.CodeMapperException;
+import org.biosemantics.codemapper.CodingSystem;
+import org.biosemantics.codemapper.MappingData;
+import org.biosemantics.codemapper.UmlsApi;
+import org.biosemantics.codemapper.descendants.DescendantsCache;
+import org.biosemantics.codemapper.persistency.PersistencyApi;
+import org.biosemantics.codemapper.persistency.PersistencyApi.MappingInfo;
+import org.biosemantics.codemapper.persistency.PersistencyApi.Revision;
+
+/**
+ * Populates the descendants cache for the codes of all mappings that include descendants, so that
+ * the first downloads after a vocabulary update don't compute the descendants.
+ *
+ * <p>The codes are collected from the latest revisions of the mappings of all projects, and their
+ * descendants are retrieved in chunks by at most {@code concurrency} threads, like for a download.
+ * Codes with cached descendants are skipped. Only one warm-up runs at a time.
+ */
+public class DescendantsCacheWarmer {
+
+  private static Logger logger = LogManager.getLogger(DescendantsCacheWarmer.class);
+
+  private static final int CHUNK_SIZE = 200;
+  private static final int INITIAL_DELAY_MINUTES = 5;
+  private static final int LOG_PROGRESS_CODES = 5_000;
+
+  private final int concurrency;
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "codemapper-cache-warm-up");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private final AtomicBoolean running = new AtomicBoolean();
+
+  // Progress of the current or last warm-up
+  private volatile long started = 0;
+  private volatile long finished = 0;
+  private final AtomicLong mappings = new AtomicLong();
+  private final AtomicLong codes = new AtomicLong();
+  private final AtomicLong codesDone = new AtomicLong();
+  private final AtomicLong chunksFailed = new AtomicLong();
+
+  public DescendantsCacheWarmer(int concurrency) {
+    this.concurrency = concurrency;
+  }
+
+  /** Warm up periodically, starting shortly after the start of the application. */
+  public void schedule(long periodHours) {
+    scheduler.scheduleWithFixedDelay(
+        this::runIfIdle,
+        INITIAL_DELAY_MINUTES,
+        TimeUnit.HOURS.toMinutes(periodHours),
+        TimeUnit.MINUTES);
+  }
+
+  /** Start a warm-up in the background. Returns false if a warm-up is running already. */
+  public boolean start() {
+    if (!running.compareAndSet(false, true)) {
+      return false;
+    }
+    scheduler.execute(this::run);
+    return true;
+  }
+
+  private void runIfIdle() {
+    if (running.compareAndSet(false, true)) {
+      run();
+    }
+  }
+
+  /** Progress and throughput of the current or last warm-up. */
+  public Map<String, Object> getStatus() {
+    long end = running.get() ? System.currentTimeMillis() : finished;
+    double seconds = (end - started) / 1000.0;
+    Map<String, Object> res = new LinkedHashMap<>();
+    res.put("running", running.get());
+    res.put("started", started);
+    res.put("finished", finished);
+    res.put("mappings", mappings.get());
+    res.put("codes", codes.get());
+    res.put("codesDone", codesDone.get());
+    res.put("chunksFailed", chunksFailed.get());
+    res.put("codesPerSecond", started > 0 && seconds > 0 ? codesDone.get() / seconds : 0.0);
+    return res;
+  }
+
+  private void run() {
+    started = System.currentTimeMillis();
+    finished = 0;
+    mappings.set(0);
+    codes.set(0);
+    codesDone.set(0);
+    chunksFailed.set(0);
+    logger.info("Start warm-up of descendants cache");
+    ExecutorService pool =
+        Executors.newFixedThreadPool(
+            concurrency,
+            runnable -> {
+              Thread thread = new Thread(runnable, "codemapper-cache-warm-up-worker");
+              thread.setDaemon(true);
+              return thread;
+            });
+    try {
+      Map<String, Set<String>> codesByVoc = collectCodes();
+      Map<String, CodingSystem> codingSystems = new HashMap<>();
+      try (NonUmlsTargets nonUmlsTargets = CodeMapperApplication.createNonUmlsTargets();
+          UmlsApi umlsApi = CodeMapperApplication.createUmlsApi(nonUmlsTargets)) {
+        for (CodingSystem codingSystem : umlsApi.getCodingSystems()) {
+          codingSystems.put(codingSystem.getAbbreviation(), codingSystem);
+        }
+      }
+      List<Future<?>> futures = new ArrayList<>();
+      for (Map.Entry<String, Set<String>> entry : codesByVoc.entrySet()) {
+        String voc = entry.getKey();
+        if (!codingSystems.containsKey(voc)) {
+          continue; // custom vocabulary
+        }
+        List<String> vocCodes = new ArrayList<>(entry.getValue());
+        codes.addAndGet(vocCodes.size());
+        for (int start = 0; start < vocCodes.size(); start += CHUNK_SIZE) {
+          List<String> chunk =
+              vocCodes.subList(start, Math.min(start + CHUNK_SIZE, vocCodes.size()));
+          futures.add(pool.submit(() -> warmUp(voc, chunk, codingSystems)));
+        }
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      finished = System.currentTimeMillis();
+      logger.info("Finished warm-up of descendants cache: " + getStatus());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.warn("Warm-up of descendants cache was interrupted");
+    } catch (Exception e) {
+      logger.error("Failed warm-up of descendants cache", e);
+    } finally {
+      pool.shutdownNow();
+      if (finished == 0) {
+        finished = System.currentTimeMillis();
+      }
+      running.set(false);
+    }
+  }
+
+  /** Codes by vocabulary of the latest revisions of all mappings that include descendants. */
+  private Map<String, Set<String>> collectCodes() throws Exception {
+    Map<String, Set<String>> res = new TreeMap<>();
+    try (PersistencyApi persistencyApi = CodeMapperApplication.createPersistencyApi()) {
+      for (String project : persistencyApi.getProjects()) {
+        for (MappingInfo info : persistencyApi.getLatestMappingInfos(project)) {
+          Revision revision = persistencyApi.getLatestRevision(info.mappingShortkey);
+          if (revision == null) {
+            continue;
+          }
+          MappingData data;
+          try {
+            data = revision.parseMappingData();
+          } catch (CodeMapperException e) {
+            logger.warn("Cannot parse mapping " + info.mappingShortkey + " for warm-up", e);
+            continue;
+          }
+          if (!data.getMeta().isIncludeDescendants()) {
+            continue;
+          }
+          mappings.incrementAndGet();
+          for (Map.Entry<String, Collection<String>> entry : data.getCodesByVoc().entrySet()) {
+            res.computeIfAbsent(entry.getKey(), k -> new TreeSet<>()).addAll(entry.getValue());
+          }
+        }
+      }
+    }
+    return res;
+  }
+
+  private void warmUp(String voc, List<String> chunk, Map<String, CodingSystem> codingSystems) {
+    try (DescendantsCache descendantsCache = CodeMapperApplication.createDescendantsCacheApi()) {
+      Map<String, CodeMapperException> failures = new HashMap<>();
+      descendantsCache.getDescendantsAndCache(
+          Collections.singletonMap(voc, chunk),
+          codingSystems,
+          CodeMapperApplication::createDescendantsApi,
+          failures);
+      if (!failures.isEmpty()) {
+        chunksFailed.incrementAndGet();
+        logger.error(
+            "Cannot warm up descendants of " + chunk.size() + " codes in " + voc,
+            failures.get(voc));
+      }
+    } catch (Exception e) {
+      chunksFailed.incrementAndGet();
+      logger.error("Cannot warm up descendants of " + chunk.size() + " codes in " + voc, e);
+    }
+    long done = codesDone.addAndGet(chunk.size());
+    if ((done - chunk.size()) / LOG_PROGRESS_CODES != done / LOG_PROGRESS_CODES) {
+      logger.info("Warm-up of descendants cache: " + getStatus());
+    }
+  }
+}
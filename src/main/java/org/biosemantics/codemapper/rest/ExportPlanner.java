@@ -0,0 +1,237 @@
+// This file is part of CodeMapper.
+//
+// Copyright 2022-2024 VAC4EU - Vaccine monitoring Collaboration for Europe.
+// Copyright 2017-2021 Erasmus Medical Center, Department of Medical Informatics.
+//
+// CodeMapper is free software: you can redistribute it and/or modify it under
+// the terms of the GNU Affero General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option) any
+// later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+// FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+// details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+package org.biosemantics.codemapper.rest;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.biosemantics.codemapper.CodeMapperException;
+import org.biosemantics.codemapper.MappingData.Code;
+import org.biosemantics.codemapper.descendants.DescendantsApi.Descendants;
+import org.biosemantics.codemapper.descendants.DescendantsCache;
+import org.biosemantics.codemapper.rest.WriteCsvApi.Mapping;
+
+/**
+ * Plans the retrieval of descendants for the export of the mappings of a project.
+ *
+ * <p>Mappings of a project share most of their codes, so the codes of all mappings that include
+ * descendants are collected by vocabulary when the export starts. The descendants are then added a
+ * chunk of mappings at a time (see {@link WriteCsvApi#writeProjectCSV}): only the codes of the
+ * chunk that were not retrieved for an earlier chunk are retrieved, and the descendants of a code
+ * are kept until they were assigned to the last mapping that needs them.
+ *
+ * <p>When the descendants of a vocabulary cannot be retrieved, the mappings are exported with the
+ * descendants of the other vocabularies, and the failed vocabulary is reported with the mappings
+ * that miss its descendants (see {@link #getErrors}). A failed vocabulary is not retried for later
+ * chunks.
+ */
+class ExportPlanner implements WriteCsvApi.DescendantsLoader {
+
+  private static Logger logger = LogManager.getLogger(ExportPlanner.class);
+
+  /** Retrieves the descendants of codes by vocabulary, like {@link DescendantsCache}. */
+  interface Retriever {
+    /**
+     * The descendants by vocabulary. Vocabularies whose descendants cannot be retrieved are missing
+     * in the result, and their exceptions are put in the failures.
+     */
+    Map<String, Descendants> getDescendants(
+        Map<String, Collection<String>> codesByVoc, Map<String, CodeMapperException> failures)
+        throws CodeMapperException;
+  }
+
+  private final Retriever retriever;
+  // voc -> code -> number of mappings that include descendants and still need the code
+  private final Map<String, Map<String, Integer>> remaining = new TreeMap<>();
+  // voc -> descendants of the codes that were retrieved and are still needed
+  private final Map<String, Descendants> retrieved = new HashMap<>();
+  // voc -> why its descendants cannot be retrieved
+  private final Map<String, CodeMapperException> failures = new TreeMap<>();
+  // voc -> names of the mappings that are exported without its descendants
+  private final Map<String, List<String>> failedMappings = new TreeMap<>();
+
+  ExportPlanner(Collection<Mapping> mappings, Retriever retriever) {
+    this.retriever = retriever;
+    for (Mapping mapping : mappings) {
+      if (mapping.includeDescendants) {
+        for (Map.Entry<String, Collection<String>> entry :
+            mapping.data.getCodesByVoc().entrySet()) {
+          Map<String, Integer> counts =
+              remaining.computeIfAbsent(entry.getKey(), k -> new HashMap<>());
+          for (String code : entry.getValue()) {
+            counts.merge(code, 1, Integer::sum);
+          }
+        }
+      }
+    }
+  }
+
+  /** The distinct codes by vocabulary of which descendants are still needed. */
+  Map<String, Collection<String>> getCodesByVoc() {
+    Map<String, Collection<String>> res = new TreeMap<>();
+    for (Map.Entry<String, Map<String, Integer>> entry : remaining.entrySet()) {
+      res.put(entry.getKey(), entry.getValue().keySet());
+    }
+    return res;
+  }
+
+  /**
+   * Retrieve the descendants of the codes of the mappings that were not retrieved before, and
+   * assign the descendants to the mappings. Vocabularies whose descendants cannot be retrieved are
+   * recorded as failures instead of aborting the export.
+   */
+  @Override
+  public void addDescendants(Collection<Mapping> mappings) throws CodeMapperException {
+    Map<String, Collection<String>> missing = getMissingCodesByVoc(mappings);
+    if (!missing.isEmpty()) {
+      logger.debug("Get descendants for export: " + getSizes(missing));
+      Map<String, CodeMapperException> chunkFailures = new TreeMap<>();
+      Map<String, Descendants> descendants = retriever.getDescendants(missing, chunkFailures);
+      for (Map.Entry<String, CodeMapperException> failure : chunkFailures.entrySet()) {
+        logger.warn("Export without descendants in " + failure.getKey(), failure.getValue());
+        failures.put(failure.getKey(), failure.getValue());
+        retrieved.remove(failure.getKey());
+      }
+      for (Map.Entry<String, Collection<String>> entry : missing.entrySet()) {
+        if (failures.containsKey(entry.getKey())) {
+          continue;
+        }
+        Descendants vocRetrieved =
+            retrieved.computeIfAbsent(entry.getKey(), k -> new Descendants());
+        Descendants vocDescendants = descendants.getOrDefault(entry.getKey(), new Descendants());
+        for (String code : entry.getValue()) {
+          // Codes without descendants are kept too, so that they are not retrieved again
+          vocRetrieved.put(code, vocDescendants.getOrDefault(code, Collections.emptyList()));
+        }
+      }
+    }
+    assign(mappings);
+  }
+
+  /** The codes of the mappings by vocabulary whose descendants were not retrieved yet. */
+  private Map<String, Collection<String>> getMissingCodesByVoc(Collection<Mapping> mappings) {
+    Map<String, Collection<String>> res = new TreeMap<>();
+    for (Mapping mapping : mappings) {
+      if (!mapping.includeDescendants) {
+        continue;
+      }
+      for (Map.Entry<String, Collection<String>> entry : mapping.data.getCodesByVoc().entrySet()) {
+        if (failures.containsKey(entry.getKey())) {
+          continue;
+        }
+        Descendants vocRetrieved = retrieved.get(entry.getKey());
+        for (String code : entry.getValue()) {
+          if (vocRetrieved == null || !vocRetrieved.containsKey(code)) {
+            res.computeIfAbsent(entry.getKey(), k -> new HashSet<>()).add(code);
+          }
+        }
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Distribute the retrieved descendants to the mappings that include descendants, and release the
+   * descendants of codes that are not needed by later mappings. The mappings are recorded for the
+   * failed vocabularies whose descendants they miss.
+   */
+  private void assign(Collection<Mapping> mappings) {
+    for (Mapping mapping : mappings) {
+      if (!mapping.includeDescendants) {
+        mapping.descendants = Collections.emptyMap();
+        continue;
+      }
+      mapping.descendants = new HashMap<>();
+      for (Map.Entry<String, Collection<String>> entry : mapping.data.getCodesByVoc().entrySet()) {
+        String voc = entry.getKey();
+        if (failures.containsKey(voc)) {
+          failedMappings
+              .computeIfAbsent(voc, k -> new LinkedList<>())
+              .add(mapping.info.mappingName);
+          for (String code : entry.getValue()) {
+            release(voc, code);
+          }
+          continue;
+        }
+        Descendants vocRetrieved = retrieved.get(voc);
+        Descendants mappingDescendants = new Descendants();
+        for (String code : entry.getValue()) {
+          Collection<Code> codeDescendants = vocRetrieved.get(code);
+          if (!codeDescendants.isEmpty()) {
+            mappingDescendants.put(code, codeDescendants);
+          }
+          release(voc, code);
+        }
+        mapping.descendants.put(voc, mappingDescendants);
+      }
+    }
+  }
+
+  private void release(String voc, String code) {
+    Map<String, Integer> counts = remaining.get(voc);
+    int count = counts.get(code) - 1;
+    if (count > 0) {
+      counts.put(code, count);
+      return;
+    }
+    counts.remove(code);
+    Descendants vocRetrieved = retrieved.get(voc);
+    if (vocRetrieved != null) {
+      vocRetrieved.remove(code);
+    }
+    if (counts.isEmpty()) {
+      remaining.remove(voc);
+      retrieved.remove(voc);
+    }
+  }
+
+  /**
+   * The vocabularies whose descendants cannot be retrieved, each with the mappings that were
+   * exported without its descendants and the cause.
+   */
+  @Override
+  public List<String> getErrors() {
+    List<String> errors = new LinkedList<>();
+    for (Map.Entry<String, List<String>> entry : failedMappings.entrySet()) {
+      errors.add(
+          String.format(
+              "%s for mappings %s (%s)",
+              entry.getKey(),
+              String.join(", ", entry.getValue()),
+              failures.get(entry.getKey()).getMessage()));
+    }
+    return errors;
+  }
+
+  /** Number of distinct codes by vocabulary. */
+  static Map<String, Integer> getSizes(Map<String, Collection<String>> codesByVoc) {
+    Map<String, Integer> res = new TreeMap<>();
+    for (Map.Entry<String, Collection<String>> entry : codesByVoc.entrySet()) {
+      res.put(entry.getKey(), entry.getValue().size());
+    }
+    return res;
+  }
+}
@@ -20,11 +20,13 @@ package org.biosemantics.codemapper.rest;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -71,25 +73,86 @@ public class WriteCsvApi {
     "umls_version", "coding_system", "coding_system_version"
   };
 
+  /** Number of mappings whose descendants are added at a time while writing the code lists. */
+  static final int DESCENDANTS_CHUNK_SIZE = 20;
+
+  /** First field of the last row when the code lists could not be written completely. */
+  static final String ERROR_MARKER = "ERROR: incomplete export: ";
+
+  /** First field of the rows that report descendants that could not be added. */
+  static final String MISSING_DESCENDANTS_MARKER = "ERROR: missing descendants in ";
+
+  /** Adds the descendants to mappings, right before they are written. */
+  public interface DescendantsLoader {
+    void addDescendants(Collection<Mapping> mappings) throws CodeMapperException;
+
+    /** Descendants that could not be added, reported after all mappings were written. */
+    default List<String> getErrors() {
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Write the code lists of the mappings. The descendants are added to a chunk of mappings at a
+   * time and released after the mappings were written, so that the descendants of all mappings are
+   * never in memory at once.
+   *
+   * <p>The descendants of the first chunk are added before anything is written, so that their
+   * errors can still result in an error status. An error of a later chunk occurs after the response
+   * started: the rows of the mappings that were written are followed by a row that starts with
+   * {@link #ERROR_MARKER} and the error is rethrown, which aborts the response.
+   *
+   * <p>Descendants that could not be added without failing the export, like those of an unavailable
+   * vocabulary, are reported in rows that start with {@link #MISSING_DESCENDANTS_MARKER} after the
+   * rows of all mappings.
+   */
   public void writeProjectCSV(
       OutputStream output,
       String project,
       Collection<Mapping> mappings,
-      boolean compatibilityFormat)
+      boolean compatibilityFormat,
+      DescendantsLoader descendants)
       throws IOException, CodeMapperException {
-    Collection<PreparedMapping> prepareds = new LinkedList<>();
-    for (Mapping mapping : mappings) {
-      prepareds.add(prepare(mapping));
-    }
-    writeHeaders(output);
-    for (PreparedMapping prepared : prepareds) {
-      writePrepared(output, prepared);
+    CsvWriter csv = new CsvWriter(output);
+    Iterator<Mapping> iterator = mappings.iterator();
+    List<Mapping> chunk = new ArrayList<>(DESCENDANTS_CHUNK_SIZE);
+    boolean started = false;
+    do {
+      while (iterator.hasNext() && chunk.size() < DESCENDANTS_CHUNK_SIZE) {
+        chunk.add(iterator.next());
+      }
+      try {
+        if (!chunk.isEmpty()) {
+          descendants.addDescendants(chunk);
+        }
+      } catch (CodeMapperException | RuntimeException e) {
+        if (started) {
+          csv.writeRow(ERROR_MARKER + e.getMessage());
+          csv.flush();
+        }
+        throw e;
+      }
+      if (!started) {
+        writeHeaders(csv);
+        started = true;
+      }
+      // Prepare and write one mapping at a time, to keep only one prepared mapping in memory
+      for (Mapping mapping : chunk) {
+        writePrepared(csv, prepare(mapping));
+        mapping.descendants = null;
+      }
+      chunk.clear();
+    } while (iterator.hasNext());
+    for (String error : descendants.getErrors()) {
+      csv.writeRow(MISSING_DESCENDANTS_MARKER + error);
     }
+    csv.flush();
   }
 
   public void writeMetaCSV(OutputStream output, String projectName, Collection<Mapping> mappings)
       throws IOException {
-    writeRawRow(output, META_HEADERS);
+    CsvWriter csv = new CsvWriter(output);
+    csv.writeRow(META_HEADERS);
     for (Mapping mapping : mappings) {
       String url =
           CodeMapperApplication.getCodeMapperURL() + "/mapping/" + mapping.info.mappingShortkey;
@@ -97,8 +160,7 @@ public class WriteCsvApi {
           mapping.data.getVocabularies().entrySet().stream()
               .map(e -> String.format("%s@%s", e.getKey(), e.getValue().getVersion()))
               .collect(Collectors.joining(" "));
-      writeRawRow(
-          output,
+      csv.writeRow(
           mapping.info.meta.system,
           mapping.info.mappingName,
           mapping.info.meta.type,
@@ -109,11 +171,13 @@ public class WriteCsvApi {
           codingSystems,
           url);
     }
+    csv.flush();
   }
 
   public void writeCodingSystems(OutputStream output, Collection<Mapping> mappings)
       throws IOException {
-    writeRawRow(output, CODING_SYSTEMS_HEADERS);
+    CsvWriter csv = new CsvWriter(output);
+    csv.writeRow(CODING_SYSTEMS_HEADERS);
     Map<String, Map<String, String>> info = new HashMap<>();
     for (Mapping mapping : mappings) {
       String umlsVersion = mapping.data.getMeta().getUmlsVersion();
@@ -126,9 +190,10 @@ public class WriteCsvApi {
     for (String umlsVersion : info.keySet()) {
       for (String codingSystem : info.get(umlsVersion).keySet()) {
         String version = info.get(umlsVersion).get(codingSystem);
-        writeRawRow(output, umlsVersion, codingSystem, version);
+        csv.writeRow(umlsVersion, codingSystem, version);
       }
     }
+    csv.flush();
   }
 
   public static class Mapping {
@@ -139,18 +204,20 @@ public class WriteCsvApi {
     boolean includeDescendants;
   }
 
+  /**
+   * The enabled codes of a mapping by vocabulary and concept, with per-vocabulary indexes that are
+   * built in {@link WriteCsvApi#prepare} and looked up when writing.
+   */
   @XmlRootElement
   public static class PreparedMapping {
     public Mapping mapping;
     public Map<String, Map<String, PreparedConcept>> data =
         new HashMap<>(); // voc -> cui -> forConcept
-    public Map<String, Map<String, Set<String>>> tags = new HashMap<>(); // voc -> code -> tags
+    public Map<String, Set<String>> conceptCodes = new HashMap<>(); // voc -> enabled codes
     public Map<String, Set<String>> disabled = new HashMap<>(); // voc -> set(code)
 
     Set<String> getConceptCodes(String voc) {
-      return data.getOrDefault(voc, new HashMap<>()).entrySet().stream()
-          .flatMap(e -> e.getValue().data.keySet().stream())
-          .collect(Collectors.toSet());
+      return conceptCodes.getOrDefault(voc, Collections.emptySet());
     }
   }
 
@@ -163,72 +230,91 @@ public class WriteCsvApi {
   @XmlRootElement
   public static class PreparedCode {
     public Code code;
-    public Collection<Code> descendants = new LinkedList<>();
+    public Collection<Code> descendants = Collections.emptyList(); // shared with the mapping
     public String comments;
   }
 
+  /**
+   * Prepare the mapping in one pass over its concepts.
+   *
+   * <p>The rows are written in the iteration order of the concepts by vocabulary, which also
+   * determines the concept of a code that is in several concepts. This order used to come from a
+   * hash map with all concepts for each vocabulary. To keep it, the concepts of a vocabulary are
+   * put in a hash map with the capacity of that hash map, in the same order: the iteration order of
+   * a hash map only depends on its capacity and the insertion order of the keys in the same bucket.
+   */
   PreparedMapping prepare(Mapping mapping) {
     PreparedMapping prepared = new PreparedMapping();
     prepared.mapping = mapping;
+    int capacity = hashMapCapacity(mapping.data.getConcepts().size());
     for (String voc : mapping.data.getVocabularies().keySet()) {
-      Map<String, PreparedConcept> vocData =
-          prepared.data.computeIfAbsent(voc, key -> new HashMap<>());
-      for (String cui : mapping.data.getConcepts().keySet()) {
+      prepared.data.computeIfAbsent(voc, key -> new HashMap<>(capacity));
+      prepared.conceptCodes.computeIfAbsent(voc, key -> new HashSet<>());
+      prepared.disabled.computeIfAbsent(voc, key -> new HashSet<>());
+    }
+    for (Map.Entry<String, Concept> entry : mapping.data.getConcepts().entrySet()) {
+      Concept concept0 = entry.getValue();
+      for (Map.Entry<String, Collection<String>> vocCodes : concept0.getCodes().entrySet()) {
+        String voc = vocCodes.getKey();
+        Map<String, PreparedConcept> vocData = prepared.data.get(voc);
+        if (vocData == null) {
+          continue; // not a vocabulary of the mapping
+        }
+        Map<String, Code> codes = mapping.data.getCodes().get(voc);
+        Descendants vocDescendants = mapping.descendants.get(voc);
+        Set<String> conceptCodes = prepared.conceptCodes.get(voc);
+        Set<String> disabled = prepared.disabled.get(voc);
         PreparedConcept concept = new PreparedConcept();
-        concept.concept = mapping.data.getConcepts().get(cui);
-        for (String code0 : concept.concept.getCodes().getOrDefault(voc, new LinkedList<>())) {
-          Code code1 = mapping.data.getCodes().get(voc).get(code0);
+        concept.concept = concept0;
+        for (String code0 : vocCodes.getValue()) {
+          Code code1 = codes.get(code0);
           if (code1.isEnabled()) {
-            Collection<Code> codeDescendants =
-                mapping
-                    .descendants
-                    .getOrDefault(voc, new Descendants())
-                    .getOrDefault(code0, new LinkedList<>());
             PreparedCode code = new PreparedCode();
             code.code = code1;
-            code.descendants.addAll(codeDescendants);
-            concept.data.put(code0, code);
-
-            // unify tags
-            String tag = code1.getTag();
-            if (tag != null) {
-              prepared
-                  .tags
-                  .computeIfAbsent(voc, key -> new HashMap<>())
-                  .computeIfAbsent(code0, key -> new HashSet<>())
-                  .add(tag);
+            if (vocDescendants != null) {
+              Collection<Code> codeDescendants = vocDescendants.get(code0);
+              if (codeDescendants != null) {
+                code.descendants = codeDescendants;
+              }
             }
+            concept.data.put(code0, code);
+            conceptCodes.add(code0);
           } else {
-            prepared.disabled.computeIfAbsent(voc, key -> new HashSet<>()).add(code0);
+            disabled.add(code0);
           }
         }
-        vocData.put(cui, concept);
+        vocData.put(entry.getKey(), concept);
       }
     }
     return prepared;
   }
 
-  void writePrepared(OutputStream output, PreparedMapping prepared) throws IOException {
-    for (String voc : prepared.data.keySet()) {
-      Set<String> disabled = prepared.disabled.getOrDefault(voc, new HashSet<>());
+  /** The capacity of a hash map with the default load factor after putting size entries. */
+  static int hashMapCapacity(int size) {
+    int capacity = 16;
+    while (size > capacity / 4 * 3) {
+      capacity *= 2;
+    }
+    return capacity;
+  }
+
+  void writePrepared(CsvWriter csv, PreparedMapping prepared) throws IOException {
+    for (Map.Entry<String, Map<String, PreparedConcept>> vocData : prepared.data.entrySet()) {
+      String voc = vocData.getKey();
+      Set<String> disabled = prepared.disabled.get(voc);
       Set<String> writtenCodes = new HashSet<>(); // write each code only once
       Set<String> conceptCodes =
           prepared.getConceptCodes(voc); // don't write codes from concepts as descendant codes
-      for (String cui : prepared.data.get(voc).keySet()) {
+      for (PreparedConcept concept : vocData.getValue().values()) {
         boolean wroteCode = false;
-        PreparedConcept concept = prepared.data.get(voc).get(cui);
-        for (String code0 : concept.data.keySet()) {
+        for (Map.Entry<String, PreparedCode> codeEntry : concept.data.entrySet()) {
+          String code0 = codeEntry.getKey();
           if (disabled.contains(code0)) continue;
-          if (writtenCodes.contains(code0)) continue;
-          PreparedCode code = concept.data.get(code0);
-          Set<String> tags =
-              prepared
-                  .tags
-                  .getOrDefault(voc, new HashMap<>())
-                  .getOrDefault(code.code.getId(), new HashSet<>());
-          String tag = String.join(",", tags);
+          if (!writtenCodes.add(code0)) continue;
+          PreparedCode code = codeEntry.getValue();
+          String tag = code.code.getTag() != null ? code.code.getTag() : "";
           writeCodeRow(
-              output,
+              csv,
               voc,
               code.code.getId(),
               code.code.getTerm(),
@@ -237,26 +323,25 @@ public class WriteCsvApi {
               tag,
               "",
               prepared);
-          writtenCodes.add(code0);
           wroteCode = true;
+          String origin = null;
           for (Code code1 : code.descendants) {
-            if (disabled.contains(code0)) continue;
-            if (writtenCodes.contains(code1.getId())) continue;
             if (conceptCodes.contains(code1.getId())) continue;
-            String origin = String.format("Desc: code %s", code0);
-            writeCodeRow(
-                output, voc, code1.getId(), code1.getTerm(), "-", "-", tag, origin, prepared);
-            writtenCodes.add(code1.getId());
+            if (!writtenCodes.add(code1.getId())) continue;
+            if (origin == null) {
+              origin = "Desc: code " + code0;
+            }
+            writeCodeRow(csv, voc, code1.getId(), code1.getTerm(), "-", "-", tag, origin, prepared);
           }
         }
         /*
         if (!wroteCode) {
           writeCodeRow(
-              output,
+              csv,
               voc,
               NO_CODE,
               "",
-              cui,
+              concept.concept.getId(),
               concept.concept.getName(),
               "-",
               "Concept without codes in " + voc,
@@ -268,7 +353,7 @@ public class WriteCsvApi {
   }
 
   void writeCodeRow(
-      OutputStream output,
+      CsvWriter csv,
       String voc,
       String code,
       String term,
@@ -279,40 +364,22 @@ public class WriteCsvApi {
       PreparedMapping prepared)
       throws IOException {
     MappingMeta meta = prepared.mapping.info.meta;
-    writeRawRow(
-        output,
-        meta != null && meta.definition != null ? meta.definition : "",
-        voc,
-        code,
-        term,
-        concept,
-        conceptName,
-        tag,
-        origin,
-        meta != null && meta.system != null ? meta.system : "",
-        prepared.mapping.info.mappingName,
-        meta != null && meta.type != null ? meta.type : "");
-  }
-
-  private void writeRawRow(OutputStream output, String... args) throws IOException {
-    String[] args1 = new String[args.length];
-    for (int i = 0; i < args.length; i++) {
-      String arg = args[i];
-      if (arg == null) {
-        arg = "";
-      }
-      if (arg.contains("\"") || arg.contains(",")) {
-        args1[i] = "\"" + arg.replaceAll("\"", "\"\"") + "\"";
-      } else {
-        args1[i] = arg;
-      }
-    }
-    String line = String.join(",", Arrays.asList(args1)) + "\n";
-    output.write(line.getBytes());
+    csv.writeField(meta != null ? meta.definition : null);
+    csv.writeField(voc);
+    csv.writeField(code);
+    csv.writeField(term);
+    csv.writeField(concept);
+    csv.writeField(conceptName);
+    csv.writeField(tag);
+    csv.writeField(origin);
+    csv.writeField(meta != null ? meta.system : null);
+    csv.writeField(prepared.mapping.info.mappingName);
+    csv.writeField(meta != null ? meta.type : null);
+    csv.endRow();
   }
 
-  void writeHeaders(OutputStream output) throws IOException {
-    writeRawRow(output, CODELIST_HEADERS);
+  void writeHeaders(CsvWriter csv) throws IOException {
+    csv.writeRow(CODELIST_HEADERS);
   }
 
   /** Auxiliary to format an array of tags in the export file. */
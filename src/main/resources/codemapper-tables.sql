@@ -152,7 +152,8 @@ create table cached_descendants (
   sab varchar(20),
   ver varchar(20),
   code varchar(100),
-  descendants text,
+  descendants text, -- legacy JSON encoding, see cached-descendants-upgrade.sql
+  descendants_bin bytea, -- DescendantsCodec
   unique (sab, ver, code)
 );
 
@@ -160,15 +161,30 @@ create or replace function set_cached_descendants(
   sab varchar(20),
   ver varchar(20),
   code varchar(100),
-  descendants text
+  descendants bytea
 ) returns void as $$
-insert into cached_descendants (sab, ver, code, descendants)
+insert into cached_descendants (sab, ver, code, descendants_bin)
 values (
   set_cached_descendants.sab,
   set_cached_descendants.ver,
   set_cached_descendants.code,
   set_cached_descendants.descendants
 )
+on conflict (sab, ver, code) do update
+set descendants_bin = excluded.descendants_bin, descendants = null, last_access = now()
+$$ language sql;
+
+create or replace function set_cached_descendants_batch(
+  sab varchar(20),
+  ver varchar(20),
+  codes varchar[],
+  descendants bytea[]
+) returns void as $$
+insert into cached_descendants (sab, ver, code, descendants_bin)
+select set_cached_descendants_batch.sab, set_cached_descendants_batch.ver, t.code, t.descendants
+from unnest(codes, descendants) as t(code, descendants)
+on conflict (sab, ver, code) do update
+set descendants_bin = excluded.descendants_bin, descendants = null, last_access = now()
 $$ language sql;
 
 create or replace function get_cached_descendants(
@@ -177,13 +193,25 @@ create or replace function get_cached_descendants(
   codes varchar[]
 ) returns table (
   code varchar(20),
-  descendants text
+  descendants text,
+  descendants_bin bytea
 ) as $$
-update cached_descendants set last_access = NOW()
-where sab = get_cached_descendants.sab
-and ver = get_cached_descendants.ver
-and code = any(codes)
-returning code, descendants
+-- last_access is updated separately with touch_cached_descendants
+select c.code, c.descendants, c.descendants_bin
+from cached_descendants c
+where c.sab = get_cached_descendants.sab
+and c.ver = get_cached_descendants.ver
+and c.code = any(codes)
+$$ language sql stable;
+
+create or replace function touch_cached_descendants(
+  sabs varchar[],
+  vers varchar[],
+  codes varchar[]
+) returns void as $$
+update cached_descendants c set last_access = now()
+from unnest(sabs, vers, codes) as t(sab, ver, code)
+where c.sab = t.sab and c.ver = t.ver and c.code = t.code
 $$ language sql;
 
 create or replace function evict_cached_descendants (keep int)
@@ -195,6 +223,51 @@ delete from cached_descendants where id in
   offset evict_cached_descendants.keep )
 $$ language sql;
 
+create or replace function evict_stale_cached_descendants(
+  sabs varchar[],
+  vers varchar[]
+) returns table (
+  deleted_rows bigint,
+  deleted_bytes bigint
+) as $$
+with deleted as (
+  delete from cached_descendants c
+  where not exists (
+    select 1 from unnest(sabs, vers) as t(sab, ver)
+    where t.sab = c.sab and t.ver = c.ver
+  )
+  returning coalesce(pg_column_size(c.descendants_bin), 0)
+    + coalesce(pg_column_size(c.descendants), 0) as bytes
+)
+select count(*), coalesce(sum(bytes), 0) from deleted
+$$ language sql;
+
+create or replace function evict_cached_descendants_by_size(
+  keep_rows int,
+  keep_bytes bigint
+) returns table (
+  deleted_rows bigint,
+  deleted_bytes bigint
+) as $$
+with ranked as (
+  select id,
+    row_number() over w as row_number,
+    sum(coalesce(pg_column_size(descendants_bin), 0) + coalesce(pg_column_size(descendants), 0))
+      over w as total_bytes
+  from cached_descendants
+  window w as (order by last_access desc, id desc)
+), deleted as (
+  delete from cached_descendants c
+  using ranked r
+  where c.id = r.id
+  and (r.row_number > evict_cached_descendants_by_size.keep_rows
+       or r.total_bytes > evict_cached_descendants_by_size.keep_bytes)
+  returning coalesce(pg_column_size(c.descendants_bin), 0)
+    + coalesce(pg_column_size(c.descendants), 0) as bytes
+)
+select count(*), coalesce(sum(bytes), 0) from deleted
+$$ language sql;
+
 create or replace function set_revision_version()
 returns trigger as $$
 begin
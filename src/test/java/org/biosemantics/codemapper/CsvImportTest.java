@@ -111,4 +111,29 @@ class CsvImportTest {
       assertTrue(imported0.mapping.codes.isEmpty());
     }
   }
+
+  /** Imports used to bind one parameter per code, which fails above 32767 parameters. */
+  @Test
+  void testLargeImport() throws Exception {
+    new CodeMapperApplication();
+    int numCodes = 50_000;
+    StringBuilder csv =
+        new StringBuilder(
+            "event_definition,coding_system,code,code_name,concept,concept_name,tags,origin,system,event_abbreviation,type\n");
+    for (int i = 0; i < numCodes; i++) {
+      csv.append(String.format("Large,ICD10CM,X%05d,Code %d,,,,,O,L,AESI\n", i, i));
+    }
+    try (NonUmlsTargets nonUmlsTargets = CodeMapperApplication.createNonUmlsTargets();
+        UmlsApi api = CodeMapperApplication.createUmlsApi(nonUmlsTargets)) {
+      ImportedMapping imported =
+          api.importCompatCSV(
+              new StringReader(csv.toString()),
+              Collections.emptyList(),
+              Collections.emptyList(),
+              null,
+              null,
+              null);
+      assertEquals(numCodes, imported.mapping.codes.get("ICD10CM").size());
+    }
+  }
 }
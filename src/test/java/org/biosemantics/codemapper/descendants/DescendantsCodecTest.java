@@ -0,0 +1,59 @@
+package org.biosemantics.codemapper.descendants;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.biosemantics.codemapper.MappingData.Code;
+import org.junit.jupiter.api.Test;
+
+class DescendantsCodecTest {
+
+  static void assertRoundtrip(List<Code> codes) {
+    List<Code> decoded = DescendantsCodec.decode(DescendantsCodec.encode(codes));
+    assertEquals(codes.size(), decoded.size());
+    for (int ix = 0; ix < codes.size(); ix++) {
+      assertEquals(codes.get(ix).getId(), decoded.get(ix).getId());
+      assertEquals(codes.get(ix).getTerm(), decoded.get(ix).getTerm());
+    }
+  }
+
+  @Test
+  void testRoundtrip() {
+    assertRoundtrip(Collections.emptyList());
+    assertRoundtrip(
+        Arrays.asList(
+            new Code("L22", "Diaper dermatitis", false, true, null),
+            new Code("L229", "", false, true, null),
+            new Code("L229A", null, false, true, null),
+            new Code("L22", "Shorter id after a longer one", false, true, null),
+            new Code("Ä1", "Ünïcödé – 日本語", false, true, null),
+            new Code("Ö1", "shared prefix within a multi-byte character", false, true, null)));
+  }
+
+  @Test
+  void testLarge() {
+    List<Code> codes = new ArrayList<>();
+    StringBuilder longTerm = new StringBuilder();
+    for (int ix = 0; ix < 300; ix++) {
+      longTerm.append("term ");
+    }
+    codes.add(new Code(longTerm.toString(), longTerm.toString(), false, true, null));
+    for (int ix = 0; ix < 10_000; ix++) {
+      codes.add(new Code(Integer.toString(100_000 + ix), "term " + ix, false, true, null));
+    }
+    assertRoundtrip(codes);
+  }
+
+  @Test
+  void testJsonToBinary() throws Exception {
+    List<Code> codes =
+        Arrays.asList(
+            new Code("1", "one", false, true, null), new Code("2", "two", false, true, null));
+    List<Code> fromJson = DescendantsCache.decodeJson(DescendantsCache.encodeJson(codes));
+    assertRoundtrip(fromJson);
+    assertEquals("2", DescendantsCodec.decode(DescendantsCodec.encode(fromJson)).get(1).getId());
+  }
+}
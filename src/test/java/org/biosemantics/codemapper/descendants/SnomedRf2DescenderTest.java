@@ -0,0 +1,141 @@
+package org.biosemantics.codemapper.descendants;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import org.biosemantics.codemapper.CodeMapperException;
+import org.biosemantics.codemapper.SourceConcept;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Loads a small RF2 snapshot: 1 is the root with children 2 and 5, 3 is a child of 2, the inactive
+ * concept 4 is replaced by 2, and 5 only has a fully specified name.
+ */
+class SnomedRf2DescenderTest {
+
+  static final String US = SnomedRf2Descender.US_ENGLISH_LANGUAGE_REFSET;
+  static final String REPLACED_BY = "900000000000526001";
+
+  SnomedRf2Descender descender;
+
+  @BeforeEach
+  void load(@TempDir Path dir) throws IOException, CodeMapperException {
+    Path terminology = Files.createDirectories(dir.resolve("Snapshot").resolve("Terminology"));
+    Path refset = Files.createDirectories(dir.resolve("Snapshot").resolve("Refset"));
+    write(
+        terminology.resolve("sct2_Concept_Snapshot_INT_20240101.txt"),
+        "id\teffectiveTime\tactive\tmoduleId\tdefinitionStatusId",
+        "1\t20240101\t1\t0\t0",
+        "2\t20240101\t1\t0\t0",
+        "3\t20240101\t1\t0\t0",
+        "4\t20240101\t0\t0\t0",
+        "5\t20240101\t1\t0\t0");
+    write(
+        terminology.resolve("sct2_Description_Snapshot-en_INT_20240101.txt"),
+        "id\teffectiveTime\tactive\tmoduleId\tconceptId\tlanguageCode\ttypeId\tterm\tcaseSignificanceId",
+        description("21", "2", SnomedRf2Descender.FSN, "Child (disorder)"),
+        description("22", "2", SnomedRf2Descender.SYNONYM, "Child"),
+        description("31", "3", SnomedRf2Descender.FSN, "Grandchild (disorder)"),
+        description("32", "3", SnomedRf2Descender.SYNONYM, "Acceptable grandchild"),
+        description("33", "3", SnomedRf2Descender.SYNONYM, "Grandchild"),
+        description("51", "5", SnomedRf2Descender.FSN, "Only FSN (finding)"),
+        description("52", "5", SnomedRf2Descender.SYNONYM, "Not preferred"));
+    write(
+        refset.resolve("der2_cRefset_LanguageSnapshot-en_INT_20240101.txt"),
+        "id\teffectiveTime\tactive\tmoduleId\trefsetId\treferencedComponentId\tacceptabilityId",
+        "a\t20240101\t1\t0\t" + US + "\t22\t" + SnomedRf2Descender.PREFERRED,
+        "b\t20240101\t1\t0\t" + US + "\t32\t900000000000549004",
+        "c\t20240101\t1\t0\t" + US + "\t33\t" + SnomedRf2Descender.PREFERRED,
+        "d\t20240101\t1\t0\t999\t52\t" + SnomedRf2Descender.PREFERRED);
+    write(
+        terminology.resolve("sct2_Relationship_Snapshot_INT_20240101.txt"),
+        "id\teffectiveTime\tactive\tmoduleId\tsourceId\tdestinationId\trelationshipGroup\ttypeId"
+            + "\tcharacteristicTypeId\tmodifierId",
+        isA("2", "1", "1"),
+        isA("3", "2", "1"),
+        isA("5", "1", "1"),
+        isA("5", "3", "0"));
+    String associationHeader =
+        "id\teffectiveTime\tactive\tmoduleId\trefsetId\treferencedComponentId\ttargetComponentId";
+    write(
+        refset.resolve("der2_cRefset_AssociationSnapshot_INT_20240101.txt"),
+        associationHeader,
+        "e\t20240101\t1\t0\t" + REPLACED_BY + "\t4\t2");
+    // Full and delta files are ignored
+    write(
+        dir.resolve("Full").resolve("der2_cRefset_AssociationFull_INT_20240101.txt"),
+        associationHeader,
+        "f\t20230101\t1\t0\t" + REPLACED_BY + "\t4\t1");
+    descender = SnomedRf2Descender.load("SCTSPA", Arrays.asList(dir), US);
+  }
+
+  static String description(String id, String conceptId, String typeId, String term) {
+    return String.join("\t", id, "20240101", "1", "0", conceptId, "en", typeId, term, "0");
+  }
+
+  static String isA(String source, String destination, String active) {
+    return String.join(
+        "\t",
+        source + destination,
+        "20240101",
+        active,
+        "0",
+        source,
+        destination,
+        "0",
+        SnomedRf2Descender.IS_A,
+        SnomedRf2Descender.INFERRED_RELATIONSHIP,
+        "0");
+  }
+
+  static void write(Path file, String... lines) throws IOException {
+    Files.createDirectories(file.getParent());
+    Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+  }
+
+  Map<String, String> getDescendants(String conceptId) {
+    Map<String, Collection<SourceConcept>> descendants =
+        descender.getDescendants(Arrays.asList(conceptId));
+    Map<String, String> res = new HashMap<>();
+    for (SourceConcept concept : descendants.get(conceptId)) {
+      assertEquals("SCTSPA", concept.getCodingSystem());
+      res.put(concept.getId(), concept.getPreferredTerm());
+    }
+    return res;
+  }
+
+  @Test
+  void descendants() {
+    assertEquals(5, descender.size());
+    Map<String, String> expected = new HashMap<>();
+    expected.put("2", "Child");
+    expected.put("3", "Grandchild");
+    expected.put("5", "Only FSN (finding)");
+    assertEquals(expected, getDescendants("1"));
+    expected.clear();
+    expected.put("3", "Grandchild");
+    assertEquals(expected, getDescendants("2"));
+    assertEquals(new HashMap<>(), getDescendants("3"));
+  }
+
+  @Test
+  void inactiveConceptIsResolved() {
+    Map<String, String> expected = new HashMap<>();
+    expected.put("3", "Grandchild");
+    assertEquals(expected, getDescendants("4"));
+  }
+
+  @Test
+  void unknownConcepts() {
+    assertFalse(descender.getDescendants(Arrays.asList("6", "x")).containsKey("6"));
+  }
+}
@@ -0,0 +1,108 @@
+package org.biosemantics.codemapper.descendants;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import org.biosemantics.codemapper.CodeMapperException;
+import org.biosemantics.codemapper.descendants.SnowstormDescender.CachedConcept;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SnowstormCacheStoreTest {
+
+  static final String BASE_URI = "http://localhost:8081";
+  static final String BRANCH = "MAIN";
+
+  LinkedHashMap<String, Collection<CachedConcept>> descendants = new LinkedHashMap<>();
+  LinkedHashMap<String, Collection<String>> resolved = new LinkedHashMap<>();
+
+  SnowstormCacheStore open(Path directory, int max) throws CodeMapperException {
+    descendants.clear();
+    resolved.clear();
+    return SnowstormCacheStore.open(directory, BASE_URI, BRANCH, max, max, descendants, resolved);
+  }
+
+  static Collection<CachedConcept> concepts(String... ids) {
+    CachedConcept[] res = new CachedConcept[ids.length];
+    for (int ix = 0; ix < ids.length; ix++) {
+      res[ix] = new CachedConcept(ids[ix], "term " + ids[ix]);
+    }
+    return Arrays.asList(res);
+  }
+
+  @Test
+  void keepsMostRecentRecords(@TempDir Path directory) throws Exception {
+    try (SnowstormCacheStore store = open(directory, 2)) {
+      store.putDescendants("1", concepts("11"));
+      store.putDescendants("2", concepts("21", "22"));
+      store.putDescendants("3", concepts("31"));
+      store.putDescendants("1", concepts("12"));
+      store.putResolved("4", Arrays.asList("5"));
+    }
+    open(directory, 2).close();
+    assertEquals(Arrays.asList("3", "1"), Arrays.asList(descendants.keySet().toArray()));
+    assertEquals("12", descendants.get("1").iterator().next().id);
+    assertEquals(Arrays.asList("5"), resolved.get("4"));
+  }
+
+  @Test
+  void compactsWhileWriting(@TempDir Path directory) throws Exception {
+    Path file;
+    try (SnowstormCacheStore store = open(directory, 1)) {
+      file = store.getFile();
+      store.putDescendants("0", concepts("1", "2", "3"));
+      long size = Files.size(file);
+      for (int ix = 0; ix < 100; ix++) {
+        store.putDescendants("0", concepts("1", "2", "3"));
+      }
+      assertTrue(Files.size(file) < 10 * size);
+      store.putDescendants("1", concepts("4"));
+    }
+    open(directory, 1).close();
+    assertEquals(1, descendants.size());
+    assertTrue(descendants.containsKey("1"));
+  }
+
+  @Test
+  void dropsRecordsWithInvalidSizes(@TempDir Path directory) throws Exception {
+    for (int size : new int[] {-1, Integer.MAX_VALUE}) {
+      Path file;
+      try (SnowstormCacheStore store = open(directory, 10)) {
+        file = store.getFile();
+        store.putDescendants("1", concepts("11"));
+      }
+      try (DataOutputStream output =
+          new DataOutputStream(Files.newOutputStream(file, StandardOpenOption.APPEND))) {
+        output.writeByte(SnowstormCacheStore.DESCENDANTS);
+        output.writeUTF("2");
+        output.writeInt(size);
+        output.writeUTF("21");
+      }
+      open(directory, 10).close();
+      assertEquals(Arrays.asList("1"), Arrays.asList(descendants.keySet().toArray()));
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  void dropsRecordsWithInvalidKind(@TempDir Path directory)
+      throws IOException, CodeMapperException {
+    Path file;
+    try (SnowstormCacheStore store = open(directory, 10)) {
+      file = store.getFile();
+      store.putResolved("1", Arrays.asList("2"));
+    }
+    Files.write(file, new byte[] {'X', 0, 1, '3'}, StandardOpenOption.APPEND);
+    open(directory, 10).close();
+    assertEquals(Arrays.asList("2"), resolved.get("1"));
+    open(directory, 10).close();
+    assertEquals(Arrays.asList("2"), resolved.get("1"));
+  }
+}
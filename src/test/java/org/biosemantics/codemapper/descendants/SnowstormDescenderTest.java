@@ -0,0 +1,177 @@
+package org.biosemantics.codemapper.descendants;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.biosemantics.codemapper.CodeMapperException;
+import org.biosemantics.codemapper.SourceConcept;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Runs the Snowstorm descender against a local stub of the Snowstorm API. */
+class SnowstormDescenderTest {
+
+  static final String BRANCH = "MAIN";
+  static final int DESCENDANTS = 1234;
+
+  HttpServer server;
+  String baseUri;
+  AtomicInteger descendantRequests = new AtomicInteger();
+  AtomicInteger failuresLeft = new AtomicInteger();
+
+  @BeforeEach
+  void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", this::handle);
+    server.start();
+    baseUri = "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  @AfterEach
+  void stopServer() {
+    server.stop(0);
+  }
+
+  void handle(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    Map<String, String> params = new HashMap<>();
+    String query = exchange.getRequestURI().getQuery();
+    if (query != null) {
+      for (String param : query.split("&")) {
+        String[] parts = param.split("=", 2);
+        params.put(parts[0], parts[1]);
+      }
+    }
+    if (path.equals("/" + BRANCH + "/concepts/100/descendants")) {
+      descendantRequests.incrementAndGet();
+      if (failuresLeft.getAndDecrement() > 0) {
+        respond(exchange, 503, "{\"error\":\"UNAVAILABLE\",\"message\":\"try again\"}");
+        return;
+      }
+      int offset = Integer.parseInt(params.get("offset"));
+      int limit = Integer.parseInt(params.get("limit"));
+      StringBuilder items = new StringBuilder();
+      for (int ix = offset; ix < Math.min(offset + limit, DESCENDANTS); ix++) {
+        if (items.length() > 0) items.append(",");
+        items.append(
+            String.format(
+                "{\"conceptId\":\"%d\",\"fsn\":{\"lang\":\"en\",\"term\":\"term %d\"}}",
+                1000 + ix, ix));
+      }
+      respond(
+          exchange,
+          200,
+          String.format(
+              "{\"items\":[%s],\"total\":%d,\"limit\":%d,\"offset\":%d}",
+              items, DESCENDANTS, limit, offset));
+    } else if (path.equals("/" + BRANCH + "/concepts/400/descendants")) {
+      descendantRequests.incrementAndGet();
+      try {
+        Thread.sleep(1_000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      respond(exchange, 200, "{\"items\":[],\"total\":0,\"limit\":1000,\"offset\":0}");
+    } else if (path.equals("/browser/" + BRANCH + "/concepts/100")) {
+      respond(exchange, 200, "{\"conceptId\":\"100\",\"active\":true}");
+    } else if (path.equals("/browser/" + BRANCH + "/concepts/200")) {
+      respond(
+          exchange,
+          200,
+          "{\"conceptId\":\"200\",\"active\":false,"
+              + "\"associationTargets\":{\"REPLACED_BY\":[\"100\"],\"WAS_A\":[\"300\"]}}");
+    } else if (path.startsWith("/browser/")) {
+      respond(exchange, 404, "{\"error\":\"NOT_FOUND\",\"message\":\"not found\"}");
+    } else {
+      respond(exchange, 404, "{\"error\":\"NOT_FOUND\",\"message\":\"no descendants\"}");
+    }
+  }
+
+  static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream output = exchange.getResponseBody()) {
+      output.write(bytes);
+    }
+  }
+
+  @Test
+  void testPaging() throws Exception {
+    SnowstormDescender descender =
+        new SnowstormDescender("SNOMEDCT_US", baseUri, BRANCH, 100, 5_000, 0, 4);
+    Map<String, Collection<SourceConcept>> res = descender.getDescendants(Arrays.asList("100"));
+    assertEquals(DESCENDANTS, res.get("100").size());
+    assertEquals(13, descendantRequests.get());
+  }
+
+  @Test
+  void testRetry() throws Exception {
+    failuresLeft.set(2);
+    SnowstormDescender descender =
+        new SnowstormDescender("SNOMEDCT_US", baseUri, BRANCH, 1_000, 5_000, 2, 4);
+    Map<String, Collection<SourceConcept>> res = descender.getDescendants(Arrays.asList("100"));
+    assertEquals(DESCENDANTS, res.get("100").size());
+  }
+
+  @Test
+  void testResolveInactive() throws Exception {
+    SnowstormDescender descender =
+        new SnowstormDescender("SNOMEDCT_US", baseUri, BRANCH, 1_000, 5_000, 0, 4);
+    Map<String, Collection<SourceConcept>> res =
+        descender.getDescendants(Arrays.asList("200", "999"));
+    assertEquals(DESCENDANTS, res.get("200").size());
+    assertEquals(0, res.get("999").size());
+  }
+
+  @Test
+  void testDeadline() throws Exception {
+    SnowstormDescender descender =
+        new SnowstormDescender("SNOMEDCT_US", baseUri, BRANCH, 1_000, 5_000, 0, 1);
+    descender.setDeadline(100);
+    long start = System.currentTimeMillis();
+    assertThrows(
+        CodeMapperException.class, () -> descender.getDescendants(Arrays.asList("400", "100")));
+    assertTrue(System.currentTimeMillis() - start < 1_000);
+    descender.close();
+  }
+
+  @Test
+  void testPersist(@TempDir Path directory) throws Exception {
+    SnowstormDescender descender =
+        new SnowstormDescender("SNOMEDCT_US", baseUri, BRANCH, 1_000, 5_000, 0, 4);
+    descender.persistTo(directory);
+    descender.getDescendants(Arrays.asList("200"));
+    int requests = descendantRequests.get();
+
+    // A new descender is warmed from the store, and doesn't request Snowstorm
+    SnowstormDescender restarted =
+        new SnowstormDescender("SNOMEDCT_US", baseUri, BRANCH, 1_000, 5_000, 0, 4);
+    restarted.persistTo(directory);
+    server.stop(0);
+    Map<String, Collection<SourceConcept>> res = restarted.getDescendants(Arrays.asList("200"));
+    assertEquals(DESCENDANTS, res.get("200").size());
+    assertEquals(requests, descendantRequests.get());
+
+    // A branch change discards the store of the previous branch
+    Path file = directory.resolve(SnowstormCacheStore.fileName(baseUri, BRANCH));
+    assertTrue(Files.exists(file));
+    new SnowstormDescender("SNOMEDCT_US", baseUri, "MAIN/2", 1_000, 5_000, 0, 4)
+        .persistTo(directory);
+    assertFalse(Files.exists(file));
+  }
+}
@@ -0,0 +1,123 @@
+package org.biosemantics.codemapper.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Benchmark of writing code list rows with the {@link CsvWriter} and with the previous
+ * implementation of {@code WriteCsvApi.writeRawRow}.
+ */
+public class CsvWriterBenchmark {
+
+  /** Arguments: [ROWS [ITERATIONS]]. */
+  public static void main(String[] args) throws Exception {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    String[][] data = new String[100][];
+    for (int ix = 0; ix < data.length; ix++) {
+      data[ix] =
+          new String[] {
+            "Anaphylaxis",
+            "ICD10CM",
+            String.format("T%02d.%d", ix, ix % 10),
+            ix % 7 == 0 ? "Shock, \"anaphylactic\", unspecified " + ix : "Anaphylactic shock " + ix,
+            ix % 3 == 0 ? "-" : "C0002792",
+            ix % 3 == 0 ? "-" : "Anaphylaxis",
+            ix % 5 == 0 ? "narrow,possible" : "narrow",
+            ix % 3 == 0 ? "Desc: code T78.2" : "",
+            "AESI",
+            "Anaphylaxis",
+            "DIAG"
+          };
+    }
+    for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+      benchmark(
+          "previous",
+          rows,
+          iterations,
+          output -> {
+            for (int ix = 0; ix < rows; ix++) {
+              writeRawRowPrevious(output, data[ix % data.length]);
+            }
+          });
+      benchmark(
+          "csv writer",
+          rows,
+          iterations,
+          output -> {
+            CsvWriter csv = new CsvWriter(output);
+            for (int ix = 0; ix < rows; ix++) {
+              csv.writeRow(data[ix % data.length]);
+            }
+            csv.flush();
+          });
+    }
+  }
+
+  private interface RowsWriter {
+    void write(OutputStream output) throws IOException;
+  }
+
+  private static void benchmark(String name, int rows, int iterations, RowsWriter writer)
+      throws IOException {
+    // Count the bytes that are written, without keeping them
+    CountingOutputStream output = new CountingOutputStream();
+    long allocatedStart = getAllocatedBytes();
+    long start = System.nanoTime();
+    for (int ix = 0; ix < iterations; ix++) {
+      writer.write(output);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long allocated = getAllocatedBytes() - allocatedStart;
+    long totalRows = (long) rows * iterations;
+    System.out.printf(
+        "%-12s %12.0f rows/s %10.1f bytes allocated/row %10d bytes written%n",
+        name,
+        totalRows / seconds,
+        allocated < 0 ? Double.NaN : (double) allocated / totalRows,
+        output.count / iterations);
+  }
+
+  /** Bytes allocated by the current thread, or -1 if the JVM doesn't measure allocations. */
+  private static long getAllocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    long count = 0;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+
+  private static void writeRawRowPrevious(OutputStream output, String... args) throws IOException {
+    String[] args1 = new String[args.length];
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg == null) {
+        arg = "";
+      }
+      if (arg.contains("\"") || arg.contains(",")) {
+        args1[i] = "\"" + arg.replaceAll("\"", "\"\"") + "\"";
+      } else {
+        args1[i] = arg;
+      }
+    }
+    String line = String.join(",", Arrays.asList(args1)) + "\n";
+    output.write(line.getBytes());
+  }
+}
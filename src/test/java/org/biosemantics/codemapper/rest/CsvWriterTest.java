@@ -0,0 +1,39 @@
+package org.biosemantics.codemapper.rest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class CsvWriterTest {
+
+  @Test
+  void testEscaping() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    CsvWriter csv = new CsvWriter(output);
+    csv.writeRow("a", null, "b,c", "say \"hi\"", "x\"", "Ménière");
+    csv.writeField("");
+    csv.writeField("d");
+    csv.endRow();
+    csv.flush();
+    assertEquals(
+        "a,,\"b,c\",\"say \"\"hi\"\"\",\"x\"\"\",Ménière\n,d\n",
+        new String(output.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testLongFields() throws Exception {
+    StringBuilder field = new StringBuilder();
+    for (int ix = 0; ix < 10_000; ix++) {
+      field.append(ix % 100 == 0 ? '"' : 'x');
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    CsvWriter csv = new CsvWriter(output);
+    csv.writeRow(field.toString(), field.toString());
+    csv.flush();
+    String quoted = "\"" + field.toString().replace("\"", "\"\"") + "\"";
+    assertEquals(
+        quoted + "," + quoted + "\n", new String(output.toByteArray(), StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,167 @@
+package org.biosemantics.codemapper.rest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.biosemantics.codemapper.CodeMapperException;
+import org.biosemantics.codemapper.MappingData;
+import org.biosemantics.codemapper.MappingData.Code;
+import org.biosemantics.codemapper.MappingData.MappingMeta;
+import org.biosemantics.codemapper.MappingData.Vocabulary;
+import org.biosemantics.codemapper.descendants.DescendantsApi.Descendants;
+import org.biosemantics.codemapper.persistency.PersistencyApi.MappingInfo;
+import org.biosemantics.codemapper.rest.WriteCsvApi.Mapping;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ExportPlannerTest {
+
+  Mapping a, b, c;
+  // codes by vocabulary of each call of the retriever
+  List<Map<String, Collection<String>>> calls = new ArrayList<>();
+
+  /** A mapping with the codes by vocabulary, given as vocabulary followed by its codes. */
+  static Mapping mapping(String name, boolean includeDescendants, String[]... vocCodes) {
+    Map<String, Map<String, Code>> codes = new HashMap<>();
+    Map<String, Vocabulary> vocabularies = new HashMap<>();
+    for (String[] voc : vocCodes) {
+      vocabularies.put(voc[0], new Vocabulary(voc[0], voc[0], "1", false));
+      Map<String, Code> vocCodes1 = new HashMap<>();
+      for (String code : Arrays.asList(voc).subList(1, voc.length)) {
+        vocCodes1.put(code, new Code(code, "term " + code, false, true, null));
+      }
+      codes.put(voc[0], vocCodes1);
+    }
+    MappingMeta meta = new MappingMeta();
+    meta.setIncludeDescendants(includeDescendants);
+    Mapping mapping = new Mapping();
+    mapping.info = new MappingInfo();
+    mapping.info.mappingName = name;
+    mapping.data = new MappingData(new HashMap<>(), codes, vocabularies, meta);
+    mapping.includeDescendants = includeDescendants;
+    return mapping;
+  }
+
+  /** Retrieves one descendant per code, with the code suffixed by "1". */
+  Map<String, Descendants> retrieve(
+      Map<String, Collection<String>> codesByVoc, Map<String, CodeMapperException> failures) {
+    calls.add(codesByVoc);
+    Map<String, Descendants> res = new HashMap<>();
+    for (Map.Entry<String, Collection<String>> entry : codesByVoc.entrySet()) {
+      Descendants descendants = new Descendants();
+      for (String code : entry.getValue()) {
+        descendants.put(
+            code, Arrays.asList(new Code(code + "1", "term " + code + "1", false, true, null)));
+      }
+      res.put(entry.getKey(), descendants);
+    }
+    return res;
+  }
+
+  static Map<String, List<String>> ids(Descendants descendants) {
+    Map<String, List<String>> res = new HashMap<>();
+    for (Map.Entry<String, Collection<Code>> entry : descendants.entrySet()) {
+      List<String> ids = new ArrayList<>();
+      for (Code code : entry.getValue()) {
+        ids.add(code.getId());
+      }
+      res.put(entry.getKey(), ids);
+    }
+    return res;
+  }
+
+  static Map<String, List<String>> map(String... keyValues) {
+    Map<String, List<String>> res = new HashMap<>();
+    for (int ix = 0; ix < keyValues.length; ix += 2) {
+      res.put(keyValues[ix], Arrays.asList(keyValues[ix + 1]));
+    }
+    return res;
+  }
+
+  @BeforeEach
+  void createMappings() {
+    a = mapping("A", true, new String[] {"ICD10", "a", "b"}, new String[] {"SNOMEDCT_US", "x"});
+    b = mapping("B", true, new String[] {"ICD10", "b", "c"});
+    c = mapping("C", false, new String[] {"ICD10", "d"});
+  }
+
+  @Test
+  void deduplicatesCodes() throws CodeMapperException {
+    ExportPlanner planner = new ExportPlanner(Arrays.asList(a, b, c), this::retrieve);
+    Map<String, Collection<String>> expected = new HashMap<>();
+    expected.put("ICD10", new HashSet<>(Arrays.asList("a", "b", "c")));
+    expected.put("SNOMEDCT_US", new HashSet<>(Arrays.asList("x")));
+    assertEquals(expected, planner.getCodesByVoc());
+    planner.addDescendants(Arrays.asList(a, b, c));
+    assertEquals(Arrays.asList(expected), calls);
+  }
+
+  @Test
+  void distributesDescendants() throws CodeMapperException {
+    new ExportPlanner(Arrays.asList(a, b, c), this::retrieve)
+        .addDescendants(Arrays.asList(a, b, c));
+    assertEquals(new HashSet<>(Arrays.asList("ICD10", "SNOMEDCT_US")), a.descendants.keySet());
+    assertEquals(map("a", "a1", "b", "b1"), ids(a.descendants.get("ICD10")));
+    assertEquals(map("x", "x1"), ids(a.descendants.get("SNOMEDCT_US")));
+    assertEquals(new HashSet<>(Arrays.asList("ICD10")), b.descendants.keySet());
+    assertEquals(map("b", "b1", "c", "c1"), ids(b.descendants.get("ICD10")));
+  }
+
+  @Test
+  void retrievesCodesOnceAcrossChunks() throws CodeMapperException {
+    ExportPlanner planner = new ExportPlanner(Arrays.asList(a, b, c), this::retrieve);
+    planner.addDescendants(Arrays.asList(a));
+    // The shared code b is kept for mapping B, the other codes of A are released
+    Map<String, Collection<String>> expected = new HashMap<>();
+    expected.put("ICD10", new HashSet<>(Arrays.asList("b", "c")));
+    assertEquals(expected, planner.getCodesByVoc());
+    planner.addDescendants(Arrays.asList(b, c));
+    assertEquals(2, calls.size());
+    expected.put("ICD10", new HashSet<>(Arrays.asList("c")));
+    assertEquals(expected, calls.get(1));
+    assertEquals(map("b", "b1", "c", "c1"), ids(b.descendants.get("ICD10")));
+    assertEquals(Collections.emptyMap(), planner.getCodesByVoc());
+  }
+
+  @Test
+  void mappingsWithoutDescendants() throws CodeMapperException {
+    new ExportPlanner(Arrays.asList(a, c), this::retrieve).addDescendants(Arrays.asList(a, c));
+    assertEquals(Collections.emptyMap(), c.descendants);
+
+    // Nothing is retrieved when no mapping includes descendants
+    calls.clear();
+    c.descendants = null;
+    new ExportPlanner(Arrays.asList(c), this::retrieve).addDescendants(Arrays.asList(c));
+    assertEquals(Collections.emptyMap(), c.descendants);
+    assertTrue(calls.isEmpty());
+  }
+
+  @Test
+  void reportsFailedVocabularies() throws CodeMapperException {
+    ExportPlanner planner =
+        new ExportPlanner(
+            Arrays.asList(a, b, c),
+            (codesByVoc, failures) -> {
+              Map<String, Descendants> res = retrieve(codesByVoc, failures);
+              res.remove("ICD10");
+              failures.put("ICD10", CodeMapperException.server("unavailable"));
+              return res;
+            });
+    planner.addDescendants(Arrays.asList(a));
+    planner.addDescendants(Arrays.asList(b, c));
+    // The failed vocabulary is not retried for the second chunk
+    assertEquals(1, calls.size());
+    assertEquals(new HashSet<>(Arrays.asList("SNOMEDCT_US")), a.descendants.keySet());
+    assertEquals(map("x", "x1"), ids(a.descendants.get("SNOMEDCT_US")));
+    assertEquals(Collections.emptyMap(), b.descendants);
+    assertEquals(Collections.emptyMap(), c.descendants);
+    assertEquals(Arrays.asList("ICD10 for mappings A, B (unavailable)"), planner.getErrors());
+  }
+}
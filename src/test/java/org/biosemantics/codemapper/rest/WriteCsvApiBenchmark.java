@@ -0,0 +1,101 @@
+package org.biosemantics.codemapper.rest;
+
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import org.biosemantics.codemapper.MappingData;
+import org.biosemantics.codemapper.MappingData.Code;
+import org.biosemantics.codemapper.MappingData.Concept;
+import org.biosemantics.codemapper.descendants.DescendantsApi.Descendants;
+import org.biosemantics.codemapper.persistency.PersistencyApi.MappingInfo;
+import org.biosemantics.codemapper.persistency.PersistencyApi.MappingMeta;
+import org.biosemantics.codemapper.rest.WriteCsvApi.Mapping;
+import org.biosemantics.codemapper.rest.WriteCsvApi.PreparedMapping;
+
+/** Benchmark of preparing and writing the code list of a synthetic mapping. */
+public class WriteCsvApiBenchmark {
+
+  /** Arguments: [NUMBER-OF-CODES [ITERATIONS]]. */
+  public static void main(String[] args) throws Exception {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    Mapping mapping = createBenchmarkMapping(size);
+    OutputStream output =
+        new OutputStream() {
+          @Override
+          public void write(int b) {}
+
+          @Override
+          public void write(byte[] b, int off, int len) {}
+        };
+    WriteCsvApi api = new WriteCsvApi();
+    for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+      long prepareNanos = 0, writeNanos = 0;
+      for (int ix = 0; ix < iterations; ix++) {
+        long start = System.nanoTime();
+        PreparedMapping prepared = api.prepare(mapping);
+        long prepared1 = System.nanoTime();
+        CsvWriter csv = new CsvWriter(output);
+        api.writePrepared(csv, prepared);
+        csv.flush();
+        prepareNanos += prepared1 - start;
+        writeNanos += System.nanoTime() - prepared1;
+      }
+      System.out.printf(
+          "%d codes: prepare %.2f ms, write %.2f ms%n",
+          size, prepareNanos / 1e6 / iterations, writeNanos / 1e6 / iterations);
+    }
+  }
+
+  /**
+   * A mapping with the codes in four vocabularies, two codes per concept and vocabulary, and five
+   * descendants per code. Some codes are disabled, tagged, or descendants of other codes.
+   */
+  static Mapping createBenchmarkMapping(int size) {
+    String[] vocs = {"ICD10CM", "ICD9CM", "SNOMEDCT_US", "MDR"};
+    int codesPerVoc = size / vocs.length;
+    Map<String, MappingData.Concept> concepts = new HashMap<>();
+    Map<String, Map<String, Code>> codes = new HashMap<>();
+    Map<String, MappingData.Vocabulary> vocabularies = new HashMap<>();
+    Map<String, Descendants> descendants = new HashMap<>();
+    for (String voc : vocs) {
+      vocabularies.put(voc, new MappingData.Vocabulary(voc, voc, "2024", false));
+      Map<String, Code> vocCodes = new HashMap<>();
+      Descendants vocDescendants = new Descendants();
+      for (int ix = 0; ix < codesPerVoc; ix++) {
+        String id = String.format("%s-%06d", voc, ix);
+        vocCodes.put(
+            id, new Code(id, "Term of " + id, false, ix % 10 != 0, ix % 7 == 0 ? "narrow" : null));
+        String cui = String.format("C%07d", ix / 2);
+        concepts
+            .computeIfAbsent(cui, k -> new Concept(cui, "Concept " + cui, null, new HashMap<>()))
+            .getCodes()
+            .computeIfAbsent(voc, k -> new LinkedList<>())
+            .add(id);
+        Collection<Code> codeDescendants = new LinkedList<>();
+        for (int d = 1; d <= 5; d++) {
+          // Every fifth descendant is a code of the mapping
+          String descendant =
+              d == 5
+                  ? String.format("%s-%06d", voc, (ix + 1) % codesPerVoc)
+                  : String.format("%s-%06d.%d", voc, ix, d);
+          codeDescendants.add(new Code(descendant, "Term of " + descendant, false, true, null));
+        }
+        vocDescendants.put(id, codeDescendants);
+      }
+      codes.put(voc, vocCodes);
+      descendants.put(voc, vocDescendants);
+    }
+    Mapping mapping = new Mapping();
+    mapping.info = new MappingInfo();
+    mapping.info.mappingName = "Benchmark";
+    mapping.info.meta = new MappingMeta();
+    mapping.info.meta.definition = "Benchmark";
+    mapping.data = new MappingData(concepts, codes, vocabularies, null);
+    mapping.descendants = descendants;
+    mapping.includeDescendants = true;
+    return mapping;
+  }
+}
@@ -0,0 +1,297 @@
+package org.biosemantics.codemapper.rest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.biosemantics.codemapper.CodeMapperException;
+import org.biosemantics.codemapper.MappingData;
+import org.biosemantics.codemapper.MappingData.Code;
+import org.biosemantics.codemapper.MappingData.Concept;
+import org.biosemantics.codemapper.MappingData.Vocabulary;
+import org.biosemantics.codemapper.descendants.DescendantsApi.Descendants;
+import org.biosemantics.codemapper.persistency.PersistencyApi.MappingInfo;
+import org.biosemantics.codemapper.persistency.PersistencyApi.MappingMeta;
+import org.biosemantics.codemapper.rest.WriteCsvApi.Mapping;
+import org.junit.jupiter.api.Test;
+
+class WriteCsvApiTest {
+
+  static final String HEADER =
+      "event_definition,coding_system,code,code_name,concept,concept_name,tags,origin,system,"
+          + "event_abbreviation,type\n";
+
+  /** A mapping with one concept and one ICD10CM code that has one descendant. */
+  static Mapping mapping(String name) {
+    Map<String, Code> codes = new HashMap<>();
+    codes.put("A01", new Code("A01", "Code of " + name, false, true, null));
+    Map<String, Map<String, Code>> vocCodes = new HashMap<>();
+    vocCodes.put("ICD10CM", codes);
+    Map<String, Collection<String>> conceptCodes = new HashMap<>();
+    conceptCodes.put("ICD10CM", Arrays.asList("A01"));
+    Map<String, Concept> concepts = new HashMap<>();
+    concepts.put("C1", new Concept("C1", "Concept", null, conceptCodes));
+    Map<String, Vocabulary> vocabularies = new HashMap<>();
+    vocabularies.put("ICD10CM", new Vocabulary("ICD10CM", "ICD10CM", "2024", false));
+    Mapping mapping = new Mapping();
+    mapping.info = new MappingInfo();
+    mapping.info.mappingName = name;
+    mapping.info.meta = new MappingMeta();
+    mapping.info.meta.definition = "Definition";
+    mapping.info.meta.system = "AESI";
+    mapping.info.meta.type = "DIAG";
+    mapping.data = new MappingData(concepts, vocCodes, vocabularies, null);
+    mapping.includeDescendants = true;
+    return mapping;
+  }
+
+  static String row(String name) {
+    return "Definition,ICD10CM,A01,Code of " + name + ",C1,Concept,,,AESI," + name + ",DIAG\n";
+  }
+
+  static String descendantRow(String name) {
+    return "Definition,ICD10CM,A01.1,Descendant,-,-,,Desc: code A01,AESI," + name + ",DIAG\n";
+  }
+
+  static void addDescendants(Collection<Mapping> mappings) {
+    for (Mapping mapping : mappings) {
+      Descendants descendants = new Descendants();
+      descendants.put("A01", Arrays.asList(new Code("A01.1", "Descendant", false, true, null)));
+      mapping.descendants = new HashMap<>();
+      mapping.descendants.put("ICD10CM", descendants);
+    }
+  }
+
+  static Code code(String id, boolean enabled, String tag) {
+    return new Code(id, "Term of " + id, false, enabled, tag);
+  }
+
+  /**
+   * A mapping with concepts in an order that differs from the order of their hash codes, as parsed
+   * from JSON, with codes that are shared by concepts, disabled or tagged, and with descendants
+   * that are shared or codes of concepts.
+   */
+  static Mapping fixtureMapping() {
+    Map<String, Concept> concepts = new LinkedHashMap<>();
+    Map<String, Map<String, Code>> codes = new LinkedHashMap<>();
+    Map<String, Vocabulary> vocabularies = new LinkedHashMap<>();
+    for (String voc : Arrays.asList("SNOMEDCT_US", "ICD10CM")) {
+      vocabularies.put(voc, new Vocabulary(voc, voc, "2024", false));
+      codes.put(voc, new LinkedHashMap<>());
+    }
+    String[][] conceptCodes = {
+      {"C0000739", "ICD10CM", "A01", "A02", "SNOMEDCT_US", "101"},
+      {"C0000005", "ICD10CM", "A02", "B01"},
+      {"C0017168", "ICD10CM", "C01", "SNOMEDCT_US", "102", "103"},
+      {"C0000102", "SNOMEDCT_US", "103", "104"},
+      {"C0000052", "ICD10CM", "D01"},
+      {"C0012345"}
+    };
+    for (String[] row : conceptCodes) {
+      Map<String, Collection<String>> vocCodes = new LinkedHashMap<>();
+      String voc = null;
+      for (String value : Arrays.asList(row).subList(1, row.length)) {
+        if (codes.containsKey(value)) {
+          voc = value;
+          vocCodes.put(voc, new LinkedList<>());
+        } else {
+          vocCodes.get(voc).add(value);
+        }
+      }
+      concepts.put(row[0], new Concept(row[0], "Concept " + row[0], null, vocCodes));
+    }
+    codes.get("ICD10CM").put("A01", code("A01", true, "narrow"));
+    codes.get("ICD10CM").put("A02", code("A02", true, null));
+    codes.get("ICD10CM").put("B01", code("B01", false, null));
+    codes.get("ICD10CM").put("C01", code("C01", true, "broad"));
+    codes.get("ICD10CM").put("D01", code("D01", true, null));
+    codes.get("SNOMEDCT_US").put("101", code("101", true, null));
+    codes.get("SNOMEDCT_US").put("102", code("102", false, null));
+    codes.get("SNOMEDCT_US").put("103", code("103", true, "narrow"));
+    codes.get("SNOMEDCT_US").put("104", code("104", true, null));
+    Map<String, Descendants> descendants = new HashMap<>();
+    Descendants icd10cm = new Descendants();
+    icd10cm.put("A01", Arrays.asList(code("A01.1", true, null), code("A01.2", true, null)));
+    icd10cm.put("A02", Arrays.asList(code("A01.2", true, null), code("D01", true, null)));
+    icd10cm.put("C01", Arrays.asList(code("C01.1", true, null)));
+    descendants.put("ICD10CM", icd10cm);
+    Descendants snomed = new Descendants();
+    snomed.put("101", Arrays.asList(code("1011", true, null), code("104", true, null)));
+    snomed.put("103", Arrays.asList(code("1031", true, null)));
+    descendants.put("SNOMEDCT_US", snomed);
+    Mapping mapping = new Mapping();
+    mapping.info = new MappingInfo();
+    mapping.info.mappingName = "Fixture";
+    mapping.info.meta = new MappingMeta();
+    mapping.info.meta.definition = "Fixture, \"quoted\"";
+    mapping.info.meta.system = "AESI";
+    mapping.info.meta.type = "DIAG";
+    mapping.data = new MappingData(concepts, codes, vocabularies, null);
+    mapping.descendants = descendants;
+    mapping.includeDescendants = true;
+    return mapping;
+  }
+
+  static String write(Mapping mapping) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    CsvWriter csv = new CsvWriter(output);
+    WriteCsvApi api = new WriteCsvApi();
+    api.writePrepared(csv, api.prepare(mapping));
+    csv.flush();
+    return new String(output.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  static String fixtureRow(String fields) {
+    return "\"Fixture, \"\"quoted\"\"\"," + fields + ",AESI,Fixture,DIAG\n";
+  }
+
+  /**
+   * The rows are in the order of the concepts in a hash map per vocabulary, as before preparing in
+   * one pass, and not in the order of the concepts in the mapping. That order also determines the
+   * concept of the shared code A02.
+   */
+  @Test
+  void writesFixture() throws IOException {
+    String expected =
+        fixtureRow("ICD10CM,C01,Term of C01,C0017168,Concept C0017168,broad,")
+            + fixtureRow("ICD10CM,C01.1,Term of C01.1,-,-,broad,Desc: code C01")
+            + fixtureRow("ICD10CM,A01,Term of A01,C0000739,Concept C0000739,narrow,")
+            + fixtureRow("ICD10CM,A01.1,Term of A01.1,-,-,narrow,Desc: code A01")
+            + fixtureRow("ICD10CM,A01.2,Term of A01.2,-,-,narrow,Desc: code A01")
+            + fixtureRow("ICD10CM,A02,Term of A02,C0000739,Concept C0000739,,")
+            + fixtureRow("ICD10CM,D01,Term of D01,C0000052,Concept C0000052,,")
+            + fixtureRow("SNOMEDCT_US,103,Term of 103,C0017168,Concept C0017168,narrow,")
+            + fixtureRow("SNOMEDCT_US,1031,Term of 1031,-,-,narrow,Desc: code 103")
+            + fixtureRow("SNOMEDCT_US,101,Term of 101,C0000739,Concept C0000739,,")
+            + fixtureRow("SNOMEDCT_US,1011,Term of 1011,-,-,,Desc: code 101")
+            + fixtureRow("SNOMEDCT_US,104,Term of 104,C0000102,Concept C0000102,,");
+    assertEquals(expected, write(fixtureMapping()));
+  }
+
+  @Test
+  void addsDescendantsByChunk() throws Exception {
+    List<Mapping> mappings = new LinkedList<>();
+    for (int ix = 0; ix < 2 * WriteCsvApi.DESCENDANTS_CHUNK_SIZE + 5; ix++) {
+      mappings.add(mapping("M" + ix));
+    }
+    List<Integer> chunks = new ArrayList<>();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new WriteCsvApi()
+        .writeProjectCSV(
+            output,
+            "Project",
+            mappings,
+            true,
+            chunk -> {
+              chunks.add(chunk.size());
+              addDescendants(chunk);
+            });
+    int size = WriteCsvApi.DESCENDANTS_CHUNK_SIZE;
+    assertEquals(Arrays.asList(size, size, 5), chunks);
+    StringBuilder expected = new StringBuilder(HEADER);
+    for (Mapping mapping : mappings) {
+      expected.append(row(mapping.info.mappingName));
+      expected.append(descendantRow(mapping.info.mappingName));
+      assertNull(mapping.descendants);
+    }
+    assertEquals(expected.toString(), new String(output.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void failsBeforeWriting() {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    assertThrows(
+        CodeMapperException.class,
+        () ->
+            new WriteCsvApi()
+                .writeProjectCSV(
+                    output,
+                    "Project",
+                    Arrays.asList(mapping("M")),
+                    true,
+                    chunk -> {
+                      throw CodeMapperException.server("unavailable");
+                    }));
+    assertEquals(0, output.size());
+  }
+
+  @Test
+  void marksIncompleteExport() {
+    List<Mapping> mappings = new LinkedList<>();
+    for (int ix = 0; ix < WriteCsvApi.DESCENDANTS_CHUNK_SIZE + 1; ix++) {
+      mappings.add(mapping("M" + ix));
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    assertThrows(
+        CodeMapperException.class,
+        () ->
+            new WriteCsvApi()
+                .writeProjectCSV(
+                    output,
+                    "Project",
+                    mappings,
+                    true,
+                    chunk -> {
+                      if (chunk.contains(mappings.get(WriteCsvApi.DESCENDANTS_CHUNK_SIZE))) {
+                        throw CodeMapperException.server("unavailable");
+                      }
+                      addDescendants(chunk);
+                    }));
+    String csv = new String(output.toByteArray(), StandardCharsets.UTF_8);
+    assertTrue(csv.startsWith(HEADER + row("M0") + descendantRow("M0")));
+    assertTrue(csv.endsWith(descendantRow("M19") + WriteCsvApi.ERROR_MARKER + "unavailable\n"));
+  }
+
+  @Test
+  void reportsMissingDescendants() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new WriteCsvApi()
+        .writeProjectCSV(
+            output,
+            "Project",
+            Arrays.asList(mapping("M")),
+            true,
+            new WriteCsvApi.DescendantsLoader() {
+              @Override
+              public void addDescendants(Collection<Mapping> mappings) {
+                for (Mapping mapping : mappings) {
+                  mapping.descendants = new HashMap<>();
+                }
+              }
+
+              @Override
+              public List<String> getErrors() {
+                return Arrays.asList("ICD10CM for mappings M (unavailable)");
+              }
+            });
+    assertEquals(
+        HEADER
+            + row("M")
+            + WriteCsvApi.MISSING_DESCENDANTS_MARKER
+            + "ICD10CM for mappings M (unavailable)\n",
+        new String(output.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void emptyExport() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new WriteCsvApi()
+        .writeProjectCSV(
+            output,
+            "Project",
+            Collections.emptyList(),
+            true,
+            chunk -> fail("no descendants without mappings"));
+    assertEquals(HEADER, new String(output.toByteArray(), StandardCharsets.UTF_8));
+  }
+}